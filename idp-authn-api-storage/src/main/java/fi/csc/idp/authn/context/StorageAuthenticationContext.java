@@ -23,16 +23,22 @@
 
 package fi.csc.idp.authn.context;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.opensaml.messaging.context.BaseContext;
 
 import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventTimings;
 
-/** Storage Authentication Context. Stores authentication event. */
+/**
+ * Storage Authentication Context. Stores authentication event while it is verified and updated, the event is cleared
+ * once updated. The context is removed once the storage flow ends.
+ */
 public class StorageAuthenticationContext extends BaseContext {
 
-    /** Authentication event located from storage. */
+    /** Authentication event located from storage, cleared once updated. */
+    @Nullable
     private AuthenticationEvent authenticationEvent;
 
     /** Key/Username used for locating the event. */
@@ -44,6 +50,20 @@ public class StorageAuthenticationContext extends BaseContext {
      */
     private long authenticationEventNotBefore = 0;
 
+    /** Time spent in the phases of storage authentication within the request. */
+    @Nonnull
+    private final AuthenticationEventTimings timings = new AuthenticationEventTimings();
+
+    /**
+     * Get time spent in the phases of storage authentication within the request.
+     * 
+     * @return time spent in the phases of storage authentication within the request
+     */
+    @Nonnull
+    public AuthenticationEventTimings getTimings() {
+        return timings;
+    }
+
     /**
      * Get time in milliseconds since the epoch for events issued before not be accepted. 0 means there is no value to
      * be checked.
@@ -71,6 +91,17 @@ public class StorageAuthenticationContext extends BaseContext {
         }
     }
 
+    /**
+     * Set time in milliseconds since the epoch for events issued before not be accepted. 0 means there is no value to
+     * be checked.
+     * 
+     * @param notBefore time in milliseconds since the epoch for events issued before not be accepted. 0 means there
+     *            is no value to be checked.
+     */
+    public void setAuthenticationEventNotBefore(final long notBefore) {
+        authenticationEventNotBefore = notBefore;
+    }
+
     /**
      * Get key/username used for locating the event.
      * 
@@ -107,4 +138,9 @@ public class StorageAuthenticationContext extends BaseContext {
         authenticationEvent = event;
     }
 
+    /** Clear the authentication event located from storage once it has been updated. */
+    public void releaseAuthenticationEvent() {
+        authenticationEvent = null;
+    }
+
 }
@@ -24,13 +24,14 @@
 package fi.csc.idp.authn.storage;
 
 import javax.annotation.Nonnull;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import net.minidev.json.JSONObject;
 import net.minidev.json.parser.JSONParser;
 import java.text.ParseException;
 
-/** Class representing authentication event stored to event cache. */
+/**
+ * Class representing authentication event stored to event cache. Applying, serializing and reading the applied state
+ * are synchronized on the instance, the rest of the claims are not modified after construction.
+ */
 public class AuthenticationEvent {
 
     /** Unique identifier for the authentication event. */
@@ -54,13 +55,12 @@ public class AuthenticationEvent {
     /** Number of times this instance has been successfully reused. */
     public static final String KEY_APPLIED_COUNT = "applied_count";
 
+    /** Separator of the fields of the serialized usage. */
+    private static final String USAGE_SEPARATOR = " ";
+
     /** Claims set for the authentication event claim. */
     protected JSONObject authenticationEventObject;
 
-    /** Class logger. */
-    @Nonnull
-    private Logger log = LoggerFactory.getLogger(AuthenticationEvent.class);
-
     /**
      * Constructor for creating a new authentication event.
      * 
@@ -144,10 +144,54 @@ public class AuthenticationEvent {
      * 
      * @return authentication event as JSON String
      */
-    public String serialize() {
+    public synchronized String serialize() {
         return authenticationEventObject.toJSONString();
     }
 
+    /**
+     * Serialize the usage of the authentication event, the applied time and count that change when the event is
+     * applied. The rest of the claims do not change after construction.
+     * 
+     * @return applied time and applied count separated by space
+     */
+    @Nonnull
+    public synchronized String serializeUsage() {
+        return getAppliedTime() + USAGE_SEPARATOR + getAppliedCount();
+    }
+
+    /**
+     * Update the usage of the authentication event from serialized usage, unless the event has been applied more times
+     * already.
+     * 
+     * @param usage usage serialized by {@link #serializeUsage()}
+     * @throws ParseException if the usage is not parseable
+     */
+    public synchronized void mergeUsage(@Nonnull final String usage) throws ParseException {
+        final String[] fields = usage.split(USAGE_SEPARATOR);
+        if (fields.length != 2) {
+            throw new ParseException("usage must have applied time and applied count", 0);
+        }
+        try {
+            mergeUsage(Long.parseLong(fields[0]), Integer.parseInt(fields[1]));
+        } catch (NumberFormatException e) {
+            throw new ParseException("usage must have numeric applied time and applied count", 0);
+        }
+    }
+
+    /**
+     * Update the usage of the authentication event, unless the event has been applied more times already.
+     * 
+     * @param appliedTime time the event was last applied
+     * @param appliedCount number of times the event has been applied
+     */
+    public synchronized void mergeUsage(final long appliedTime, final int appliedCount) {
+        if (appliedCount > getAppliedCount()
+                || (appliedCount == getAppliedCount() && appliedTime > getAppliedTime())) {
+            authenticationEventObject.put(KEY_APPLIED_TIME, appliedTime);
+            authenticationEventObject.put(KEY_APPLIED_COUNT, appliedCount);
+        }
+    }
+
     /**
      * Get the id of the authentication event.
      * 
@@ -194,7 +238,7 @@ public class AuthenticationEvent {
      * @return applied of the authentication event
      */
     @Nonnull
-    public long getAppliedTime() {
+    public synchronized long getAppliedTime() {
         return authenticationEventObject.getAsNumber(KEY_APPLIED_TIME).longValue();
     }
 
@@ -204,7 +248,7 @@ public class AuthenticationEvent {
      * @return applied count of the authentication event
      */
     @Nonnull
-    public int getAppliedCount() {
+    public synchronized int getAppliedCount() {
         return authenticationEventObject.getAsNumber(KEY_APPLIED_COUNT).intValue();
     }
 
@@ -221,7 +265,7 @@ public class AuthenticationEvent {
     /**
      * Update event for current apply time.
      */
-    public void apply() {
+    public synchronized void apply() {
         authenticationEventObject.put(KEY_APPLIED_TIME, System.currentTimeMillis());
         authenticationEventObject.put(KEY_APPLIED_COUNT,
                 authenticationEventObject.getAsNumber(KEY_APPLIED_COUNT).intValue() + 1);
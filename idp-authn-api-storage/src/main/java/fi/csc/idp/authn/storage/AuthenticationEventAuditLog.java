@@ -0,0 +1,657 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+/**
+ * Audit channel for the authentication event lifecycle.
+ * <p>
+ * Recording an entry never blocks nor performs I/O. Entries are published to a bounded lock-free ring buffer and a
+ * background writer drains them in batches to a local file through a pre-allocated direct buffer. If the ring buffer is
+ * full the entry is dropped and counted. The file is rolled over once it reaches the maximum size.
+ * </p>
+ * <p>
+ * Instances writing to the same file share the ring buffer and the writer, the settings of the instance initialized
+ * first apply. The writer is stopped when the last of the instances is destroyed.
+ * </p>
+ * <p>
+ * Each entry is written as a line of pipe separated fields: time, action, event id, subject, issuer, authentication
+ * time, applied count, relying party and reason. Absent fields are left empty.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class AuthenticationEventAuditLog extends AbstractInitializableComponent {
+
+    /** Lifecycle actions of an authentication event. */
+    public enum Action {
+
+        /** Event has been created. */
+        CREATED,
+
+        /** Event has been reused. */
+        REUSED,
+
+        /** Event has been rejected. */
+        REJECTED;
+    }
+
+    /** Field separator. */
+    private static final char SEPARATOR = '|';
+
+    /** Running writers by absolute path of the file. Guarded by itself. */
+    private static final Map<Path, Writer> WRITERS = new HashMap<>();
+
+    /** Path of the audit file. */
+    @NonnullAfterInit
+    private Path file;
+
+    /** Number of entries the ring buffer holds, rounded up to power of two. Default value: 8192 */
+    @Positive
+    private int capacity;
+
+    /** Maximum number of entries written per batch. Default value: 512 */
+    @Positive
+    private int batchSize;
+
+    /** Size of the direct write buffer in bytes. Default value: 64kB */
+    @Positive
+    private int writeBufferSize;
+
+    /** Size in bytes at which the file is rolled over. Default value: 10MB */
+    @Positive
+    private long maxFileSize;
+
+    /** Number of rolled over files kept. Default value: 5 */
+    @NonNegative
+    private int maxHistory;
+
+    /** Time in ms the writer sleeps when there is nothing to write. Default value: 200ms */
+    @Positive
+    @Duration
+    private long drainInterval;
+
+    /** The background writer of the file. */
+    private Writer writer;
+
+    /** Constructor. */
+    public AuthenticationEventAuditLog() {
+        capacity = 8192;
+        batchSize = 512;
+        writeBufferSize = 64 * 1024;
+        maxFileSize = 10 * 1024 * 1024;
+        maxHistory = 5;
+        drainInterval = 200;
+    }
+
+    /**
+     * Set the path of the audit file.
+     * 
+     * @param path path of the audit file
+     */
+    public void setFile(@Nonnull @NotEmpty final String path) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        file = Paths.get(Constraint.isNotNull(StringSupport.trimOrNull(path), "Audit file cannot be null or empty"));
+    }
+
+    /**
+     * Set the number of entries the ring buffer holds. Rounded up to power of two.
+     * 
+     * @param size number of entries the ring buffer holds
+     */
+    public void setCapacity(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        capacity = (int) Constraint.isGreaterThan(0, size, "Capacity must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of entries written per batch.
+     * 
+     * @param size maximum number of entries written per batch
+     */
+    public void setBatchSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        batchSize = (int) Constraint.isGreaterThan(0, size, "Batch size must be greater than 0");
+    }
+
+    /**
+     * Set the size of the direct write buffer in bytes.
+     * 
+     * @param size size of the direct write buffer in bytes
+     */
+    public void setWriteBufferSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        writeBufferSize = (int) Constraint.isGreaterThan(0, size, "Write buffer size must be greater than 0");
+    }
+
+    /**
+     * Set the size in bytes at which the file is rolled over.
+     * 
+     * @param size size in bytes at which the file is rolled over
+     */
+    public void setMaxFileSize(@Positive final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxFileSize = Constraint.isGreaterThan(0, size, "Max file size must be greater than 0");
+    }
+
+    /**
+     * Set the number of rolled over files kept.
+     * 
+     * @param history number of rolled over files kept
+     */
+    public void setMaxHistory(@NonNegative final int history) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxHistory = (int) Constraint.isGreaterThanOrEqual(0, history, "Max history must not be negative");
+    }
+
+    /**
+     * Set the time in ms the writer sleeps when there is nothing to write.
+     * 
+     * @param interval time in ms the writer sleeps when there is nothing to write
+     */
+    @Duration
+    public void setDrainInterval(@Positive @Duration final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        drainInterval = Constraint.isGreaterThan(0, interval, "Drain interval must be greater than 0");
+    }
+
+    /**
+     * Get the number of entries of the file dropped because the ring buffer was full. A failed write of a batch is
+     * counted as one.
+     * 
+     * @return number of dropped entries
+     */
+    public long getDroppedCount() {
+        final Writer current = writer;
+        return current == null ? 0 : current.dropped.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (file == null) {
+            throw new ComponentInitializationException("Audit file cannot be null");
+        }
+        file = file.toAbsolutePath();
+        synchronized (WRITERS) {
+            writer = WRITERS.get(file);
+            if (writer == null) {
+                try {
+                    writer = new Writer(this);
+                } catch (final IOException e) {
+                    throw new ComponentInitializationException("Unable to open audit file " + file, e);
+                }
+                writer.start();
+                WRITERS.put(file, writer);
+            }
+            writer.references++;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (writer != null) {
+            synchronized (WRITERS) {
+                if (--writer.references == 0) {
+                    WRITERS.remove(file);
+                    writer.shutdown();
+                }
+            }
+            writer = null;
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * Record an entry of the authentication event lifecycle. The state of the event is captured at the time of the
+     * call.
+     * 
+     * @param action lifecycle action
+     * @param event the authentication event
+     * @param relyingPartyId relying party the event was applied to, if known
+     * @param reason reason for rejecting the event, if rejected
+     * @return true if the entry was queued, false if it was dropped
+     */
+    public boolean record(@Nonnull final Action action, @Nonnull final AuthenticationEvent event,
+            @Nullable final String relyingPartyId, @Nullable final Reason reason) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final Writer current = writer;
+        if (current == null) {
+            return false;
+        }
+        return current.offer(new Entry(action, event, relyingPartyId, reason));
+    }
+
+    /**
+     * Record the rejection of an authentication event by the summary carried by its reference, the event itself not
+     * read. The issuer of the event is not known and left empty.
+     * 
+     * @param summary summary of the rejected event
+     * @param subject subject of the event
+     * @param relyingPartyId relying party the event was rejected for, if known
+     * @param reason reason for rejecting the event
+     * @return true if the entry was queued, false if it was dropped
+     */
+    public boolean record(@Nonnull final AuthenticationEventSummary summary, @Nonnull final String subject,
+            @Nullable final String relyingPartyId, @Nonnull final Reason reason) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final Writer current = writer;
+        if (current == null) {
+            return false;
+        }
+        return current.offer(new Entry(summary, subject, relyingPartyId, reason));
+    }
+
+    /** Immutable audit entry. */
+    private static final class Entry {
+
+        /** Time of the entry. */
+        private final long time;
+
+        /** Lifecycle action. */
+        private final Action action;
+
+        /** Event id. */
+        private final String eventId;
+
+        /** Subject of the event. */
+        private final String subject;
+
+        /** Issuer of the event. */
+        private final String issuer;
+
+        /** Authentication time of the event. */
+        private final long authTime;
+
+        /** Applied count of the event. */
+        private final long appliedCount;
+
+        /** Relying party, if known. */
+        private final String relyingPartyId;
+
+        /** Reason for rejection, if rejected. */
+        private final Reason reason;
+
+        /**
+         * Constructor.
+         * 
+         * @param act lifecycle action
+         * @param event the authentication event
+         * @param rpId relying party, if known
+         * @param why reason for rejection, if rejected
+         */
+        private Entry(final Action act, final AuthenticationEvent event, final String rpId, final Reason why) {
+            time = System.currentTimeMillis();
+            action = act;
+            eventId = event.getID();
+            subject = event.getSubject();
+            issuer = event.getIssuer();
+            authTime = event.getAuthTime();
+            appliedCount = event.getAppliedCount();
+            relyingPartyId = rpId;
+            reason = why;
+        }
+
+        /**
+         * Constructor of a rejection by the summary of the event.
+         * 
+         * @param summary summary of the rejected event
+         * @param sub subject of the event
+         * @param rpId relying party, if known
+         * @param why reason for rejection
+         */
+        private Entry(final AuthenticationEventSummary summary, final String sub, final String rpId,
+                final Reason why) {
+            time = System.currentTimeMillis();
+            action = Action.REJECTED;
+            eventId = summary.getID();
+            subject = sub;
+            issuer = null;
+            authTime = summary.getAuthTime();
+            appliedCount = summary.getAppliedCount();
+            relyingPartyId = rpId;
+            reason = why;
+        }
+    }
+
+    /**
+     * Background writer draining the ring buffer to the file. Owns the ring buffer, the direct buffer and the channel.
+     */
+    private static final class Writer extends Thread {
+
+        /** Class logger. */
+        @Nonnull
+        private final Logger log = LoggerFactory.getLogger(AuthenticationEventAuditLog.class);
+
+        /** Absolute path of the file. */
+        private final Path file;
+
+        /** Maximum number of entries written per batch. */
+        private final int batchSize;
+
+        /** Size in bytes at which the file is rolled over. */
+        private final long maxFileSize;
+
+        /** Number of rolled over files kept. */
+        private final int maxHistory;
+
+        /** Time in ms the writer sleeps when there is nothing to write. */
+        private final long drainInterval;
+
+        /** The ring buffer. */
+        private final AtomicReferenceArray<Entry> ring;
+
+        /** Sequence of the next entry to claim by the producers. */
+        private final AtomicLong tail;
+
+        /** Sequence of the next entry to drain by the writer. */
+        private final AtomicLong head;
+
+        /** Number of dropped entries. */
+        private final AtomicLong dropped;
+
+        /** Number of initialized instances using the writer. Guarded by {@link #WRITERS}. */
+        private int references;
+
+        /** Pre-allocated direct buffer the entries are encoded to. */
+        private final ByteBuffer buffer;
+
+        /** Encoder of the entries. */
+        private final CharsetEncoder encoder;
+
+        /** Line builder reused for every entry. */
+        private final StringBuilder line;
+
+        /** Whether the writer is to keep running. */
+        private volatile boolean running;
+
+        /** Dropped count last reported. */
+        private long reportedDropped;
+
+        /** The open file. */
+        private FileChannel channel;
+
+        /**
+         * Constructor.
+         * 
+         * @param settings the instance whose settings apply
+         * @throws IOException if the file cannot be opened
+         */
+        private Writer(@Nonnull final AuthenticationEventAuditLog settings) throws IOException {
+            super(AuthenticationEventAuditLog.class.getSimpleName());
+            setDaemon(true);
+            file = settings.file;
+            batchSize = settings.batchSize;
+            maxFileSize = settings.maxFileSize;
+            maxHistory = settings.maxHistory;
+            drainInterval = settings.drainInterval;
+            ring = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(1, settings.capacity - 1)) << 1);
+            tail = new AtomicLong();
+            head = new AtomicLong();
+            dropped = new AtomicLong();
+            buffer = ByteBuffer.allocateDirect(settings.writeBufferSize);
+            encoder = StandardCharsets.UTF_8.newEncoder();
+            line = new StringBuilder(256);
+            running = true;
+            open();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void run() {
+            while (running) {
+                if (drain() == 0) {
+                    flush(true);
+                    // not interrupted on shutdown as that would close the channel
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(drainInterval));
+                }
+            }
+            while (drain() > 0) {
+                // drain what was published before shutdown
+            }
+            flush(true);
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                log.warn("Unable to close audit file {}", file, e);
+            }
+        }
+
+        /**
+         * Publish an entry to the ring buffer.
+         * 
+         * @param entry entry to publish
+         * @return true if the entry was published, false if it was dropped
+         */
+        private boolean offer(@Nonnull final Entry entry) {
+            final int mask = ring.length() - 1;
+            for (;;) {
+                final long sequence = tail.get();
+                if (sequence - head.get() > mask) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    ring.lazySet((int) sequence & mask, entry);
+                    return true;
+                }
+            }
+        }
+
+        /** Stop the writer and wait for the remaining entries to be written. */
+        private void shutdown() {
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Write a batch of entries from the ring buffer.
+         * 
+         * @return number of entries drained
+         */
+        private int drain() {
+            final int mask = ring.length() - 1;
+            int count = 0;
+            long sequence = head.get();
+            while (count < batchSize) {
+                final int index = (int) sequence & mask;
+                final Entry entry = ring.get(index);
+                if (entry == null) {
+                    // not published yet
+                    break;
+                }
+                ring.set(index, null);
+                head.lazySet(++sequence);
+                count++;
+                write(entry);
+            }
+            final long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                log.warn("Audit log overloaded, {} entries dropped in total", droppedNow);
+                reportedDropped = droppedNow;
+            }
+            return count;
+        }
+
+        /**
+         * Encode the entry to the buffer. The buffered entries are written out first if the entry does not fit, so the
+         * file is only rolled over between entries. An entry larger than the whole buffer is written out in parts.
+         * 
+         * @param entry entry to write
+         */
+        private void write(@Nonnull final Entry entry) {
+            line.setLength(0);
+            line.append(entry.time).append(SEPARATOR).append(entry.action).append(SEPARATOR).append(entry.eventId)
+                    .append(SEPARATOR).append(entry.subject).append(SEPARATOR)
+                    .append(entry.issuer == null ? "" : entry.issuer).append(SEPARATOR).append(entry.authTime)
+                    .append(SEPARATOR).append(entry.appliedCount).append(SEPARATOR)
+                    .append(entry.relyingPartyId == null ? "" : entry.relyingPartyId).append(SEPARATOR)
+                    .append(entry.reason == null ? "" : entry.reason).append('\n');
+            final int start = buffer.position();
+            CharBuffer chars = CharBuffer.wrap(line);
+            encoder.reset();
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow() && start > 0) {
+                buffer.position(start);
+                flush(true);
+                chars = CharBuffer.wrap(line);
+                encoder.reset();
+                result = encoder.encode(chars, buffer, true);
+            }
+            boolean split = false;
+            while (result.isOverflow()) {
+                flush(!split);
+                split = true;
+                result = encoder.encode(chars, buffer, true);
+            }
+            if (split) {
+                // the rest of the entry must not start the next file
+                flush(false);
+            }
+        }
+
+        /**
+         * Write the buffer out.
+         * 
+         * @param mayRollOver whether the buffer starts with an entry and the file may be rolled over first if it would
+         *            exceed the maximum size
+         */
+        private void flush(final boolean mayRollOver) {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            try {
+                if (mayRollOver && channel.size() > 0 && channel.size() + buffer.remaining() > maxFileSize) {
+                    try {
+                        rollOver();
+                    } catch (final IOException e) {
+                        log.error("Unable to roll over audit file {}, appending to it", file, e);
+                    }
+                }
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (final IOException e) {
+                log.error("Unable to write audit file {}", file, e);
+                dropped.incrementAndGet();
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Open the file for appending.
+         * 
+         * @throws IOException if the file cannot be opened
+         */
+        private void open() throws IOException {
+            final Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+
+        /**
+         * Close the file, shift the rolled over files by one and open a new file. The file is reopened even if
+         * shifting fails, in which case the entries are appended to the current file.
+         * 
+         * @throws IOException if rolling over fails
+         */
+        private void rollOver() throws IOException {
+            channel.close();
+            try {
+                if (maxHistory == 0) {
+                    Files.delete(file);
+                } else {
+                    Files.deleteIfExists(history(maxHistory));
+                    for (int i = maxHistory - 1; i > 0; i--) {
+                        final Path source = history(i);
+                        if (Files.exists(source)) {
+                            Files.move(source, history(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    }
+                    Files.move(file, history(1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                open();
+            }
+        }
+
+        /**
+         * Get the path of a rolled over file.
+         * 
+         * @param index index of the rolled over file
+         * @return path of the rolled over file
+         */
+        private Path history(final int index) {
+            return file.resolveSibling(file.getFileName() + "." + index);
+        }
+    }
+}
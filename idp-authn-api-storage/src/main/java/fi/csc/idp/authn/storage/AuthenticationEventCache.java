@@ -24,11 +24,32 @@
 package fi.csc.idp.authn.storage;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
@@ -37,20 +58,77 @@ import net.shibboleth.utilities.java.support.component.AbstractIdentifiableIniti
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
-import org.apache.commons.codec.digest.DigestUtils;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import org.opensaml.core.metrics.MetricsSupport;
 import org.opensaml.storage.StorageCapabilities;
 import org.opensaml.storage.StorageCapabilitiesEx;
 import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder.Operation;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder.Recording;
+import fi.csc.idp.authn.storage.AuthenticationEventTimings.Phase;
+
 /**
  * Manages authentication events in client-side and possibly back-side storage.
  * <p>
  * This class is thread-safe and uses a lock to prevent race conditions within the underlying store (lacking an atomic
  * "check and insert" operation).
  * </p>
+ * <p>
+ * The reference key of the user is derived by the current key strategy. To allow rotating the salt, references are
+ * also searched by the previous key strategies and moved under the current key when found.
+ * </p>
+ * <p>
+ * To migrate between storage backends the previous reference and event stores may be set. Entries missing from the
+ * current stores are then searched from the previous ones and moved to the current stores when found. Entries are
+ * written only to the current stores. The number of moved and missed entries tells when the previous stores can be
+ * retired.
+ * </p>
+ * <p>
+ * Events on server-side storage may also be kept in memory, written through on set. The copy is shared by the caches
+ * of the same id, and intended for deployments where a user is served by one node at a time. A copy is used only for
+ * the event the reference points to, and is read again from the event store once older than the local events lifetime.
+ * It is written to a snapshot file when the last of the caches is destroyed and loaded back in the background on
+ * initialization.
+ * </p>
+ * <p>
+ * Events on separate server-side storage may be located and set asynchronously on a bounded executor. References are
+ * always accessed on the calling thread as client-side storage is bound to the request. Concurrent locates of the
+ * same event from separate server-side storage share a single read, each caller given its own copy of the event.
+ * </p>
+ * <p>
+ * References to events on separate storage carry a summary of the event, see {@link AuthenticationEventSummary}. A
+ * locate may check the summary and skip reading an event that would be rejected anyway. The summary is only a filter,
+ * the usage of the event located is always that of the event store.
+ * </p>
+ * <p>
+ * The claims of an event do not change after it is created and are written once. Setting the event again, as done
+ * when it is applied, writes only its usage, the applied time and count, and extends the lifetime of the event
+ * without rewriting it. The usage is written to a separate small record, and the lifetime of the reference is
+ * extended without rewriting it. The first apply is written with the event instead, in one operation, and the usage
+ * record is created on the second. A reference carrying a summary is rewritten to keep the summary current.
+ * </p>
+ * <p>
+ * Records are written in one operation to a storage implementing {@link UpsertStorageService}. Otherwise the record is
+ * created or updated first depending on whether it is expected to exist, as known from the reference read before.
+ * Applying an event reuses the reference read by the locate.
+ * </p>
  */
 @ThreadSafeAfterInit
 public class AuthenticationEventCache extends AbstractIdentifiableInitializableComponent {
@@ -67,26 +145,154 @@ public class AuthenticationEventCache extends AbstractIdentifiableInitializableC
     /** cache context for authentication events . */
     private final static String EVENT_CTX = AuthenticationEventCache.class.getName() + "_EVENT_CTX";
 
+    /** cache context for usage of authentication events . */
+    private final static String USAGE_CTX = AuthenticationEventCache.class.getName() + "_USAGE_CTX";
+
+    /** Events kept in memory by the id of the cache. Guarded by the lock. */
+    private static final Map<String, LocalEventCache> LOCAL_EVENT_CACHES = new HashMap<>();
+
+    /** Outcome of an operation finding the event. */
+    private static final String OUTCOME_FOUND = "found";
+
+    /** Outcome of an operation not finding the event. */
+    private static final String OUTCOME_NOT_FOUND = "not_found";
+
+    /** Outcome of an operation storing the event. */
+    private static final String OUTCOME_STORED = "stored";
+
+    /** Outcome of an operation rejecting the event by its summary. */
+    private static final String OUTCOME_REJECTED = "rejected";
+
+    /** Outcome of acquiring the lock. */
+    private static final String OUTCOME_ACQUIRED = "acquired";
+
+    /** Outcome of a failed operation. */
+    private static final String OUTCOME_FAILED = "failed";
+
+    /** Metric name prefix of the storage migration counters. */
+    private static final String MIGRATION_METRIC_PREFIX = MetricRegistry.name("fi.csc.idp.authn.storage", "migration");
+
     /** Reference storage for the authentication cache. */
     private StorageService referenceStorage;
 
     /** Event storage for the authentication cache. By default Event store is Reference store. */
     private StorageService eventStorage;
 
+    /** Reference storage migrated from. */
+    @Nullable
+    private StorageService previousReferenceStorage;
+
+    /** Event storage migrated from. */
+    @Nullable
+    private StorageService previousEventStorage;
+
+    /** Number of references moved from the previous reference storage. */
+    @Nonnull
+    private final AtomicLong movedReferences;
+
+    /** Number of references searched but not found from the previous reference storage. */
+    @Nonnull
+    private final AtomicLong missedReferences;
+
+    /** Number of events moved from the previous event storage. */
+    @Nonnull
+    private final AtomicLong movedEvents;
+
+    /** Number of events searched but not found from the previous event storage. */
+    @Nonnull
+    private final AtomicLong missedEvents;
+
     /** Salt for hashing user to key. */
-    @NonnullAfterInit
+    @Nullable
     private String userSalt;
 
+    /** Previous salts for hashing user to key. */
+    @Nonnull
+    private Collection<String> previousUserSalts;
+
+    /** Strategy for deriving the current key of the user. By default salted hash of the user. */
+    @NonnullAfterInit
+    private Function<String, String> userKeyStrategy;
+
+    /** Strategies for deriving the keys the user may have been stored with before rotation, in order of preference. */
+    @Nonnull
+    private List<Function<String, String>> previousUserKeyStrategies;
+
     /** Lifetime of revocation entry. Default value: 7 days */
     @Positive
     @Duration
     private long expires;
 
+    /** Verifier whose limits bound the lifetime of the entries. */
+    @Nullable
+    private AuthenticationEventVerifier authenticationEventVerifier;
+
+    /** Supplier of the verifier of reloadable limits, overriding the verifier set if any. */
+    @Nullable
+    private Supplier<AuthenticationEventVerifier> authenticationEventVerifierSupplier;
+
+    /** Recorder of the operations. */
+    @Nullable
+    private AuthenticationEventRecorder recorder;
+
+    /** Maximum number of server-side events kept in memory. 0 disables. Default value: 0 */
+    @NonNegative
+    private int localEvents;
+
+    /** Time in ms an event kept in memory is served for before it is read again. Default value: 1 minute */
+    @Positive
+    @Duration
+    private long localEventsLifetime;
+
+    /** Snapshot file of the events kept in memory. */
+    @Nullable
+    private Path snapshotFile;
+
+    /** Events kept in memory, if enabled. */
+    @Nullable
+    private LocalEventCache localEventCache;
+
+    /** Maximum number of concurrent asynchronous event operations. Default value: 8 */
+    @Positive
+    private int asyncConcurrency;
+
+    /** Maximum number of queued asynchronous event operations, further ones run on the calling thread. Default: 1000 */
+    @Positive
+    private int asyncQueueSize;
+
+    /** Whether events are read and written asynchronously, i.e. they are on separate server-side storage. */
+    private boolean asyncEvents;
+
+    /** Whether references carry the summary of the event, i.e. events are on separate storage. */
+    private boolean referenceSummaries;
+
+    /** Reads of events from separate server-side storage in flight, by event id. */
+    @Nonnull
+    private final ConcurrentMap<String, SettableFuture<String>> eventsInFlight =
+            new ConcurrentHashMap<>();
+
+    /** Ids of the events being written asynchronously without holding the lock. */
+    @Nonnull
+    private final Set<String> eventsInWrite = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Executor of asynchronous event operations, if events are on separate server-side storage. */
+    @Nullable
+    private ListeningExecutorService asyncExecutor;
+
     /**
      * Constructor.
      */
     public AuthenticationEventCache() {
         expires = 7 * 24 * 60 * 60 * 1000;
+        previousUserSalts = Collections.emptyList();
+        previousUserKeyStrategies = Collections.emptyList();
+        movedReferences = new AtomicLong();
+        missedReferences = new AtomicLong();
+        movedEvents = new AtomicLong();
+        missedEvents = new AtomicLong();
+        localEventsLifetime = 60 * 1000;
+        asyncConcurrency = 8;
+        asyncQueueSize = 1000;
     }
 
     /**
@@ -100,11 +306,142 @@ public class AuthenticationEventCache extends AbstractIdentifiableInitializableC
                 "revocation cache entry expiration must be greater than 0");
     }
 
+    /**
+     * Set the verifier whose limits bound the lifetime of the entries. Entries expire once the event passes none of the
+     * limits, but not later than the entry expiration.
+     * 
+     * @param verifier verifier whose limits bound the lifetime of the entries
+     */
+    public void setAuthenticationEventVerifier(@Nullable final AuthenticationEventVerifier verifier) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        authenticationEventVerifier = verifier;
+    }
+
+    /**
+     * Set the supplier of the verifier of reloadable limits bounding the lifetime of the entries, overriding the
+     * verifier set.
+     * 
+     * @param supplier supplier of the verifier of reloadable limits
+     */
+    public void setAuthenticationEventVerifierSupplier(
+            @Nullable final Supplier<AuthenticationEventVerifier> supplier) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        authenticationEventVerifierSupplier = supplier;
+    }
+
+    /**
+     * Set the recorder of the operations.
+     * 
+     * @param operationRecorder recorder of the operations
+     */
+    public void setRecorder(@Nullable final AuthenticationEventRecorder operationRecorder) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        recorder = operationRecorder;
+    }
+
+    /**
+     * Set the salt for hashing user to key. Not used if key strategy is set.
+     * 
+     * @param salt salt for hashing user to key
+     */
     public void setUserSalt(String salt) {
         ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         userSalt = Constraint.isNotNull(salt, "User salt cannot be null");
     }
 
+    /**
+     * Set the previous salts for hashing user to key. References stored with these are moved under the current key.
+     * 
+     * @param salts previous salts for hashing user to key
+     */
+    public void setPreviousUserSalts(@Nullable final Collection<String> salts) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        if (salts == null) {
+            previousUserSalts = Collections.emptyList();
+        } else {
+            previousUserSalts = StringSupport.normalizeStringCollection(salts);
+        }
+    }
+
+    /**
+     * Set the strategy for deriving the current key of the user. Overrides the salt.
+     * 
+     * @param strategy strategy for deriving the current key of the user, null for salted hash
+     */
+    public void setUserKeyStrategy(@Nullable final Function<String, String> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        userKeyStrategy = strategy;
+    }
+
+    /**
+     * Set the strategies for deriving the keys the user may have been stored with before rotation. These are tried
+     * before the previous salts.
+     * 
+     * @param strategies strategies for deriving the previous keys of the user in order of preference
+     */
+    public void setPreviousUserKeyStrategies(@Nullable final List<Function<String, String>> strategies) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        if (strategies == null) {
+            previousUserKeyStrategies = Collections.emptyList();
+        } else {
+            previousUserKeyStrategies = new ArrayList<>(Constraint.noNullItems(strategies,
+                    "Previous user key strategies cannot contain null"));
+        }
+    }
+
+    /**
+     * Set the maximum number of server-side events kept in memory. 0 disables.
+     * 
+     * @param max maximum number of server-side events kept in memory
+     */
+    public void setLocalEvents(@NonNegative final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        localEvents = (int) Constraint.isGreaterThanOrEqual(0, max, "Local events must not be negative");
+    }
+
+    /**
+     * Set the time an event kept in memory is served for before it is read again from the event store. Bounds how long
+     * an event removed from the event store by another node may still be served by this node.
+     * 
+     * @param lifetime time in ms an event kept in memory is served for before it is read again
+     */
+    @Duration
+    public void setLocalEventsLifetime(@Positive @Duration final long lifetime) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        localEventsLifetime = Constraint.isGreaterThan(0, lifetime, "Local events lifetime must be greater than 0");
+    }
+
+    /**
+     * Set the snapshot file of the events kept in memory.
+     * 
+     * @param path snapshot file, null for no snapshot
+     */
+    public void setSnapshotFile(@Nullable final String path) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        final String trimmed = StringSupport.trimOrNull(path);
+        snapshotFile = trimmed == null ? null : Paths.get(trimmed);
+    }
+
+    /**
+     * Set the maximum number of concurrent asynchronous event operations.
+     * 
+     * @param concurrency maximum number of concurrent asynchronous event operations
+     */
+    public void setAsyncConcurrency(@Positive final int concurrency) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        asyncConcurrency = (int) Constraint.isGreaterThan(0, concurrency, "Async concurrency must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of queued asynchronous event operations. Further ones run on the calling thread.
+     * 
+     * @param size maximum number of queued asynchronous event operations
+     */
+    public void setAsyncQueueSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        asyncQueueSize = (int) Constraint.isGreaterThan(0, size, "Async queue size must be greater than 0");
+    }
+
     /**
      * Set the reference store for the cache.
      * 
@@ -129,89 +466,1285 @@ public class AuthenticationEventCache extends AbstractIdentifiableInitializableC
         eventStorage = Constraint.isNotNull(storageService, "StorageService cannot be null");
     }
 
+    /**
+     * Set the reference store migrated from. References not found from the reference store are searched from it and
+     * moved.
+     * 
+     * @param storageService reference store migrated from, null if not migrating
+     */
+    public void setPreviousReferenceStorage(@Nullable final StorageService storageService) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        previousReferenceStorage = storageService;
+    }
+
+    /**
+     * Set the event store migrated from. Events not found from the event store are searched from it and moved.
+     * 
+     * @param storageService event store migrated from, null if not migrating
+     */
+    public void setPreviousEventStorage(@Nullable final StorageService storageService) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        previousEventStorage = storageService;
+    }
+
+    /**
+     * Get the number of references moved from the previous reference store.
+     * 
+     * @return number of references moved
+     */
+    public long getMovedReferenceCount() {
+        return movedReferences.get();
+    }
+
+    /**
+     * Get the number of references searched but not found from the previous reference store.
+     * 
+     * @return number of references missed
+     */
+    public long getMissedReferenceCount() {
+        return missedReferences.get();
+    }
+
+    /**
+     * Get the number of events moved from the previous event store.
+     * 
+     * @return number of events moved
+     */
+    public long getMovedEventCount() {
+        return movedEvents.get();
+    }
+
+    /**
+     * Get the number of events searched but not found from the previous event store.
+     * 
+     * @return number of events missed
+     */
+    public long getMissedEventCount() {
+        return missedEvents.get();
+    }
+
     /** {@inheritDoc} */
     @Override
     public void doInitialize() throws ComponentInitializationException {
         if (referenceStorage == null) {
             throw new ComponentInitializationException("Reference StorageService cannot be null");
         }
-        if (userSalt == null) {
-            throw new ComponentInitializationException("User salt cannot be null");
+        if (userKeyStrategy == null) {
+            if (userSalt == null) {
+                throw new ComponentInitializationException("User salt cannot be null");
+            }
+            userKeyStrategy = new HashedUserKeyStrategy(userSalt);
+        }
+        if (!previousUserSalts.isEmpty()) {
+            final List<Function<String, String>> strategies = new ArrayList<>(previousUserKeyStrategies);
+            for (final String salt : previousUserSalts) {
+                strategies.add(new HashedUserKeyStrategy(salt));
+            }
+            previousUserKeyStrategies = strategies;
         }
         // By default Event store is Reference store.
         if (eventStorage == null) {
             eventStorage = referenceStorage;
         }
+        referenceSummaries = eventStorage != referenceStorage;
+        if (previousReferenceStorage == referenceStorage) {
+            previousReferenceStorage = null;
+        }
+        if (previousEventStorage == eventStorage) {
+            previousEventStorage = null;
+        }
+        final boolean serverSideEvents = eventStorage.getCapabilities() instanceof StorageCapabilitiesEx
+                && ((StorageCapabilitiesEx) eventStorage.getCapabilities()).isServerSide();
+        if (localEvents > 0) {
+            if (serverSideEvents) {
+                initializeLocalEvents();
+            } else {
+                log.warn("Event StorageService is not server-side, events are not kept in memory");
+            }
+        }
+        asyncEvents = serverSideEvents && eventStorage != referenceStorage;
+        if (asyncEvents) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(asyncConcurrency, asyncConcurrency, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(asyncQueueSize),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat(getId() + "-%d").build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            asyncExecutor = MoreExecutors.listeningDecorator(executor);
+        }
     }
 
-    /**
-     * Locates a authentication event for the user. The reference of the event is searched from client-side storage. The
-     * event itself may be on client-side or server-side storage.
-     * 
-     * @param userKey key to locate the event reference from cliennt-side storage
-     * @return authentication event if found, otherwise null.
-     */
-    @SuppressWarnings("rawtypes")
-    public AuthenticationEvent locate(@Nonnull @NotEmpty final String userKey) {
-        String key;
-        key = DigestUtils.sha256Hex(userKey + userSalt).substring(0, 64);
-        log.debug("User {} hashed to {}", userKey, key);
+    /** Attach to the events kept in memory, loading the snapshot in the background if first to do so. */
+    private void initializeLocalEvents() {
         lock.lock();
         try {
-            StorageRecord refEntry = referenceStorage.read(REF_CTX, key);
-            if (refEntry != null) {
-                StorageRecord eventEntry = eventStorage.read(EVENT_CTX, refEntry.getValue());
-                if (eventEntry != null) {
-                    try {
-                        AuthenticationEvent event = AuthenticationEvent.parse(eventEntry.getValue());
-                        return event;
-                    } catch (ParseException | net.minidev.json.parser.ParseException e) {
-                        log.error("Exception reading/writing to storage service {}", e);
-                    }
+            localEventCache = LOCAL_EVENT_CACHES.get(getId());
+            if (localEventCache == null) {
+                final LocalEventCache events = new LocalEventCache(localEvents, localEventsLifetime);
+                localEventCache = events;
+                LOCAL_EVENT_CACHES.put(getId(), events);
+                if (snapshotFile != null && Files.exists(snapshotFile)) {
+                    events.setLoading(true);
+                    final Thread loader = new Thread(new Runnable() {
+                        /** {@inheritDoc} */
+                        @Override
+                        public void run() {
+                            loadSnapshot(events);
+                        }
+                    }, AuthenticationEventCache.class.getSimpleName() + "-snapshot");
+                    loader.setDaemon(true);
+                    loader.start();
                 }
             }
-        } catch (IOException e) {
-            log.error("Exception reading/writing to storage service {}", e);
+            localEventCache.reference();
         } finally {
             lock.unlock();
         }
-        return null;
     }
 
     /**
-     * Sets a authentication event for the user. The reference of the event is stored to client-side storage. The event
-     * itself may be set to client-side or server-side storage.
+     * Load the snapshot file to the events kept in memory. Events set meanwhile are not replaced.
      * 
-     * @param userKey key to locate the event reference from cliennt-side storage
-     * @param value authentication event value to store
-     * @return
+     * @param events events kept in memory
      */
-    public boolean set(@Nonnull @NotEmpty final String userKey, @Nonnull @NotEmpty final AuthenticationEvent value) {
-        String key;
-        key = DigestUtils.sha256Hex(userKey + userSalt).substring(0, 64);
-        log.debug("User {} hashed to {}", userKey, key);
+    private void loadSnapshot(@Nonnull final LocalEventCache events) {
+        Map<String, LocalEventCache.Entry> entries = null;
+        try {
+            entries = LocalEventCache.readSnapshot(snapshotFile, System.currentTimeMillis());
+        } catch (final IOException e) {
+            log.warn("Unable to load snapshot {}", snapshotFile, e);
+        }
         lock.lock();
         try {
-            boolean success = referenceStorage.create(REF_CTX, key, value.getID(), System.currentTimeMillis() + expires)
-                    || referenceStorage.update(REF_CTX, key, value.getID(), System.currentTimeMillis() + expires);
-            if (!success) {
-                log.debug("Not able to create event reference");
-                return false;
+            if (entries != null) {
+                events.putAbsent(entries);
             }
-            success = eventStorage.create(EVENT_CTX, value.getID(), value.serialize(),
-                    System.currentTimeMillis() + expires)
-                    || eventStorage.update(EVENT_CTX, value.getID(), value.serialize(),
-                            System.currentTimeMillis() + expires);
-            if (!success) {
-                log.debug("Not able to create event ");
-                return false;
-            }
-            return success;
-        } catch (IOException e) {
-            log.error("Exception reading/writing to storage service, returning {}", e);
-            return false;
+            events.setLoading(false);
         } finally {
             lock.unlock();
         }
+        if (entries == null) {
+            return;
+        }
+        log.info("Loaded {} events from snapshot {}", entries.size(), snapshotFile);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        if (localEventCache != null) {
+            Map<String, LocalEventCache.Entry> entries = null;
+            lock.lock();
+            try {
+                if (localEventCache.release() == 0) {
+                    LOCAL_EVENT_CACHES.remove(getId());
+                    entries = new LinkedHashMap<>(localEventCache);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (entries != null && snapshotFile != null) {
+                try {
+                    LocalEventCache.writeSnapshot(snapshotFile, entries);
+                    log.info("Wrote {} events to snapshot {}", entries.size(), snapshotFile);
+                } catch (final IOException e) {
+                    log.warn("Unable to write snapshot {}", snapshotFile, e);
+                }
+            }
+            localEventCache = null;
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * Derives the storage key for the user.
+     * 
+     * @param userKey key to derive the storage key from
+     * @return storage key of the user
+     */
+    @Nonnull
+    @NotEmpty
+    public String deriveKey(@Nonnull @NotEmpty final String userKey) {
+        return userKeyStrategy.apply(userKey);
+    }
+
+    /**
+     * Searches the reference of the user by the previous keys. If found the reference is moved under the current key.
+     * Must be called holding the lock.
+     * 
+     * @param userKey key to derive the previous storage keys from
+     * @param key current storage key of the user
+     * @return reference entry if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private StorageRecord migrateReference(@Nonnull @NotEmpty final String userKey, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        for (final Function<String, String> strategy : previousUserKeyStrategies) {
+            final String previousKey = strategy.apply(userKey);
+            if (previousKey == null || previousKey.equals(key)) {
+                continue;
+            }
+            final StorageRecord refEntry = referenceStorage.read(REF_CTX, previousKey);
+            if (refEntry != null) {
+                log.debug("User {} located by previous key {}, moving reference to {}", userKey, previousKey, key);
+                if (referenceStorage.create(REF_CTX, key, refEntry.getValue(), refEntry.getExpiration())) {
+                    referenceStorage.delete(REF_CTX, previousKey);
+                }
+                return refEntry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Searches the entry from the previous store. If found the entry is moved to the current store. Must be called
+     * holding the lock.
+     * 
+     * @param from previous store
+     * @param to current store
+     * @param context storage context of the entry
+     * @param key storage key of the entry
+     * @param moved counter of moved entries
+     * @param missed counter of missed entries
+     * @return entry if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private StorageRecord migrateRecord(@Nonnull final StorageService from, @Nonnull final StorageService to,
+            @Nonnull final String context, @Nonnull final String key, @Nonnull final AtomicLong moved,
+            @Nonnull final AtomicLong missed) throws IOException {
+        final StorageRecord entry = from.read(context, key);
+        final String outcome;
+        if (entry == null) {
+            missed.incrementAndGet();
+            outcome = "missed";
+        } else {
+            log.debug("Moving entry {} of context {} from storage {} to {}", key, context, from.getId(), to.getId());
+            if (to.create(context, key, entry.getValue(), entry.getExpiration())) {
+                from.delete(context, key);
+            }
+            moved.incrementAndGet();
+            outcome = "moved";
+        }
+        final MetricRegistry registry = MetricsSupport.getMetricRegistry();
+        if (registry != null) {
+            final String kind = REF_CTX.equals(context) ? "references" : "events";
+            registry.counter(MetricRegistry.name(MIGRATION_METRIC_PREFIX, kind, outcome)).inc();
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the serialized event from memory, the event store or the previous event store. Must be called holding the
+     * lock.
+     * 
+     * @param eventId id of the event
+     * @return serialized event if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private String readEvent(@Nonnull final String eventId) throws IOException {
+        if (localEventCache != null) {
+            final String value = localEventCache.get(eventId, System.currentTimeMillis());
+            if (value != null) {
+                return value;
+            }
+        }
+        StorageRecord eventEntry = eventStorage.read(EVENT_CTX, eventId);
+        if (eventEntry == null && previousEventStorage != null) {
+            eventEntry = migrateRecord(previousEventStorage, eventStorage, EVENT_CTX, eventId, movedEvents,
+                    missedEvents);
+            if (eventEntry != null) {
+                migrateUsage(eventId);
+            }
+        }
+        if (eventEntry == null) {
+            return null;
+        }
+        final String value = withUsage(eventEntry.getValue(), readUsage(eventId));
+        if (localEventCache != null) {
+            localEventCache.put(eventId, value,
+                    eventEntry.getExpiration() == null ? Long.MAX_VALUE : eventEntry.getExpiration(),
+                    System.currentTimeMillis());
+        }
+        return value;
+    }
+
+    /**
+     * Moves the usage of the event from the previous event store, if any. Must be called holding the lock.
+     * 
+     * @param eventId id of the event
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    private void migrateUsage(@Nonnull final String eventId) throws IOException {
+        final StorageRecord usageEntry = previousEventStorage.read(USAGE_CTX, eventId);
+        if (usageEntry != null
+                && eventStorage.create(USAGE_CTX, eventId, usageEntry.getValue(), usageEntry.getExpiration())) {
+            previousEventStorage.delete(USAGE_CTX, eventId);
+        }
+    }
+
+    /**
+     * Reads the usage record of the event.
+     * 
+     * @param eventId id of the event
+     * @return usage record of the event, null if there is none
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private StorageRecord readUsage(@Nonnull final String eventId) throws IOException {
+        return eventStorage.read(USAGE_CTX, eventId);
+    }
+
+    /**
+     * Get the serialized event with its usage applied. The event is parsed and serialized again only if there is a
+     * usage record.
+     * 
+     * @param eventValue serialized event as written on creation
+     * @param usageEntry usage record of the event, if any
+     * @return serialized event with its current usage
+     */
+    @SuppressWarnings("rawtypes")
+    @Nonnull
+    private String withUsage(@Nonnull final String eventValue, @Nullable final StorageRecord usageEntry) {
+        if (usageEntry == null) {
+            return eventValue;
+        }
+        try {
+            final AuthenticationEvent event = AuthenticationEvent.parse(eventValue);
+            event.mergeUsage(usageEntry.getValue());
+            return event.serialize();
+        } catch (ParseException | net.minidev.json.parser.ParseException e) {
+            log.error("Exception parsing authentication event usage {}", e);
+            return eventValue;
+        }
+    }
+
+    /**
+     * Reads the reference of the user, searching the previous keys and the previous reference store if not found. Must
+     * be called holding the lock.
+     * 
+     * @param userKey key to derive the previous storage keys from
+     * @param key current storage key of the user
+     * @return reference entry if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private StorageRecord readReference(@Nonnull @NotEmpty final String userKey, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        StorageRecord refEntry = referenceStorage.read(REF_CTX, key);
+        if (refEntry == null && !previousUserKeyStrategies.isEmpty()) {
+            refEntry = migrateReference(userKey, key);
+        }
+        if (refEntry == null && previousReferenceStorage != null) {
+            refEntry = migrateRecord(previousReferenceStorage, referenceStorage, REF_CTX, key, movedReferences,
+                    missedReferences);
+        }
+        return refEntry;
+    }
+
+    /**
+     * Reads and parses the event. Takes the lock.
+     * 
+     * @param eventId id of the event
+     * @param timings accumulator of the phase timings, if recorded
+     * @return authentication event if found, otherwise null
+     */
+    @Nullable
+    private AuthenticationEvent locateEvent(@Nonnull final String eventId,
+            @Nullable final AuthenticationEventTimings timings) {
+        acquireLock();
+        try {
+            final String eventValue = readEvent(eventId, timings);
+            if (eventValue != null) {
+                return parseEvent(eventValue, timings);
+            }
+        } catch (IOException e) {
+            log.error("Exception reading/writing to storage service {}", e);
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the serialized event, recording the phase timings. Must be called holding the lock.
+     * 
+     * @param eventId id of the event
+     * @param timings accumulator of the phase timings, if recorded
+     * @return serialized event if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @Nullable
+    private String readEvent(@Nonnull final String eventId, @Nullable final AuthenticationEventTimings timings)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return readEvent(eventId);
+        } finally {
+            if (timings != null) {
+                timings.addSince(Phase.EVENT_READ, start);
+            }
+        }
+    }
+
+    /**
+     * Parses the serialized event, recording the phase timings.
+     * 
+     * @param eventValue serialized event
+     * @param timings accumulator of the phase timings, if recorded
+     * @return authentication event, null if the event is not parseable
+     */
+    @Nullable
+    private AuthenticationEvent parseEvent(@Nonnull final String eventValue,
+            @Nullable final AuthenticationEventTimings timings) {
+        final long start = System.nanoTime();
+        final Recording recording = begin(Operation.PARSE);
+        String outcome = OUTCOME_FAILED;
+        try {
+            final AuthenticationEvent event = AuthenticationEvent.parse(eventValue);
+            outcome = OUTCOME_FOUND;
+            return event;
+        } catch (ParseException | net.minidev.json.parser.ParseException e) {
+            log.error("Exception parsing authentication event {}", e);
+            return null;
+        } finally {
+            if (timings != null) {
+                timings.addSince(Phase.PARSE, start);
+            }
+            if (recording != null) {
+                recording.end(null, EVENT_CTX, outcome, eventValue.length());
+            }
+        }
+    }
+
+    /**
+     * Begin recording the operation.
+     * 
+     * @param operation the operation
+     * @return recording of the operation, null if the operation is not recorded
+     */
+    @Nullable
+    private Recording begin(@Nonnull final Operation operation) {
+        return recorder != null ? recorder.begin(operation) : null;
+    }
+
+    /** Acquire the lock, recording the wait if the lock is held by another thread. */
+    private void acquireLock() {
+        if (recorder == null) {
+            lock.lock();
+            return;
+        }
+        if (lock.tryLock()) {
+            return;
+        }
+        final Recording recording = recorder.begin(Operation.LOCK_WAIT);
+        lock.lock();
+        if (recording != null) {
+            recording.end(null, null, OUTCOME_ACQUIRED, 0);
+        }
+    }
+
+    /**
+     * Locates a authentication event for the user. The reference of the event is searched from client-side storage. The
+     * event itself may be on client-side or server-side storage. A reference whose event is missing is removed.
+     * 
+     * @param userKey key to locate the event reference from cliennt-side storage
+     * @return authentication event if found, otherwise null.
+     */
+    public AuthenticationEvent locate(@Nonnull @NotEmpty final String userKey) {
+        return locate(userKey, null);
+    }
+
+    /**
+     * Locates a authentication event for the user, recording the phase timings.
+     * 
+     * @param userKey key to locate the event reference from client-side storage
+     * @param timings accumulator of the phase timings, if recorded
+     * @return authentication event if found, otherwise null.
+     */
+    public AuthenticationEvent locate(@Nonnull @NotEmpty final String userKey,
+            @Nullable final AuthenticationEventTimings timings) {
+        return locate(userKey, timings, null);
+    }
+
+    /**
+     * Locates a authentication event for the user, recording the phase timings. If the reference carries a summary of
+     * the event, the event is read only if the summary passes the check.
+     * 
+     * @param userKey key to locate the event reference from client-side storage
+     * @param timings accumulator of the phase timings, if recorded
+     * @param summaryCheck check the summary of the event must pass for the event to be read, if any
+     * @return authentication event if found and not rejected by its summary, otherwise null.
+     */
+    @SuppressWarnings("rawtypes")
+    public AuthenticationEvent locate(@Nonnull @NotEmpty final String userKey,
+            @Nullable final AuthenticationEventTimings timings,
+            @Nullable final Predicate<AuthenticationEventSummary> summaryCheck) {
+        long start = System.nanoTime();
+        final String key = deriveKey(userKey);
+        log.debug("User {} hashed to {}", userKey, key);
+        if (timings != null) {
+            timings.addSince(Phase.HASHING, start);
+        }
+        final Recording recording = begin(Operation.LOCATE);
+        String context = REF_CTX;
+        String outcome = OUTCOME_FAILED;
+        AuthenticationEvent event = null;
+        int size = 0;
+        try {
+            final StorageRecord refEntry;
+            acquireLock();
+            try {
+                start = System.nanoTime();
+                refEntry = readReference(userKey, key);
+                if (timings != null) {
+                    timings.addSince(Phase.REFERENCE_READ, start);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (refEntry != null && !isRejected(refEntry, summaryCheck)) {
+                context = EVENT_CTX;
+                final LocatedEvent located;
+                if (asyncEvents && !lock.isHeldByCurrentThread()) {
+                    located = locateEventInFlight(key, refEntry, timings);
+                } else {
+                    acquireLock();
+                    try {
+                        located = locateEvent(key, refEntry, timings);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                if (located != null) {
+                    event = located.getEvent();
+                    size = located.getSize();
+                }
+            }
+            if (event != null) {
+                outcome = OUTCOME_FOUND;
+            } else {
+                outcome = refEntry != null && REF_CTX.equals(context) ? OUTCOME_REJECTED : OUTCOME_NOT_FOUND;
+            }
+        } catch (IOException e) {
+            log.error("Exception reading/writing to storage service {}", e);
+        }
+        if (recording != null) {
+            recording.end(EVENT_CTX.equals(context) ? eventStorage.getId() : referenceStorage.getId(), context,
+                    outcome, event != null ? size : 0);
+        }
+        return event;
+    }
+
+    /**
+     * Checks the summary carried by the reference, if any.
+     * 
+     * @param refEntry the reference read
+     * @param summaryCheck check the summary must pass, if any
+     * @return true if the summary fails the check, false if it passes or there is no summary or check
+     */
+    @SuppressWarnings("rawtypes")
+    private boolean isRejected(@Nonnull final StorageRecord refEntry,
+            @Nullable final Predicate<AuthenticationEventSummary> summaryCheck) {
+        if (summaryCheck == null) {
+            return false;
+        }
+        final AuthenticationEventSummary summary = AuthenticationEventSummary.parse(refEntry.getValue());
+        if (summary == null || summaryCheck.apply(summary)) {
+            return false;
+        }
+        log.debug("Event {} rejected by its summary, not read", summary.getID());
+        return true;
+    }
+
+    /**
+     * Reads and parses the event of the reference, removing the reference if the event is missing. Must be called
+     * holding the lock.
+     * 
+     * @param key storage key of the user
+     * @param refEntry the reference read
+     * @param timings accumulator of the phase timings, if recorded
+     * @return authentication event with the length of its serialized form if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private LocatedEvent locateEvent(@Nonnull final String key, @Nonnull final StorageRecord refEntry,
+            @Nullable final AuthenticationEventTimings timings) throws IOException {
+        return toLocatedEvent(locateEventValue(key, refEntry, timings), timings);
+    }
+
+    /**
+     * Reads the serialized event of the reference, removing the reference if the event is missing. The reference is
+     * not removed if the event is being written asynchronously, as the reference is written before the event may be.
+     * Must be called holding the lock.
+     * 
+     * @param key storage key of the user
+     * @param refEntry the reference read
+     * @param timings accumulator of the phase timings, if recorded
+     * @return serialized event if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private String locateEventValue(@Nonnull final String key, @Nonnull final StorageRecord refEntry,
+            @Nullable final AuthenticationEventTimings timings) throws IOException {
+        final String eventId = AuthenticationEventSummary.getEventId(refEntry.getValue());
+        // checked before the read, the id is removed only after the event is written
+        final boolean inWrite = eventsInWrite.contains(eventId);
+        final String eventValue = readEvent(eventId, timings);
+        if (eventValue == null && !inWrite && (localEventCache == null || !localEventCache.isLoading())) {
+            removeReference(key, refEntry);
+        }
+        return eventValue;
+    }
+
+    /**
+     * Parses the serialized event into an event of its own for the caller.
+     * 
+     * @param eventValue serialized event, if found
+     * @param timings accumulator of the phase timings, if recorded
+     * @return authentication event with the length of its serialized form if parsed, otherwise null
+     */
+    @Nullable
+    private LocatedEvent toLocatedEvent(@Nullable final String eventValue,
+            @Nullable final AuthenticationEventTimings timings) {
+        if (eventValue == null) {
+            return null;
+        }
+        final AuthenticationEvent event = parseEvent(eventValue, timings);
+        return event != null ? new LocatedEvent(event, eventValue.length()) : null;
+    }
+
+    /**
+     * Reads and parses the event of the reference, sharing the read with concurrent callers locating the same event.
+     * The first caller reads the event from the event store without holding the lock and publishes the serialized
+     * event, the others wait for it. Every caller, the first included, parses an event of its own, so no event
+     * instance is shared between callers. A missing event is checked again holding the lock before the reference is
+     * removed, as the event may be being set.
+     * 
+     * @param key storage key of the user
+     * @param refEntry the reference read
+     * @param timings accumulator of the phase timings, if recorded
+     * @return authentication event with the length of its serialized form if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private LocatedEvent locateEventInFlight(@Nonnull final String key, @Nonnull final StorageRecord refEntry,
+            @Nullable final AuthenticationEventTimings timings) throws IOException {
+        final String eventId = AuthenticationEventSummary.getEventId(refEntry.getValue());
+        final SettableFuture<String> flight = SettableFuture.create();
+        final ListenableFuture<String> leader = eventsInFlight.putIfAbsent(eventId, flight);
+        if (leader != null) {
+            log.debug("Sharing the read of event {} in flight", eventId);
+            final String shared;
+            final long start = System.nanoTime();
+            try {
+                shared = Uninterruptibles.getUninterruptibly(leader);
+            } catch (final ExecutionException e) {
+                return null;
+            } finally {
+                if (timings != null) {
+                    timings.addSince(Phase.EVENT_READ, start);
+                }
+            }
+            return toLocatedEvent(shared, timings);
+        }
+        String eventValue = null;
+        try {
+            final long start = System.nanoTime();
+            eventValue = readEventUnlocked(eventId);
+            if (timings != null) {
+                timings.addSince(Phase.EVENT_READ, start);
+            }
+            if (eventValue == null) {
+                acquireLock();
+                try {
+                    eventValue = locateEventValue(key, refEntry, timings);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            eventsInFlight.remove(eventId, flight);
+            flight.set(eventValue);
+        }
+        return toLocatedEvent(eventValue, timings);
+    }
+
+    /**
+     * Reads the serialized event from memory or the event store without holding the lock while accessing the event
+     * store. The lock is taken for the events kept in memory and for the previous event store.
+     * 
+     * @param eventId id of the event
+     * @return serialized event if found, otherwise null
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private String readEventUnlocked(@Nonnull final String eventId) throws IOException {
+        if (localEventCache != null) {
+            acquireLock();
+            try {
+                final String value = localEventCache.get(eventId, System.currentTimeMillis());
+                if (value != null) {
+                    return value;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        final StorageRecord eventEntry = eventStorage.read(EVENT_CTX, eventId);
+        if (eventEntry == null) {
+            return null;
+        }
+        final String value = withUsage(eventEntry.getValue(), readUsage(eventId));
+        if (localEventCache != null) {
+            acquireLock();
+            try {
+                localEventCache.put(eventId, value,
+                        eventEntry.getExpiration() == null ? Long.MAX_VALUE : eventEntry.getExpiration(),
+                        System.currentTimeMillis());
+            } finally {
+                lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes the reference whose event is missing, unless the reference has been changed meanwhile. Not called while
+     * the snapshot of the events kept in memory is being loaded. Must be called holding the lock.
+     * 
+     * @param key storage key of the user
+     * @param refEntry the reference read
+     */
+    @SuppressWarnings("rawtypes")
+    private void removeReference(@Nonnull final String key, @Nonnull final StorageRecord refEntry) {
+        log.debug("Event {} of reference {} is missing, removing the reference", refEntry.getValue(), key);
+        try {
+            referenceStorage.deleteWithVersion(refEntry.getVersion(), REF_CTX, key);
+        } catch (final VersionMismatchException e) {
+            log.debug("Reference {} changed meanwhile, not removed", key);
+        } catch (final IOException e) {
+            log.error("Exception reading/writing to storage service {}", e);
+        }
+    }
+
+    /**
+     * Locates a authentication event for the user asynchronously. The reference is read on the calling thread, as
+     * client-side storage is bound to the request. The event is read on the executor if it is on server-side storage.
+     * 
+     * @param userKey key to locate the event reference from client-side storage
+     * @return future of the authentication event, null if not found
+     */
+    @SuppressWarnings("rawtypes")
+    @Nonnull
+    public ListenableFuture<AuthenticationEvent> locateAsync(@Nonnull @NotEmpty final String userKey) {
+        final String key = deriveKey(userKey);
+        log.debug("User {} hashed to {}", userKey, key);
+        final StorageRecord refEntry;
+        acquireLock();
+        try {
+            refEntry = readReference(userKey, key);
+        } catch (IOException e) {
+            log.error("Exception reading/writing to storage service {}", e);
+            return Futures.immediateFuture(null);
+        } finally {
+            lock.unlock();
+        }
+        if (refEntry == null) {
+            return Futures.immediateFuture(null);
+        }
+        final String eventId = AuthenticationEventSummary.getEventId(refEntry.getValue());
+        if (!asyncEvents) {
+            return Futures.immediateFuture(locateEvent(eventId, null));
+        }
+        return asyncExecutor.submit(new Callable<AuthenticationEvent>() {
+            /** {@inheritDoc} */
+            @Override
+            public AuthenticationEvent call() {
+                return locateEvent(eventId, null);
+            }
+        });
+    }
+
+    /**
+     * Applies the authentication event and sets it for the user. If the same event is stored for the user, the stored
+     * event is applied instead so that concurrent applies of the event are not lost.
+     * 
+     * @param userKey key to set the event reference to client-side storage
+     * @param value authentication event to apply
+     * @return the applied event if it was set, otherwise null
+     */
+    @Nullable
+    public AuthenticationEvent apply(@Nonnull @NotEmpty final String userKey,
+            @Nonnull final AuthenticationEvent value) {
+        return apply(userKey, value, null);
+    }
+
+    /**
+     * Applies the authentication event and sets it for the user, recording the phase timings.
+     * 
+     * @param userKey key to set the event reference to client-side storage
+     * @param value authentication event to apply
+     * @param timings accumulator of the phase timings, if recorded
+     * @return the applied event if it was set, otherwise null
+     */
+    @Nullable
+    public AuthenticationEvent apply(@Nonnull @NotEmpty final String userKey,
+            @Nonnull final AuthenticationEvent value, @Nullable final AuthenticationEventTimings timings) {
+        acquireLock();
+        try {
+            final AuthenticationEvent stored = locate(userKey, timings);
+            final AuthenticationEvent event = stored != null && stored.getID().equals(value.getID()) ? stored : value;
+            event.apply();
+            // The reference just read is not read again
+            return set(userKey, event, timings, stored != null ? stored.getID() : null) ? event : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the expiration of the entries of the authentication event.
+     * 
+     * @param value authentication event
+     * @return expiration in ms since the epoch
+     */
+    private long getExpiration(@Nonnull final AuthenticationEvent value) {
+        final long expiration = System.currentTimeMillis() + expires;
+        final AuthenticationEventVerifier verifier = authenticationEventVerifierSupplier != null
+                ? authenticationEventVerifierSupplier.get() : authenticationEventVerifier;
+        if (verifier == null) {
+            return expiration;
+        }
+        return Math.min(expiration, verifier.getExpiration(value));
+    }
+
+    /**
+     * Sets a authentication event for the user. The reference of the event is stored to client-side storage. The event
+     * itself may be set to client-side or server-side storage. The event the reference pointed to before is removed.
+     * If the reference already points to the event, only the usage of the event is written.
+     * 
+     * @param userKey key to locate the event reference from cliennt-side storage
+     * @param value authentication event value to store
+     * @return
+     */
+    public boolean set(@Nonnull @NotEmpty final String userKey, @Nonnull @NotEmpty final AuthenticationEvent value) {
+        return set(userKey, value, null);
+    }
+
+    /**
+     * Sets a authentication event for the user, recording the phase timings.
+     * 
+     * @param userKey key to set the event reference to client-side storage
+     * @param value authentication event value to store
+     * @param timings accumulator of the phase timings, if recorded
+     * @return true if both the reference and the event were written
+     */
+    public boolean set(@Nonnull @NotEmpty final String userKey, @Nonnull final AuthenticationEvent value,
+            @Nullable final AuthenticationEventTimings timings) {
+        return set(userKey, value, timings, null);
+    }
+
+    /**
+     * Sets a authentication event for the user, recording the phase timings. The reference is read first unless the
+     * event it points to is already known.
+     * 
+     * @param userKey key to set the event reference to client-side storage
+     * @param value authentication event value to store
+     * @param timings accumulator of the phase timings, if recorded
+     * @param referenced id of the event the reference is known to point to, null to read the reference
+     * @return true if both the reference and the event were written
+     */
+    private boolean set(@Nonnull @NotEmpty final String userKey, @Nonnull final AuthenticationEvent value,
+            @Nullable final AuthenticationEventTimings timings, @Nullable final String referenced) {
+        long start = System.nanoTime();
+        final String key = deriveKey(userKey);
+        log.debug("User {} hashed to {}", userKey, key);
+        if (timings != null) {
+            timings.addSince(Phase.HASHING, start);
+        }
+        final long expiration = getExpiration(value);
+        final Recording recording = begin(Operation.SET);
+        String context = REF_CTX;
+        boolean success = false;
+        final String serialized = value.serialize();
+        acquireLock();
+        start = System.nanoTime();
+        try {
+            final String previous = referenced != null ? referenced : readReferencedId(key);
+            if (value.getID().equals(previous)) {
+                success = extendReference(key, value, expiration, previous);
+                if (!success) {
+                    log.debug("Not able to update event reference");
+                    return false;
+                }
+                context = EVENT_CTX;
+                success = writeUsage(value, serialized, expiration);
+                return success;
+            }
+            success = writeReference(key, toReferenceValue(value), expiration, previous);
+            if (!success) {
+                log.debug("Not able to create event reference");
+                return false;
+            }
+            context = EVENT_CTX;
+            // The event is new unless it has expired and is written again
+            success = writeEvent(value.getID(), serialized, expiration, false);
+            if (success) {
+                removeSuperseded(previous, value.getID());
+            }
+            return success;
+        } catch (IOException e) {
+            log.error("Exception reading/writing to storage service, returning {}", e);
+            success = false;
+            return false;
+        } finally {
+            lock.unlock();
+            if (timings != null) {
+                timings.addSince(Phase.WRITE_BACK, start);
+            }
+            if (recording != null) {
+                recording.end(EVENT_CTX.equals(context) ? eventStorage.getId() : referenceStorage.getId(), context,
+                        success ? OUTCOME_STORED : OUTCOME_FAILED, serialized.length());
+            }
+        }
+    }
+
+    /**
+     * Writes the reference to the reference store. Must be called holding the lock.
+     * 
+     * @param key storage key of the user
+     * @param referenceValue value of the reference, the event id possibly followed by its summary
+     * @param expiration expiration of the reference
+     * @param previous id of the event referenced before, if any
+     * @return true if the reference was written
+     * @throws IOException if accessing the storage fails
+     */
+    private boolean writeReference(@Nonnull final String key, @Nonnull final String referenceValue,
+            final long expiration, @Nullable final String previous) throws IOException {
+        return write(referenceStorage, REF_CTX, key, referenceValue, expiration, previous != null);
+    }
+
+    /**
+     * Writes the record in one operation if the storage supports upserts. Otherwise the record is updated or created,
+     * trying first the one expected to succeed. Must be called holding the lock.
+     * 
+     * @param storage storage to write the record to
+     * @param context context of the record
+     * @param key key of the record
+     * @param value value of the record
+     * @param expiration expiration of the record
+     * @param exists whether the record is expected to exist
+     * @return true if the record was written
+     * @throws IOException if accessing the storage fails
+     */
+    private static boolean write(@Nonnull final StorageService storage, @Nonnull final String context,
+            @Nonnull final String key, @Nonnull final String value, final long expiration, final boolean exists)
+            throws IOException {
+        if (storage instanceof UpsertStorageService) {
+            return ((UpsertStorageService) storage).upsert(context, key, value, expiration);
+        }
+        if (exists) {
+            return storage.update(context, key, value, expiration) || storage.create(context, key, value, expiration);
+        }
+        return storage.create(context, key, value, expiration) || storage.update(context, key, value, expiration);
+    }
+
+    /**
+     * Extends the lifetime of the reference to the event already referenced. The reference is rewritten only if it
+     * carries the summary of the event or has expired meanwhile. Must be called holding the lock.
+     * 
+     * @param key storage key of the user
+     * @param value authentication event referenced
+     * @param expiration expiration of the reference
+     * @param previous id of the event referenced
+     * @return true if the reference was extended or written
+     * @throws IOException if accessing the storage fails
+     */
+    private boolean extendReference(@Nonnull final String key, @Nonnull final AuthenticationEvent value,
+            final long expiration, @Nonnull final String previous) throws IOException {
+        if (!referenceSummaries && referenceStorage.updateExpiration(REF_CTX, key, expiration)) {
+            return true;
+        }
+        return writeReference(key, toReferenceValue(value), expiration, previous);
+    }
+
+    /**
+     * Writes the usage of the event and extends the lifetime of the event. On the first apply the whole event is
+     * written instead, in one operation instead of extending the event and creating the usage record. The whole event
+     * is written also if it has expired meanwhile. The usage is written to the event store also if the reference
+     * carries it in the summary, the event store is authoritative. Must be called holding the lock.
+     * 
+     * @param value authentication event
+     * @param serialized serialized event
+     * @param expiration expiration of the event and its usage
+     * @return true if the usage was written
+     * @throws IOException if accessing the storage fails
+     */
+    private boolean writeUsage(@Nonnull final AuthenticationEvent value, @Nonnull final String serialized,
+            final long expiration) throws IOException {
+        final String eventId = value.getID();
+        final int appliedCount = value.getAppliedCount();
+        if (appliedCount <= 1) {
+            return writeEvent(eventId, serialized, expiration, true);
+        }
+        if (!eventStorage.updateExpiration(EVENT_CTX, eventId, expiration)) {
+            log.debug("Event {} is missing, writing it", eventId);
+            return writeEvent(eventId, serialized, expiration, false);
+        }
+        // The usage record is created on the second apply, the first one is written with the event
+        if (!write(eventStorage, USAGE_CTX, eventId, value.serializeUsage(), expiration, appliedCount > 2)) {
+            log.debug("Not able to write usage of event {}", eventId);
+            return false;
+        }
+        if (localEventCache != null) {
+            localEventCache.put(eventId, serialized, expiration, System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Get the value of the reference to the event, carrying the summary of the event if the event is on separate
+     * storage.
+     * 
+     * @param value authentication event
+     * @return value of the reference
+     */
+    @Nonnull
+    private String toReferenceValue(@Nonnull final AuthenticationEvent value) {
+        return referenceSummaries ? AuthenticationEventSummary.of(value).toReferenceValue() : value.getID();
+    }
+
+    /**
+     * Reads the id of the event currently referenced. Must be called holding the lock.
+     * 
+     * @param key storage key of the user
+     * @return id of the event referenced, null if there is no reference
+     * @throws IOException if accessing the storage fails
+     */
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private String readReferencedId(@Nonnull final String key) throws IOException {
+        final StorageRecord refEntry = referenceStorage.read(REF_CTX, key);
+        return refEntry != null ? AuthenticationEventSummary.getEventId(refEntry.getValue()) : null;
+    }
+
+    /**
+     * Removes the event referenced before, if replaced by another event. Takes the lock.
+     * 
+     * @param previous id of the event referenced before, if any
+     * @param eventId id of the event now referenced
+     */
+    private void removeSuperseded(@Nullable final String previous, @Nonnull final String eventId) {
+        if (previous != null && !eventId.equals(previous)) {
+            log.debug("Event {} superseded by {}, removing it", previous, eventId);
+            removeEvent(previous);
+        }
+    }
+
+    /**
+     * Writes the event to the event store. Must be called holding the lock.
+     * 
+     * @param eventId id of the event
+     * @param serialized serialized event
+     * @param expiration expiration of the event
+     * @param exists whether the event is expected to exist
+     * @return true if the event was written
+     * @throws IOException if accessing the storage fails
+     */
+    private boolean writeEvent(@Nonnull final String eventId, @Nonnull final String serialized, final long expiration,
+            final boolean exists) throws IOException {
+        if (!write(eventStorage, EVENT_CTX, eventId, serialized, expiration, exists)) {
+            log.debug("Not able to create event ");
+            return false;
+        }
+        if (localEventCache != null) {
+            localEventCache.put(eventId, serialized, expiration, System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Writes the new event to the event store without holding the lock, as no other caller writes an event of the same
+     * id. The lock is taken for the events kept in memory.
+     * 
+     * @param eventId id of the event
+     * @param serialized serialized event
+     * @param expiration expiration of the event
+     * @return true if the event was written
+     * @throws IOException if accessing the storage fails
+     */
+    private boolean writeEventUnlocked(@Nonnull final String eventId, @Nonnull final String serialized,
+            final long expiration) throws IOException {
+        if (!write(eventStorage, EVENT_CTX, eventId, serialized, expiration, false)) {
+            log.debug("Not able to create event ");
+            return false;
+        }
+        if (localEventCache != null) {
+            acquireLock();
+            try {
+                localEventCache.put(eventId, serialized, expiration, System.currentTimeMillis());
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets a authentication event for the user asynchronously. The reference is written on the calling thread, as
+     * client-side storage is bound to the request. If the event is on server-side storage it is written on the
+     * executor in parallel, without holding the lock while accessing the event store. If writing the reference fails
+     * the event is removed. If writing the event fails the reference is left pointing to no event, which
+     * {@link #locate(String)} treats as no event and removes. The event the reference pointed to before is removed on
+     * the executor.
+     * 
+     * @param userKey key to set the event reference to client-side storage
+     * @param value authentication event value to store
+     * @return future of whether both the reference and the event were written
+     */
+    @Nonnull
+    public ListenableFuture<Boolean> setAsync(@Nonnull @NotEmpty final String userKey,
+            @Nonnull final AuthenticationEvent value) {
+        if (!asyncEvents) {
+            return Futures.immediateFuture(set(userKey, value));
+        }
+        final String key = deriveKey(userKey);
+        log.debug("User {} hashed to {}", userKey, key);
+        final long expiration = getExpiration(value);
+        final String eventId = value.getID();
+        final String serialized = value.serialize();
+        final String referenceValue = toReferenceValue(value);
+        eventsInWrite.add(eventId);
+        final ListenableFuture<Boolean> eventWritten = asyncExecutor.submit(new Callable<Boolean>() {
+            /** {@inheritDoc} */
+            @Override
+            public Boolean call() throws IOException {
+                try {
+                    return writeEventUnlocked(eventId, serialized, expiration);
+                } finally {
+                    eventsInWrite.remove(eventId);
+                }
+            }
+        });
+        boolean referenceWritten = false;
+        String previous = null;
+        acquireLock();
+        try {
+            previous = readReferencedId(key);
+            referenceWritten = writeReference(key, referenceValue, expiration, previous);
+        } catch (IOException e) {
+            log.error("Exception reading/writing to storage service, returning {}", e);
+        } finally {
+            lock.unlock();
+        }
+        if (referenceWritten && previous != null && !eventId.equals(previous)) {
+            final String superseded = previous;
+            asyncExecutor.execute(new Runnable() {
+                /** {@inheritDoc} */
+                @Override
+                public void run() {
+                    removeSuperseded(superseded, eventId);
+                }
+            });
+        }
+        ListenableFuture<Boolean> result = eventWritten;
+        if (!referenceWritten) {
+            log.debug("Not able to create event reference");
+            result = Futures.transform(eventWritten, new Function<Boolean, Boolean>() {
+                /** {@inheritDoc} */
+                @Override
+                public Boolean apply(final Boolean written) {
+                    if (written) {
+                        removeEvent(eventId);
+                    }
+                    return false;
+                }
+            }, asyncExecutor);
+        }
+        return Futures.catching(result, Exception.class, new Function<Exception, Boolean>() {
+            /** {@inheritDoc} */
+            @Override
+            public Boolean apply(final Exception e) {
+                log.error("Exception reading/writing to storage service, returning {}", e);
+                return false;
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Removes the event from the event store. Takes the lock.
+     * 
+     * @param eventId id of the event
+     */
+    private void removeEvent(@Nonnull final String eventId) {
+        acquireLock();
+        try {
+            eventStorage.delete(EVENT_CTX, eventId);
+            eventStorage.delete(USAGE_CTX, eventId);
+            if (localEventCache != null) {
+                localEventCache.remove(eventId);
+            }
+        } catch (IOException e) {
+            log.error("Exception reading/writing to storage service {}", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Authentication event located with the length of its serialized form as read from storage. */
+    private static final class LocatedEvent {
+
+        /** The event. */
+        @Nonnull
+        private final AuthenticationEvent event;
+
+        /** Length of the serialized event. */
+        private final int size;
+
+        /**
+         * Constructor.
+         * 
+         * @param locatedEvent the event
+         * @param serializedSize length of the serialized event
+         */
+        private LocatedEvent(@Nonnull final AuthenticationEvent locatedEvent, final int serializedSize) {
+            event = locatedEvent;
+            size = serializedSize;
+        }
+
+        /**
+         * Get the event.
+         * 
+         * @return the event
+         */
+        @Nonnull
+        private AuthenticationEvent getEvent() {
+            return event;
+        }
+
+        /**
+         * Get the length of the serialized event.
+         * 
+         * @return length of the serialized event
+         */
+        private int getSize() {
+            return size;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Recorder of storage authentication operations, for correlating them with other activity of the JVM in a profiler.
+ * Implementations decide per operation whether it is recorded, an operation not recorded costs a single call.
+ */
+public interface AuthenticationEventRecorder {
+
+    /** Operations recorded. */
+    enum Operation {
+
+        /** Locating the event of the user. */
+        LOCATE,
+
+        /** Setting the event of the user. */
+        SET,
+
+        /** Parsing the event. */
+        PARSE,
+
+        /** Waiting for the storage lock. */
+        LOCK_WAIT,
+
+        /** Verifying the event against the relying party limits. */
+        VERIFY
+    }
+
+    /** Recording of a single operation in progress. */
+    interface Recording {
+
+        /**
+         * End the recording of the operation.
+         * 
+         * @param store id of the storage service accessed, if any
+         * @param context storage context accessed or relying party verified for, if any
+         * @param outcome outcome of the operation
+         * @param size size of the event in characters, 0 if not known
+         */
+        void end(@Nullable String store, @Nullable String context, @Nonnull String outcome, int size);
+    }
+
+    /**
+     * Begin recording the operation.
+     * 
+     * @param operation the operation
+     * @return recording of the operation, null if the operation is not recorded
+     */
+    @Nullable
+    Recording begin(@Nonnull Operation operation);
+
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Compact summary of an authentication event carried in its reference next to the event id. The summary holds the
+ * values the limits are verified against, so that an event failing them can be rejected without reading the event
+ * from server-side storage. The event itself stays authoritative for the events passing.
+ * <p>
+ * The reference value is the event id followed by the issue time, authentication time, last applied time and applied
+ * count, separated by spaces. A reference value without them is the event id alone, as written before summaries.
+ * </p>
+ */
+@Immutable
+public final class AuthenticationEventSummary {
+
+    /** Separator of the values in the reference value. */
+    private static final char SEPARATOR = ' ';
+
+    /** Number of the summary values following the event id. */
+    private static final int VALUES = 4;
+
+    /** Id of the event. */
+    @Nonnull
+    @NotEmpty
+    private final String id;
+
+    /** Issue time of the event. */
+    private final long issuedAt;
+
+    /** Authentication time of the event. */
+    private final long authTime;
+
+    /** Time the event was last applied. */
+    private final long appliedTime;
+
+    /** Number of times the event has been applied. */
+    private final int appliedCount;
+
+    /**
+     * Constructor.
+     * 
+     * @param eventId id of the event
+     * @param iat issue time of the event
+     * @param authenticationTime authentication time of the event
+     * @param lastApplied time the event was last applied
+     * @param count number of times the event has been applied
+     */
+    private AuthenticationEventSummary(@Nonnull @NotEmpty final String eventId, final long iat,
+            final long authenticationTime, final long lastApplied, final int count) {
+        id = eventId;
+        issuedAt = iat;
+        authTime = authenticationTime;
+        appliedTime = lastApplied;
+        appliedCount = count;
+    }
+
+    /**
+     * Summarize the authentication event.
+     * 
+     * @param event authentication event
+     * @return summary of the event
+     */
+    @Nonnull
+    public static AuthenticationEventSummary of(@Nonnull final AuthenticationEvent event) {
+        return new AuthenticationEventSummary(event.getID(), event.getIssuedAt(), event.getAuthTime(),
+                event.getAppliedTime(), event.getAppliedCount());
+    }
+
+    /**
+     * Parse the summary from the reference value.
+     * 
+     * @param referenceValue value of the reference
+     * @return summary of the event, null if the reference carries no summary
+     */
+    @Nullable
+    public static AuthenticationEventSummary parse(@Nonnull final String referenceValue) {
+        final int[] separators = separators(referenceValue);
+        if (separators == null) {
+            return null;
+        }
+        try {
+            return new AuthenticationEventSummary(referenceValue.substring(0, separators[0]),
+                    Long.parseLong(referenceValue.substring(separators[0] + 1, separators[1])),
+                    Long.parseLong(referenceValue.substring(separators[1] + 1, separators[2])),
+                    Long.parseLong(referenceValue.substring(separators[2] + 1, separators[3])),
+                    Integer.parseInt(referenceValue.substring(separators[3] + 1)));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the id of the event referenced, whether the reference carries a summary or not.
+     * 
+     * @param referenceValue value of the reference
+     * @return id of the event
+     */
+    @Nonnull
+    public static String getEventId(@Nonnull final String referenceValue) {
+        final AuthenticationEventSummary summary = parse(referenceValue);
+        return summary != null ? summary.getID() : referenceValue;
+    }
+
+    /**
+     * Find the positions of the separators preceding the summary values, searching from the end.
+     * 
+     * @param referenceValue value of the reference
+     * @return positions of the separators, null if there are too few
+     */
+    @Nullable
+    private static int[] separators(@Nonnull final String referenceValue) {
+        final int[] separators = new int[VALUES];
+        int end = referenceValue.length();
+        for (int i = VALUES - 1; i >= 0; i--) {
+            final int separator = referenceValue.lastIndexOf(SEPARATOR, end - 1);
+            if (separator <= 0) {
+                return null;
+            }
+            separators[i] = separator;
+            end = separator;
+        }
+        return separators;
+    }
+
+    /**
+     * Get the id of the event.
+     * 
+     * @return id of the event
+     */
+    @Nonnull
+    @NotEmpty
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * Get the issue time of the event.
+     * 
+     * @return issue time in ms since the epoch
+     */
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    /**
+     * Get the authentication time of the event.
+     * 
+     * @return authentication time in ms since the epoch
+     */
+    public long getAuthTime() {
+        return authTime;
+    }
+
+    /**
+     * Get the time the event was last applied.
+     * 
+     * @return last applied time in ms since the epoch
+     */
+    public long getAppliedTime() {
+        return appliedTime;
+    }
+
+    /**
+     * Get the number of times the event has been applied.
+     * 
+     * @return number of times applied
+     */
+    public int getAppliedCount() {
+        return appliedCount;
+    }
+
+    /**
+     * Format the reference value carrying the summary.
+     * 
+     * @return value of the reference
+     */
+    @Nonnull
+    public String toReferenceValue() {
+        return new StringBuilder(id.length() + 48).append(id).append(SEPARATOR).append(issuedAt).append(SEPARATOR)
+                .append(authTime).append(SEPARATOR).append(appliedTime).append(SEPARATOR).append(appliedCount)
+                .toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return toReferenceValue();
+    }
+}
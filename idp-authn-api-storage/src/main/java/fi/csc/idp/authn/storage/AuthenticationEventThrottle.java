@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Token bucket throttle for storage authentication attempts keyed by the derived user key.
+ * <p>
+ * Each key owns a bucket of {@link #setCapacity(int)} tokens, one token is regained every
+ * {@link #setRefillInterval(long)} milliseconds. The buckets are kept in a striped table of access ordered maps bounded
+ * to {@link #setMaxEntries(int)} entries in total. A bucket that has refilled completely carries no information and is
+ * evicted when met at the idle end of its stripe. If a stripe is full the least recently used bucket is dropped.
+ * </p>
+ * <p>
+ * A bucket is stored as a single timestamp, the time at which it would be full again. Capacity of 0 disables the
+ * throttle.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class AuthenticationEventThrottle extends AbstractInitializableComponent {
+
+    /** Number of idle buckets inspected for eviction per acquire. */
+    private static final int EVICTION_SCAN = 2;
+
+    /** Number of tokens in a full bucket. 0 disables throttling. Default value: 0 */
+    @NonNegative
+    private int capacity;
+
+    /** Time in ms to regain one token. Default value: 1 minute */
+    @Positive
+    @Duration
+    private long refillInterval;
+
+    /** Maximum number of buckets kept in memory. Default value: 100000 */
+    @Positive
+    private int maxEntries;
+
+    /** Number of stripes, rounded up to power of two. Default value: 64 */
+    @Positive
+    private int stripes;
+
+    /** The striped bucket table. */
+    private Stripe[] table;
+
+    /** Constructor. */
+    public AuthenticationEventThrottle() {
+        refillInterval = 60 * 1000;
+        maxEntries = 100000;
+        stripes = 64;
+    }
+
+    /**
+     * Set the number of tokens in a full bucket i.e. the burst of attempts allowed. 0 disables throttling.
+     *
+     * @param size number of tokens in a full bucket
+     */
+    public void setCapacity(@NonNegative final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        capacity = (int) Constraint.isGreaterThanOrEqual(0, size, "Capacity must not be negative");
+    }
+
+    /**
+     * Set the time in ms to regain one token.
+     *
+     * @param interval time in ms to regain one token
+     */
+    @Duration
+    public void setRefillInterval(@Positive @Duration final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        refillInterval = Constraint.isGreaterThan(0, interval, "Refill interval must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of buckets kept in memory.
+     *
+     * @param max maximum number of buckets kept in memory
+     */
+    public void setMaxEntries(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxEntries = (int) Constraint.isGreaterThan(0, max, "Max entries must be greater than 0");
+    }
+
+    /**
+     * Set the number of stripes the table is split to. Rounded up to power of two.
+     *
+     * @param count number of stripes
+     */
+    public void setStripes(@Positive final int count) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        stripes = (int) Constraint.isGreaterThan(0, count, "Stripes must be greater than 0");
+    }
+
+    /**
+     * Whether the throttle is active.
+     *
+     * @return true if capacity is set
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        if (size > maxEntries) {
+            size = Integer.highestOneBit(maxEntries);
+        }
+        final int stripeEntries = Math.max(1, maxEntries / size);
+        table = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            table[i] = new Stripe(stripeEntries);
+        }
+    }
+
+    /**
+     * Consume a token for the key.
+     *
+     * @param key derived user key
+     * @return true if a token was available, false if the attempt is to be throttled
+     */
+    public boolean tryAcquire(@Nonnull @NotEmpty final String key) {
+        return tryAcquire(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Consume a token for the key at the given time.
+     *
+     * @param key derived user key
+     * @param now current time in ms
+     * @return true if a token was available, false if the attempt is to be throttled
+     */
+    boolean tryAcquire(@Nonnull @NotEmpty final String key, final long now) {
+        if (capacity == 0) {
+            return true;
+        }
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        final Stripe stripe = table[hash & (table.length - 1)];
+        synchronized (stripe) {
+            stripe.evictIdle(now);
+            final Bucket bucket = stripe.get(key);
+            final long fullAt = bucket == null || bucket.fullAt < now ? now : bucket.fullAt;
+            if (fullAt + refillInterval - now > capacity * refillInterval) {
+                return false;
+            }
+            if (bucket == null) {
+                stripe.put(key, new Bucket(fullAt + refillInterval));
+            } else {
+                bucket.fullAt = fullAt + refillInterval;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Get the number of buckets currently kept in memory.
+     *
+     * @return number of buckets
+     */
+    int size() {
+        int size = 0;
+        if (table != null) {
+            for (final Stripe stripe : table) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+        }
+        return size;
+    }
+
+    /** Token bucket of a single key. */
+    private static final class Bucket {
+
+        /** Time in ms at which the bucket is full again. */
+        private long fullAt;
+
+        /**
+         * Constructor.
+         *
+         * @param time time in ms at which the bucket is full again
+         */
+        private Bucket(final long time) {
+            fullAt = time;
+        }
+    }
+
+    /** Access ordered and bounded map of buckets. Guarded by its own monitor. */
+    private static final class Stripe extends LinkedHashMap<String, Bucket> {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = -1954312843071533640L;
+
+        /** Maximum number of buckets in the stripe. */
+        private final int maxStripeEntries;
+
+        /**
+         * Constructor.
+         *
+         * @param max maximum number of buckets in the stripe
+         */
+        private Stripe(final int max) {
+            super(16, 0.75f, true);
+            maxStripeEntries = max;
+        }
+
+        /**
+         * Remove full buckets from the least recently used end.
+         *
+         * @param now current time in ms
+         */
+        private void evictIdle(final long now) {
+            final Iterator<Bucket> iterator = values().iterator();
+            for (int i = 0; i < EVICTION_SCAN && iterator.hasNext(); i++) {
+                if (iterator.next().fullAt <= now) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Bucket> eldest) {
+            return size() > maxStripeEntries;
+        }
+    }
+}
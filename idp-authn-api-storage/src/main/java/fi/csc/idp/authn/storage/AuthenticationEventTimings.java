@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Accumulator of the time spent in the phases of storage authentication within one request. Phases may be recorded
+ * several times and from other threads, the times add up.
+ */
+@ThreadSafe
+public class AuthenticationEventTimings {
+
+    /** Phases of storage authentication. */
+    public enum Phase {
+
+        /** Deriving the storage key of the user. */
+        HASHING,
+
+        /** Reading the reference of the user. */
+        REFERENCE_READ,
+
+        /** Reading the event. */
+        EVENT_READ,
+
+        /** Parsing the event. */
+        PARSE,
+
+        /** Verifying the event against the limits. */
+        VERIFICATION,
+
+        /** Writing the reference and the event. */
+        WRITE_BACK;
+
+        /** Name of the phase in logs. */
+        private final String key = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * Get the name of the phase in logs.
+         * 
+         * @return name of the phase in logs
+         */
+        @Nonnull
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /** Time spent in each phase in ns, indexed by ordinal. */
+    @Nonnull
+    private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * Add time spent in the phase.
+     * 
+     * @param phase the phase
+     * @param elapsed time spent in ns
+     */
+    public void add(@Nonnull final Phase phase, final long elapsed) {
+        nanos.addAndGet(phase.ordinal(), elapsed);
+    }
+
+    /**
+     * Add time spent in the phase since the start.
+     * 
+     * @param phase the phase
+     * @param start start of the phase as given by {@link System#nanoTime()}
+     */
+    public void addSince(@Nonnull final Phase phase, final long start) {
+        add(phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Get time spent in the phase.
+     * 
+     * @param phase the phase
+     * @return time spent in ns
+     */
+    public long get(@Nonnull final Phase phase) {
+        return nanos.get(phase.ordinal());
+    }
+
+    /**
+     * Get time spent in all the phases.
+     * 
+     * @return time spent in ns
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < nanos.length(); i++) {
+            total += nanos.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Get the timings as space separated phase=microseconds pairs, total last.
+     * 
+     * @return the timings
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Phase phase : Phase.values()) {
+            builder.append(phase.getKey()).append('=').append(get(phase) / 1000).append(' ');
+        }
+        return builder.append("total=").append(getTotal() / 1000).toString();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.opensaml.core.metrics.MetricsSupport;
+
+import com.codahale.metrics.MetricRegistry;
+
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+/**
+ * Metrics of the verification outcomes of authentication events, exported through the metric registry of the IdP.
+ * <p>
+ * The outcomes, passed or the reason of rejection, are counted in total under {@link #METRIC_PREFIX}.outcome and per
+ * relying party under {@link #METRIC_PREFIX}.rp.&lt;relying party&gt;. The '.' and '/' of the relying party id are
+ * replaced by '_' so that the id remains a single component of the metric name. To bound the number of metrics in
+ * large federations the first {@link #setMaxRelyingParties(int)} relying parties seen are counted by their id and the
+ * rest under {@link #OTHER_RELYING_PARTIES}. For the events passing, the age of the authentication in seconds and the
+ * number of times the event had been applied are recorded in histograms.
+ * </p>
+ * <p>
+ * Nothing is recorded if the metric registry is not available.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class AuthenticationEventVerificationMetrics extends AbstractInitializableComponent {
+
+    /** Prefix of the metric names. */
+    @Nonnull
+    public static final String METRIC_PREFIX = MetricRegistry.name("fi.csc.idp.authn.storage", "verification");
+
+    /** Outcome of the events passing verification. */
+    @Nonnull
+    public static final String PASSED = "passed";
+
+    /** Label of the relying parties not counted by their id. */
+    @Nonnull
+    public static final String OTHER_RELYING_PARTIES = "other";
+
+    /** Label of the verifications without a relying party. */
+    @Nonnull
+    public static final String UNKNOWN_RELYING_PARTY = "unknown";
+
+    /** Maximum number of relying parties counted by their id. Default value: 100 */
+    @NonNegative
+    private int maxRelyingParties;
+
+    /** Labels of the relying parties counted by their id, by relying party id. */
+    @Nonnull
+    private final ConcurrentMap<String, String> relyingParties;
+
+    /** Number of relying parties counted by their id. */
+    @Nonnull
+    private final AtomicInteger relyingPartyCount;
+
+    /** Metric registry to use instead of the one of the IdP, for tests. */
+    @Nullable
+    private MetricRegistry metricRegistry;
+
+    /** Constructor. */
+    public AuthenticationEventVerificationMetrics() {
+        maxRelyingParties = 100;
+        relyingParties = new ConcurrentHashMap<>();
+        relyingPartyCount = new AtomicInteger();
+    }
+
+    /**
+     * Set the maximum number of relying parties counted by their id. 0 disables the counts per relying party.
+     * 
+     * @param max maximum number of relying parties counted by their id
+     */
+    public void setMaxRelyingParties(@NonNegative final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxRelyingParties = (int) Constraint.isGreaterThanOrEqual(0, max, "Max relying parties must not be negative");
+    }
+
+    /**
+     * Set the metric registry to use instead of the one of the IdP.
+     * 
+     * @param registry metric registry to use
+     */
+    void setMetricRegistry(@Nullable final MetricRegistry registry) {
+        metricRegistry = registry;
+    }
+
+    /**
+     * Record an event passing verification.
+     * 
+     * @param relyingPartyId id of the relying party, if any
+     * @param event the event passing
+     * @param now verification time in ms
+     */
+    public void recordPassed(@Nullable final String relyingPartyId, @Nonnull final AuthenticationEvent event,
+            final long now) {
+        final MetricRegistry registry = getMetricRegistry();
+        if (registry == null) {
+            return;
+        }
+        count(registry, relyingPartyId, PASSED);
+        registry.histogram(MetricRegistry.name(METRIC_PREFIX, "age")).update((now - event.getAuthTime()) / 1000);
+        registry.histogram(MetricRegistry.name(METRIC_PREFIX, "appliedCount")).update(event.getAppliedCount());
+    }
+
+    /**
+     * Record an event rejected by verification.
+     * 
+     * @param relyingPartyId id of the relying party, if any
+     * @param reason reason of the rejection
+     */
+    public void recordRejected(@Nullable final String relyingPartyId, @Nonnull final Reason reason) {
+        final MetricRegistry registry = getMetricRegistry();
+        if (registry != null) {
+            count(registry, relyingPartyId, reason.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Count the outcome in total and for the relying party.
+     * 
+     * @param registry metric registry
+     * @param relyingPartyId id of the relying party, if any
+     * @param outcome the outcome
+     */
+    private void count(@Nonnull final MetricRegistry registry, @Nullable final String relyingPartyId,
+            @Nonnull final String outcome) {
+        registry.counter(MetricRegistry.name(METRIC_PREFIX, "outcome", outcome)).inc();
+        if (maxRelyingParties > 0) {
+            registry.counter(MetricRegistry.name(METRIC_PREFIX, "rp", getRelyingPartyLabel(relyingPartyId), outcome))
+                    .inc();
+        }
+    }
+
+    /**
+     * Get the label the relying party is counted by.
+     * 
+     * @param relyingPartyId id of the relying party, if any
+     * @return the sanitized id of the relying party if counted by it, otherwise the label of the rest
+     */
+    @Nonnull
+    private String getRelyingPartyLabel(@Nullable final String relyingPartyId) {
+        if (relyingPartyId == null) {
+            return UNKNOWN_RELYING_PARTY;
+        }
+        final String label = relyingParties.get(relyingPartyId);
+        if (label != null) {
+            return label;
+        }
+        if (relyingPartyCount.incrementAndGet() > maxRelyingParties) {
+            relyingPartyCount.decrementAndGet();
+            return OTHER_RELYING_PARTIES;
+        }
+        final String sanitized = relyingPartyId.replace('.', '_').replace('/', '_');
+        final String previous = relyingParties.putIfAbsent(relyingPartyId, sanitized);
+        if (previous != null) {
+            relyingPartyCount.decrementAndGet();
+            return previous;
+        }
+        return sanitized;
+    }
+
+    /**
+     * Get the metric registry.
+     * 
+     * @return metric registry, null if not available
+     */
+    @Nullable
+    private MetricRegistry getMetricRegistry() {
+        return metricRegistry != null ? metricRegistry : MetricsSupport.getMetricRegistry();
+    }
+
+}
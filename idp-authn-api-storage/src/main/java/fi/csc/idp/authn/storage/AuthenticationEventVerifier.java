@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Verifies authentication events against the relying party limits. The default limits apply to relying parties
+ * without specific limits. If there are several limits for one relying party the first one is used.
+ */
+@ThreadSafe
+public class AuthenticationEventVerifier {
+
+    /** Reasons for rejecting an authentication event. */
+    public enum Reason {
+
+        /** Event has been issued before the not before time of the user. */
+        REVOKED,
+
+        /** Authentication is older than the authentication max age. */
+        MAX_AGE,
+
+        /** Event has not been applied within the last applied max age. */
+        ROLLING_WINDOW,
+
+        /** Event has been applied the max times. */
+        APPLIED_COUNT;
+    }
+
+    /** Default limits. */
+    @Nonnull
+    private final AuthenticationEventRelyingPartyLimits defaultLimits;
+
+    /** Relying party specific limits by relying party id. */
+    @Nonnull
+    private final Map<String, AuthenticationEventRelyingPartyLimits> relyingPartyLimits;
+
+    /**
+     * Constructor.
+     * 
+     * @param limits default limits
+     * @param rpLimits relying party specific limits
+     */
+    public AuthenticationEventVerifier(@Nonnull final AuthenticationEventRelyingPartyLimits limits,
+            @Nullable final List<AuthenticationEventRelyingPartyLimits> rpLimits) {
+        defaultLimits = Constraint.isNotNull(limits, "Default limits cannot be null");
+        if (rpLimits == null || rpLimits.isEmpty()) {
+            relyingPartyLimits = Collections.emptyMap();
+        } else {
+            final Map<String, AuthenticationEventRelyingPartyLimits> map = new HashMap<>();
+            for (final AuthenticationEventRelyingPartyLimits rpLimit : rpLimits) {
+                if (rpLimit != null && rpLimit.getRelyingPartyId() != null
+                        && !map.containsKey(rpLimit.getRelyingPartyId())) {
+                    map.put(rpLimit.getRelyingPartyId(), rpLimit);
+                }
+            }
+            relyingPartyLimits = map;
+        }
+    }
+
+    /**
+     * Get the default limits.
+     * 
+     * @return default limits
+     */
+    @Nonnull
+    public AuthenticationEventRelyingPartyLimits getDefaultLimits() {
+        return defaultLimits;
+    }
+
+    /**
+     * Get the limits applied for the relying party.
+     * 
+     * @param rpId relying party id
+     * @return relying party specific limits if any, otherwise default limits
+     */
+    @Nonnull
+    public AuthenticationEventRelyingPartyLimits getLimits(@Nullable final String rpId) {
+        if (rpId != null) {
+            final AuthenticationEventRelyingPartyLimits limits = relyingPartyLimits.get(rpId);
+            if (limits != null) {
+                return limits;
+            }
+        }
+        return defaultLimits;
+    }
+
+    /**
+     * Get the time after which the authentication event passes none of the limits regardless of the relying party.
+     * Only the time based limits are taken into account.
+     * 
+     * @param event authentication event
+     * @return time in ms since the epoch, {@link Long#MAX_VALUE} if the event does not expire by the limits
+     */
+    public long getExpiration(@Nonnull final AuthenticationEvent event) {
+        return getExpiration(event.getAuthTime(), event.getAppliedTime());
+    }
+
+    /**
+     * Get the time after which an authentication event of the given times passes none of the limits regardless of the
+     * relying party. Only the time based limits are taken into account.
+     * 
+     * @param authTime authentication time of the event
+     * @param appliedTime time the event was last applied
+     * @return time in ms since the epoch, {@link Long#MAX_VALUE} if the event does not expire by the limits
+     */
+    public long getExpiration(final long authTime, final long appliedTime) {
+        long expiration = getExpiration(defaultLimits, authTime, appliedTime);
+        for (final AuthenticationEventRelyingPartyLimits limits : relyingPartyLimits.values()) {
+            if (expiration == Long.MAX_VALUE) {
+                break;
+            }
+            expiration = Math.max(expiration, getExpiration(limits, authTime, appliedTime));
+        }
+        return expiration;
+    }
+
+    /**
+     * Get the time after which the authentication event passes none of the time based limits.
+     * 
+     * @param limits limits to apply
+     * @param authTime authentication time of the event
+     * @param appliedTime time the event was last applied
+     * @return time in ms since the epoch, {@link Long#MAX_VALUE} if the event does not expire by the limits
+     */
+    private static long getExpiration(@Nonnull final AuthenticationEventRelyingPartyLimits limits,
+            final long authTime, final long appliedTime) {
+        long expiration = Long.MAX_VALUE;
+        if (limits.getAuthenticationMaxAge() != 0) {
+            expiration = Math.min(expiration, authTime + limits.getAuthenticationMaxAge());
+        }
+        if (limits.getLastAppliedMaxAge() != 0) {
+            expiration = Math.min(expiration, appliedTime + limits.getLastAppliedMaxAge());
+        }
+        return expiration;
+    }
+
+    /**
+     * Verify the authentication event against the limits.
+     * 
+     * @param event authentication event to verify
+     * @param limits limits to verify against
+     * @param notBefore time in ms since the epoch for events issued before not be accepted, 0 for none
+     * @param now current time in ms since the epoch
+     * @return null if the event passes, otherwise the first failing reason
+     */
+    @Nullable
+    public Reason verify(@Nonnull final AuthenticationEvent event,
+            @Nonnull final AuthenticationEventRelyingPartyLimits limits, final long notBefore, final long now) {
+        return verify(limits, notBefore, now, event.getIssuedAt(), event.getAuthTime(), event.getAppliedTime(),
+                event.getAppliedCount());
+    }
+
+    /**
+     * Verify the summary of the authentication event against the limits.
+     * 
+     * @param summary summary of the authentication event to verify
+     * @param limits limits to verify against
+     * @param notBefore time in ms since the epoch for events issued before not be accepted, 0 for none
+     * @param now current time in ms since the epoch
+     * @return null if the summary passes, otherwise the first failing reason
+     */
+    @Nullable
+    public Reason verify(@Nonnull final AuthenticationEventSummary summary,
+            @Nonnull final AuthenticationEventRelyingPartyLimits limits, final long notBefore, final long now) {
+        return verify(limits, notBefore, now, summary.getIssuedAt(), summary.getAuthTime(), summary.getAppliedTime(),
+                summary.getAppliedCount());
+    }
+
+    /**
+     * Verify the authentication event values against the limits.
+     * 
+     * @param limits limits to verify against
+     * @param notBefore time in ms since the epoch for events issued before not be accepted, 0 for none
+     * @param now current time in ms since the epoch
+     * @param issuedAt issue time of the event
+     * @param authTime authentication time of the event
+     * @param appliedTime time the event was last applied
+     * @param appliedCount number of times the event has been applied
+     * @return null if the event passes, otherwise the first failing reason
+     */
+    @Nullable
+    public static Reason verify(@Nonnull final AuthenticationEventRelyingPartyLimits limits, final long notBefore,
+            final long now, final long issuedAt, final long authTime, final long appliedTime, final int appliedCount) {
+        // See if the event is revoked
+        if (notBefore > issuedAt) {
+            return Reason.REVOKED;
+        }
+        // Check authentication max age
+        if (limits.getAuthenticationMaxAge() != 0 && authTime + limits.getAuthenticationMaxAge() < now) {
+            return Reason.MAX_AGE;
+        }
+        // Check rolling window
+        if (limits.getLastAppliedMaxAge() != 0 && appliedTime + limits.getLastAppliedMaxAge() < now) {
+            return Reason.ROLLING_WINDOW;
+        }
+        // Check for max times used
+        if (limits.getAppliedTimesMax() != 0 && limits.getAppliedTimesMax() <= appliedCount) {
+            return Reason.APPLIED_COUNT;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.common.base.Function;
+
+/**
+ * Strategy deriving the storage key of the user by a keyed hash.
+ * <p>
+ * By default the key is the hex encoded SHA-256 digest of the user name concatenated with the salt, which is the key
+ * format used before key rotation was introduced. If an algorithm is set the key is the hex encoded MAC of the user
+ * name computed with the salt as the secret, for instance 'HmacSHA256'. The optional version prefix is prepended to
+ * the key to keep keys of different generations apart.
+ * </p>
+ */
+@ThreadSafe
+public class HashedUserKeyStrategy implements Function<String, String> {
+
+    /** Salt or secret used in hashing. */
+    @Nonnull
+    @NotEmpty
+    private final String salt;
+
+    /** MAC algorithm, null for salted SHA-256 digest. */
+    @Nullable
+    private final String algorithm;
+
+    /** Version prefix of the derived keys. */
+    @Nonnull
+    private final String prefix;
+
+    /** MAC instances per thread. */
+    @Nullable
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * Constructor for salted SHA-256 digest without prefix.
+     * 
+     * @param userSalt salt used in hashing
+     */
+    public HashedUserKeyStrategy(@Nonnull @NotEmpty final String userSalt) {
+        this(userSalt, null, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param secret salt or secret used in hashing
+     * @param macAlgorithm MAC algorithm, null for salted SHA-256 digest
+     * @param versionPrefix version prefix of the derived keys, may be null
+     */
+    public HashedUserKeyStrategy(@Nonnull @NotEmpty final String secret, @Nullable final String macAlgorithm,
+            @Nullable final String versionPrefix) {
+        salt = Constraint.isNotEmpty(secret, "Salt cannot be null or empty");
+        algorithm = macAlgorithm == null || macAlgorithm.trim().isEmpty() ? null : macAlgorithm.trim();
+        prefix = versionPrefix == null ? "" : versionPrefix;
+        if (algorithm == null) {
+            macs = null;
+        } else {
+            // Fail early on unknown algorithm.
+            newMac();
+            macs = new ThreadLocal<Mac>() {
+                @Override
+                protected Mac initialValue() {
+                    return newMac();
+                }
+            };
+        }
+    }
+
+    /**
+     * Create initialized MAC instance.
+     * 
+     * @return MAC instance
+     */
+    @Nonnull
+    private Mac newMac() {
+        try {
+            final Mac mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(salt.getBytes(StandardCharsets.UTF_8), algorithm));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Unable to initialize MAC algorithm " + algorithm, e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String apply(@Nonnull @NotEmpty final String userKey) {
+        if (macs == null) {
+            return prefix + DigestUtils.sha256Hex(userKey + salt);
+        }
+        return prefix + Hex.encodeHexString(macs.get().doFinal(userKey.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded in-memory copy of serialized server-side events by event id, least recently used evicted first. Not
+ * thread-safe, guarded by the lock of {@link AuthenticationEventCache}.
+ * <p>
+ * A copy is served only for the event the reference of the user points to, and only until its lifetime since it was
+ * last read from or written to the event store has passed. The event is then read again, so an event removed from the
+ * event store by another node is not served from memory longer than the lifetime.
+ * </p>
+ * <p>
+ * The entries can be written to a snapshot file and read back from it. The snapshot is a magic number and an entry
+ * count followed by the entries, each an expiration time and the length prefixed UTF-8 id and value.
+ * </p>
+ */
+final class LocalEventCache extends LinkedHashMap<String, LocalEventCache.Entry> {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 4153720573434389210L;
+
+    /** Magic number of the snapshot file. */
+    private static final int SNAPSHOT_MAGIC = 0x41455331;
+
+    /** Size of an entry in the snapshot file with empty id and value: expiration and the two lengths. */
+    private static final int MIN_ENTRY_SIZE = 16;
+
+    /** Maximum number of entries. */
+    private final int maxEntries;
+
+    /** Time in ms a copy is served for since it was confirmed from the event store. */
+    private final long lifetime;
+
+    /** Number of initialized caches using this copy. */
+    private int references;
+
+    /** Whether the snapshot is being loaded, events may be missing meanwhile. */
+    private boolean loading;
+
+    /**
+     * Constructor.
+     * 
+     * @param max maximum number of entries
+     * @param confirmedLifetime time in ms a copy is served for since it was confirmed from the event store
+     */
+    LocalEventCache(final int max, final long confirmedLifetime) {
+        super(16, 0.75f, true);
+        maxEntries = max;
+        lifetime = confirmedLifetime;
+    }
+
+    /**
+     * Increment the number of caches using this copy.
+     * 
+     * @return number of caches using this copy after increment
+     */
+    int reference() {
+        return ++references;
+    }
+
+    /**
+     * Decrement the number of caches using this copy.
+     * 
+     * @return number of caches using this copy after decrement
+     */
+    int release() {
+        return --references;
+    }
+
+    /**
+     * Get whether the snapshot is being loaded, events may be missing meanwhile.
+     * 
+     * @return whether the snapshot is being loaded
+     */
+    boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * Set whether the snapshot is being loaded.
+     * 
+     * @param snapshotLoading whether the snapshot is being loaded
+     */
+    void setLoading(final boolean snapshotLoading) {
+        loading = snapshotLoading;
+    }
+
+    /**
+     * Get the serialized event if it has not expired and was confirmed from the event store within the lifetime.
+     * 
+     * @param eventId id of the event
+     * @param now current time in ms
+     * @return serialized event, null if not found, expired or to be confirmed
+     */
+    @Nullable
+    String get(@Nonnull final String eventId, final long now) {
+        final Entry entry = get(eventId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiration <= now || now - entry.confirmed >= lifetime) {
+            remove(eventId);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Put the serialized event as read from or written to the event store.
+     * 
+     * @param eventId id of the event
+     * @param value serialized event
+     * @param expiration expiration of the event in ms since the epoch
+     * @param now current time in ms
+     */
+    void put(@Nonnull final String eventId, @Nonnull final String value, final long expiration, final long now) {
+        put(eventId, new Entry(value, expiration, now));
+    }
+
+    /**
+     * Put the entries that are not present.
+     * 
+     * @param entries entries to put
+     */
+    void putAbsent(@Nonnull final Map<String, Entry> entries) {
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!containsKey(entry.getKey())) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+    }
+
+    /**
+     * Write the entries to the snapshot file, replacing it.
+     * 
+     * @param file snapshot file
+     * @param entries entries to write
+     * @throws IOException if writing fails
+     */
+    static void writeSnapshot(@Nonnull final Path file, @Nonnull final Map<String, Entry> entries)
+            throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(entries.size());
+            for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeLong(entry.getValue().expiration);
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue().value);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the entries not expired from the snapshot file by memory-mapping it. The entries are taken as confirmed at
+     * the time of reading. The count and the lengths in the file are checked against the size of the file, a corrupt
+     * file fails as a whole.
+     * 
+     * @param file snapshot file
+     * @param now current time in ms
+     * @return entries read in the order of the file
+     * @throws IOException if reading fails or the file is not a valid snapshot
+     */
+    @Nonnull
+    static Map<String, Entry> readSnapshot(@Nonnull final Path file, final long now) throws IOException {
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot file " + file);
+            }
+            final int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / MIN_ENTRY_SIZE) {
+                throw new IOException("Invalid entry count " + count + " in snapshot file " + file);
+            }
+            for (int i = 0; i < count; i++) {
+                final long expiration = buffer.getLong();
+                final String eventId = readString(buffer);
+                final String value = readString(buffer);
+                if (expiration > now) {
+                    entries.put(eventId, new Entry(value, expiration, now));
+                }
+            }
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated snapshot file " + file, e);
+        }
+        return entries;
+    }
+
+    /**
+     * Write a length prefixed UTF-8 string.
+     * 
+     * @param out stream to write to
+     * @param value string to write
+     * @throws IOException if writing fails
+     */
+    private static void writeString(@Nonnull final DataOutputStream out, @Nonnull final String value)
+            throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a length prefixed UTF-8 string.
+     * 
+     * @param buffer buffer to read from
+     * @return string read
+     * @throws IOException if the length is negative or exceeds the bytes remaining
+     */
+    @Nonnull
+    private static String readString(@Nonnull final MappedByteBuffer buffer) throws IOException {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid string length " + length + " in snapshot file");
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Serialized event and its expiration. */
+    static final class Entry {
+
+        /** Serialized event. */
+        private final String value;
+
+        /** Expiration in ms since the epoch. */
+        private final long expiration;
+
+        /** Time in ms since the epoch the event was confirmed from the event store. */
+        private final long confirmed;
+
+        /**
+         * Constructor.
+         * 
+         * @param serialized serialized event
+         * @param time expiration in ms since the epoch
+         * @param confirmedTime time in ms since the epoch the event was confirmed from the event store
+         */
+        private Entry(@Nonnull final String serialized, final long time, final long confirmedTime) {
+            value = serialized;
+            expiration = time;
+            confirmed = confirmedTime;
+        }
+    }
+}
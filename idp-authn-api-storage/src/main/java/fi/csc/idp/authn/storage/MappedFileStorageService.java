@@ -0,0 +1,1183 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+import org.opensaml.storage.AbstractStorageService;
+import org.opensaml.storage.StorageCapabilitiesEx;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-side storage service keeping the records off-heap in a memory-mapped file, intended for authentication
+ * events of a single host.
+ * <p>
+ * The file holds a fixed number of fixed-width slots indexed by open addressing with linear probing. Deleting a record
+ * shifts the following records of the probe sequence back, so there are no tombstones. Each slot carries the version
+ * of its record. Once the table is filled to the maximum load, expired records are reclaimed and, if still needed, the
+ * records expiring first are evicted.
+ * </p>
+ * <p>
+ * The records survive restarts of the process. If the file exists, its number of slots and slot width apply, and its
+ * slots are validated and the used ones counted again when opened. A file whose slots are not consistent, as left by
+ * a process stopped in the middle of an operation, is cleared. The file is a cache of the records rather than a
+ * durable store: records are not flushed to disk on write and may be lost if the host stops.
+ * </p>
+ * <p>
+ * By default the file is locked to one service. If shared, several services of this and other processes on the same
+ * host may use the file, and every operation then takes an exclusive lock on the file as well.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class MappedFileStorageService extends AbstractStorageService
+        implements StorageCapabilitiesEx, UpsertStorageService {
+
+    /** Magic number of the file. */
+    private static final int MAGIC = 0x41455346;
+
+    /** Format version of the file. */
+    private static final int FORMAT = 1;
+
+    /** Size of the file header. */
+    private static final int FILE_HEADER = 64;
+
+    /** Offset of the number of slots in the file header. */
+    private static final int SLOTS_OFFSET = 8;
+
+    /** Offset of the slot width in the file header. */
+    private static final int SLOT_SIZE_OFFSET = 12;
+
+    /** Offset of the number of used slots in the file header. */
+    private static final int USED_OFFSET = 16;
+
+    /** Position of the file region locked for the lifetime of the service. */
+    private static final long LIFETIME_LOCK = 48;
+
+    /** Position of the file region locked for an operation. */
+    private static final long OPERATION_LOCK = 56;
+
+    /** Size of the slot header: state, hash, expiration, version, context, key and value lengths. */
+    private static final int SLOT_HEADER = 32;
+
+    /** Offset of the hash of the context and key in the slot. */
+    private static final int HASH_OFFSET = 4;
+
+    /** Offset of the expiration in the slot. */
+    private static final int EXPIRATION_OFFSET = 8;
+
+    /** Offset of the version in the slot. */
+    private static final int VERSION_OFFSET = 16;
+
+    /** Offset of the context length in the slot. */
+    private static final int CONTEXT_LENGTH_OFFSET = 24;
+
+    /** Offset of the key length in the slot. */
+    private static final int KEY_LENGTH_OFFSET = 26;
+
+    /** Offset of the value length in the slot. */
+    private static final int VALUE_LENGTH_OFFSET = 28;
+
+    /** State of an empty slot. */
+    private static final int EMPTY = 0;
+
+    /** State of a used slot. */
+    private static final int USED = 1;
+
+    /** Maximum load of the table in percent, reaching it evicts records to make room for new ones. */
+    private static final int MAX_LOAD = 75;
+
+    /** Number of slots searched for a record to evict. */
+    private static final int EVICTION_WINDOW = 64;
+
+    /** Number of slots reclaimed by the cleanup task holding the lock at a time. */
+    private static final int RECLAIM_CHUNK = 4096;
+
+    /** Files opened by the services of this process, by absolute path. Guarded by itself. */
+    @Nonnull
+    private static final Map<Path, OpenFile> OPEN_FILES = new HashMap<>();
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(MappedFileStorageService.class);
+
+    /** Lock of the table within the process. */
+    @Nonnull
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Path of the file. */
+    @NonnullAfterInit
+    private Path file;
+
+    /** Number of slots of a new file. Default value: 65536 */
+    @Positive
+    private int slots;
+
+    /** Width of a slot of a new file in bytes. Default value: 512 */
+    @Positive
+    private int slotSize;
+
+    /** Whether the file is shared by several processes. Default value: false */
+    private boolean shared;
+
+    /** The file opened by this process. */
+    private OpenFile openFile;
+
+    /** The mapped file. */
+    private MappedByteBuffer buffer;
+
+    /** First slot of the next eviction window. Guarded by the write lock. */
+    private int evictionCursor;
+
+    /** Constructor. */
+    public MappedFileStorageService() {
+        slots = 65536;
+        slotSize = 512;
+        setContextSize(255);
+        setKeySize(255);
+    }
+
+    /**
+     * Set the path of the file.
+     * 
+     * @param path path of the file
+     */
+    public void setFile(@Nonnull @NotEmpty final String path) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        file = Paths.get(Constraint.isNotNull(StringSupport.trimOrNull(path), "File cannot be null or empty"));
+    }
+
+    /**
+     * Set the number of slots of a new file, i.e. the maximum number of records.
+     * 
+     * @param number number of slots of a new file
+     */
+    public void setSlots(@Positive final int number) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        slots = (int) Constraint.isGreaterThan(0, number, "Number of slots must be greater than 0");
+    }
+
+    /**
+     * Set the width of a slot of a new file in bytes. A record must fit in a slot with a header of 32 bytes.
+     * 
+     * @param size width of a slot of a new file in bytes
+     */
+    public void setSlotSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        slotSize = (int) Constraint.isGreaterThan(SLOT_HEADER, size, "Slot size must be greater than 32");
+    }
+
+    /**
+     * Set whether the file is shared by several processes on the same host.
+     * 
+     * @param sharedFile whether the file is shared by several processes
+     */
+    public void setShared(final boolean sharedFile) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        shared = sharedFile;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isServerSide() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isClustered() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        if (file == null) {
+            throw new ComponentInitializationException("File cannot be null");
+        }
+        openFile = OpenFile.open(file, shared);
+        try {
+            openFile.operationLock.lock();
+            try (final FileLock initLock = openFile.channel.lock(OPERATION_LOCK, 8, false)) {
+                mapFile();
+            } finally {
+                openFile.operationLock.unlock();
+            }
+        } catch (final IOException e) {
+            closeFile();
+            throw new ComponentInitializationException("Unable to map file " + file, e);
+        } catch (final ComponentInitializationException e) {
+            closeFile();
+            throw e;
+        }
+        setValueSize(slotSize - SLOT_HEADER);
+        super.doInitialize();
+    }
+
+    /**
+     * Map the file, writing the header if the file is new and validating the slots if not. Must be called holding the
+     * operation lock.
+     * 
+     * @throws IOException if accessing the file fails
+     * @throws ComponentInitializationException if the file is not a storage file or too large
+     */
+    private void mapFile() throws IOException, ComponentInitializationException {
+        final FileChannel channel = openFile.channel;
+        final boolean created = channel.size() < FILE_HEADER;
+        if (created) {
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            header.putInt(0, MAGIC).putInt(4, FORMAT).putInt(SLOTS_OFFSET, slots).putInt(SLOT_SIZE_OFFSET, slotSize);
+            channel.write(header, 0);
+        } else {
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+                throw new ComponentInitializationException("File " + file + " is not a storage file");
+            }
+            if (header.getInt(SLOTS_OFFSET) <= 0 || header.getInt(SLOT_SIZE_OFFSET) <= SLOT_HEADER) {
+                throw new ComponentInitializationException("File " + file + " has an invalid header");
+            }
+            if (header.getInt(SLOTS_OFFSET) != slots || header.getInt(SLOT_SIZE_OFFSET) != slotSize) {
+                log.info("{} Using {} slots of {} bytes of the existing file {}", getLogPrefix(),
+                        header.getInt(SLOTS_OFFSET), header.getInt(SLOT_SIZE_OFFSET), file);
+            }
+            slots = header.getInt(SLOTS_OFFSET);
+            slotSize = header.getInt(SLOT_SIZE_OFFSET);
+        }
+        final long size = FILE_HEADER + (long) slots * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new ComponentInitializationException("File " + file + " would exceed 2GB");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!created) {
+            validate();
+        }
+        log.debug("{} {} file {} with {} slots of {} bytes", getLogPrefix(), created ? "Created" : "Opened", file,
+                slots, slotSize);
+    }
+
+    /**
+     * Validate the slots of an existing file and count the used ones again. Every used slot must hold a record that
+     * fits the slot and is found by its context and key. The file is cleared if not. Must be called holding the
+     * operation lock.
+     */
+    private void validate() {
+        int used = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            final int state = buffer.getInt(offset(slot));
+            if (state == EMPTY) {
+                continue;
+            }
+            if (state != USED || !isValid(slot)) {
+                log.warn("{} File {} has an invalid record in slot {}, clearing the file", getLogPrefix(), file, slot);
+                for (int cleared = 0; cleared < slots; cleared++) {
+                    buffer.putInt(offset(cleared), EMPTY);
+                }
+                setUsed(0);
+                return;
+            }
+            used++;
+        }
+        if (used != getUsed()) {
+            log.info("{} File {} has {} used slots, not {} as recorded", getLogPrefix(), file, used, getUsed());
+            setUsed(used);
+        }
+    }
+
+    /**
+     * Get whether the used slot holds a record fitting the slot that is found by its context and key.
+     * 
+     * @param slot the slot
+     * @return whether the slot holds a valid record
+     */
+    private boolean isValid(final int slot) {
+        final int offset = offset(slot);
+        final int contextLength = buffer.getShort(offset + CONTEXT_LENGTH_OFFSET) & 0xffff;
+        final int keyLength = buffer.getShort(offset + KEY_LENGTH_OFFSET) & 0xffff;
+        final int valueLength = buffer.getInt(offset + VALUE_LENGTH_OFFSET);
+        if (valueLength < 0 || (long) contextLength + keyLength + valueLength > slotSize - SLOT_HEADER) {
+            return false;
+        }
+        final byte[] contextAndKey = new byte[contextLength + keyLength];
+        final ByteBuffer data = buffer.duplicate();
+        data.position(offset + SLOT_HEADER);
+        data.get(contextAndKey);
+        final Slot probe = new Slot(new String(contextAndKey, 0, contextLength, StandardCharsets.UTF_8),
+                new String(contextAndKey, contextLength, keyLength, StandardCharsets.UTF_8));
+        return find(probe) == slot;
+    }
+
+    /** Release the file, closing it if no other service of this process uses it. */
+    private void closeFile() {
+        if (openFile != null) {
+            openFile.release(log);
+        }
+        openFile = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        lock.writeLock().lock();
+        try {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            closeFile();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        super.doDestroy();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected TimerTask getCleanupTask() {
+        return new TimerTask() {
+            /** {@inheritDoc} */
+            @Override
+            public void run() {
+                try {
+                    final int reclaimed = reclaimExpired(null);
+                    log.debug("{} Reclaimed {} expired records", getLogPrefix(), reclaimed);
+                } catch (final IOException e) {
+                    log.error("{} Unable to reclaim expired records", getLogPrefix(), e);
+                }
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return write(context, key, value, expiration, false);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean upsert(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        return write(context, key, value, expiration, true);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final Slot probe = new Slot(context, key);
+        final Lock operation = shared ? lock.writeLock() : lock.readLock();
+        final FileLock fileLock = lock(operation);
+        try {
+            final int slot = find(probe);
+            return slot >= 0 && !isExpired(slot, System.currentTimeMillis()) ? toRecord(slot) : null;
+        } finally {
+            unlock(operation, fileLock);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
+        final StorageRecord record = read(context, key);
+        if (record == null) {
+            return new Pair<>();
+        }
+        return new Pair<>(record.getVersion(), record.getVersion() == version ? null : record);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
+        try {
+            return update(null, context, key, value, expiration) != null;
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Version mismatch without a version", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public Long updateWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable @Positive final Long expiration) throws IOException, VersionMismatchException {
+        return update(version, context, key, value, expiration);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean updateExpiration(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable @Positive final Long expiration) throws IOException {
+        final Slot probe = new Slot(context, key);
+        final Lock operation = lock.writeLock();
+        final FileLock fileLock = lock(operation);
+        try {
+            final int slot = find(probe);
+            if (slot < 0 || isExpired(slot, System.currentTimeMillis())) {
+                return false;
+            }
+            buffer.putLong(offset(slot) + EXPIRATION_OFFSET, expiration != null ? expiration : 0);
+            return true;
+        } finally {
+            unlock(operation, fileLock);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean delete(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        try {
+            return delete(null, context, key);
+        } catch (final VersionMismatchException e) {
+            throw new IllegalStateException("Version mismatch without a version", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean deleteWithVersion(@Positive final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key) throws IOException, VersionMismatchException {
+        return delete(version, context, key);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void reap(@Nonnull @NotEmpty final String context) throws IOException {
+        reclaimExpired(context);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void updateContextExpiration(@Nonnull @NotEmpty final String context,
+            @Nullable @Positive final Long expiration) throws IOException {
+        final byte[] contextBytes = context.getBytes(StandardCharsets.UTF_8);
+        final long now = System.currentTimeMillis();
+        final Lock operation = lock.writeLock();
+        final FileLock fileLock = lock(operation);
+        try {
+            for (int slot = 0; slot < slots; slot++) {
+                if (buffer.getInt(offset(slot)) == USED && !isExpired(slot, now) && isContext(slot, contextBytes)) {
+                    buffer.putLong(offset(slot) + EXPIRATION_OFFSET, expiration != null ? expiration : 0);
+                }
+            }
+        } finally {
+            unlock(operation, fileLock);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void deleteContext(@Nonnull @NotEmpty final String context) throws IOException {
+        final Lock operation = lock.writeLock();
+        final FileLock fileLock = lock(operation);
+        try {
+            remove(context.getBytes(StandardCharsets.UTF_8), Long.MIN_VALUE, Long.MAX_VALUE, 0, slots);
+        } finally {
+            unlock(operation, fileLock);
+        }
+    }
+
+    /**
+     * Create the record, or replace the existing record if asked to.
+     * 
+     * @param context context of the record
+     * @param key key of the record
+     * @param value value of the record
+     * @param expiration expiration of the record
+     * @param replace whether an existing record is replaced
+     * @return true if the record was written, false if it exists and is not replaced
+     * @throws IOException if the record does not fit in a slot or accessing the file fails
+     */
+    private boolean write(@Nonnull final String context, @Nonnull final String key, @Nonnull final String value,
+            @Nullable final Long expiration, final boolean replace) throws IOException {
+        final Slot probe = new Slot(context, key);
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (probe.context.length + probe.key.length + valueBytes.length > slotSize - SLOT_HEADER) {
+            throw new IOException("Record of " + context + ":" + key + " does not fit in a slot");
+        }
+        final long now = System.currentTimeMillis();
+        final Lock operation = lock.writeLock();
+        final FileLock fileLock = lock(operation);
+        try {
+            int slot = find(probe);
+            if (slot >= 0 && !isExpired(slot, now)) {
+                if (!replace) {
+                    return false;
+                }
+                write(slot, probe, valueBytes, expiration, buffer.getLong(offset(slot) + VERSION_OFFSET) + 1);
+                return true;
+            }
+            if (slot < 0) {
+                if (getUsed() * 100L >= (long) slots * MAX_LOAD) {
+                    evict(now);
+                }
+                slot = free(probe);
+                setUsed(getUsed() + 1);
+            }
+            write(slot, probe, valueBytes, expiration, 1);
+            return true;
+        } finally {
+            unlock(operation, fileLock);
+        }
+    }
+
+    /**
+     * Update the record, checking the version if given.
+     * 
+     * @param version version the record must have, null to not check
+     * @param context context of the record
+     * @param key key of the record
+     * @param value new value of the record
+     * @param expiration new expiration of the record
+     * @return new version of the record, null if the record was not found
+     * @throws IOException if the record does not fit in a slot or accessing the file fails
+     * @throws VersionMismatchException if the version of the record differs
+     */
+    @Nullable
+    private Long update(@Nullable final Long version, @Nonnull final String context, @Nonnull final String key,
+            @Nonnull final String value, @Nullable final Long expiration)
+            throws IOException, VersionMismatchException {
+        final Slot probe = new Slot(context, key);
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (probe.context.length + probe.key.length + valueBytes.length > slotSize - SLOT_HEADER) {
+            throw new IOException("Record of " + context + ":" + key + " does not fit in a slot");
+        }
+        final Lock operation = lock.writeLock();
+        final FileLock fileLock = lock(operation);
+        try {
+            final int slot = find(probe);
+            if (slot < 0 || isExpired(slot, System.currentTimeMillis())) {
+                return null;
+            }
+            final long current = buffer.getLong(offset(slot) + VERSION_OFFSET);
+            if (version != null && version != current) {
+                throw new VersionMismatchException();
+            }
+            write(slot, probe, valueBytes, expiration, current + 1);
+            return current + 1;
+        } finally {
+            unlock(operation, fileLock);
+        }
+    }
+
+    /**
+     * Delete the record, checking the version if given.
+     * 
+     * @param version version the record must have, null to not check
+     * @param context context of the record
+     * @param key key of the record
+     * @return true if the record was deleted
+     * @throws IOException if accessing the file fails
+     * @throws VersionMismatchException if the version of the record differs
+     */
+    private boolean delete(@Nullable final Long version, @Nonnull final String context, @Nonnull final String key)
+            throws IOException, VersionMismatchException {
+        final Slot probe = new Slot(context, key);
+        final Lock operation = lock.writeLock();
+        final FileLock fileLock = lock(operation);
+        try {
+            final int slot = find(probe);
+            if (slot < 0) {
+                return false;
+            }
+            if (version != null && version != buffer.getLong(offset(slot) + VERSION_OFFSET)) {
+                throw new VersionMismatchException();
+            }
+            final boolean expired = isExpired(slot, System.currentTimeMillis());
+            remove(slot);
+            return !expired;
+        } finally {
+            unlock(operation, fileLock);
+        }
+    }
+
+    /**
+     * Remove the expired records of the context, or of all contexts. The table is processed in chunks, the lock
+     * released between them so that other operations are not stalled for the whole table. Records moved meanwhile may
+     * be left for the next run.
+     * 
+     * @param context context of the records, null for all contexts
+     * @return number of records removed
+     * @throws IOException if accessing the file fails
+     */
+    private int reclaimExpired(@Nullable final String context) throws IOException {
+        final byte[] contextBytes = context != null ? context.getBytes(StandardCharsets.UTF_8) : null;
+        final Lock operation = lock.writeLock();
+        int removed = 0;
+        for (int from = 0; from < slots; from += RECLAIM_CHUNK) {
+            final FileLock fileLock = lock(operation);
+            try {
+                removed += remove(contextBytes, System.currentTimeMillis(), Long.MIN_VALUE, from,
+                        Math.min(slots, from + RECLAIM_CHUNK));
+            } finally {
+                unlock(operation, fileLock);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove the records of the context, or of all contexts, expired at the time or expiring by the limit, within the
+     * range of slots. Must be called holding the lock.
+     * 
+     * @param context context of the records in UTF-8, null for all contexts
+     * @param now records expired at this time are removed
+     * @param limit records expiring at or before this time are removed
+     * @param from first slot of the range
+     * @param to slot following the range
+     * @return number of records removed
+     */
+    private int remove(@Nullable final byte[] context, final long now, final long limit, final int from,
+            final int to) {
+        int removed = 0;
+        int slot = from;
+        while (slot < to) {
+            if (buffer.getInt(offset(slot)) == USED && (context == null || isContext(slot, context))
+                    && (isExpired(slot, now) || expiration(slot) <= limit)) {
+                // the following record shifted back to the slot is checked next
+                remove(slot);
+                removed++;
+            } else {
+                slot++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Make room for a new record within a window of the table. The expired records of the window are removed, or if
+     * none has expired the record of the window expiring first. The window moves on at every call, so the work done
+     * holding the lock is bounded by the window instead of the table. Must be called holding the lock.
+     * 
+     * @param now current time
+     */
+    private void evict(final long now) {
+        final int window = Math.min(EVICTION_WINDOW, slots);
+        int slot = evictionCursor % slots;
+        int removed = 0;
+        int first = -1;
+        for (int i = 0; i < window; i++) {
+            if (buffer.getInt(offset(slot)) == USED) {
+                if (isExpired(slot, now)) {
+                    // the following record shifted back to the slot is checked next
+                    remove(slot);
+                    removed++;
+                    continue;
+                }
+                if (first < 0 || expiration(slot) < expiration(first)) {
+                    first = slot;
+                }
+            }
+            slot = (slot + 1) % slots;
+        }
+        evictionCursor = slot;
+        if (removed == 0 && first >= 0) {
+            log.debug("{} Storage file {} is full, evicting the record of slot {} expiring first", getLogPrefix(),
+                    file, first);
+            remove(first);
+        }
+    }
+
+    /**
+     * Find the slot of the record. Must be called holding the lock.
+     * 
+     * @param probe context and key of the record
+     * @return the slot, -1 if not found
+     */
+    private int find(@Nonnull final Slot probe) {
+        int slot = home(probe.hash);
+        for (int i = 0; i < slots; i++) {
+            final int offset = offset(slot);
+            if (buffer.getInt(offset) == EMPTY) {
+                return -1;
+            }
+            if (buffer.getInt(offset + HASH_OFFSET) == probe.hash && probe.matches(slot)) {
+                return slot;
+            }
+            slot = (slot + 1) % slots;
+        }
+        return -1;
+    }
+
+    /**
+     * Find a free slot for the record. Must be called holding the lock.
+     * 
+     * @param probe context and key of the record
+     * @return the slot
+     * @throws IOException if there are no free slots
+     */
+    private int free(@Nonnull final Slot probe) throws IOException {
+        int slot = home(probe.hash);
+        for (int i = 0; i < slots; i++) {
+            if (buffer.getInt(offset(slot)) == EMPTY) {
+                return slot;
+            }
+            slot = (slot + 1) % slots;
+        }
+        throw new IOException("Storage file " + file + " is full");
+    }
+
+    /**
+     * Remove the record of the slot, shifting the following records of the probe sequence back. Must be called
+     * holding the lock.
+     * 
+     * @param removed the slot
+     */
+    private void remove(final int removed) {
+        final byte[] moved = new byte[slotSize];
+        int hole = removed;
+        int slot = removed;
+        // A full table has no empty slot ending the probe sequence, the other slots are visited once at most
+        for (int i = 1; i < slots; i++) {
+            slot = (slot + 1) % slots;
+            final int offset = offset(slot);
+            if (buffer.getInt(offset) == EMPTY) {
+                break;
+            }
+            final int home = home(buffer.getInt(offset + HASH_OFFSET));
+            final boolean inPlace = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if (!inPlace) {
+                final ByteBuffer from = buffer.duplicate();
+                from.position(offset);
+                from.get(moved);
+                final ByteBuffer to = buffer.duplicate();
+                to.position(offset(hole));
+                to.put(moved);
+                hole = slot;
+            }
+        }
+        buffer.putInt(offset(hole), EMPTY);
+        setUsed(getUsed() - 1);
+    }
+
+    /**
+     * Write the record to the slot. Must be called holding the lock.
+     * 
+     * @param slot the slot
+     * @param probe context and key of the record
+     * @param value value of the record
+     * @param expiration expiration of the record
+     * @param version version of the record
+     */
+    private void write(final int slot, @Nonnull final Slot probe, @Nonnull final byte[] value,
+            @Nullable final Long expiration, final long version) {
+        final int offset = offset(slot);
+        final ByteBuffer data = buffer.duplicate();
+        data.position(offset + HASH_OFFSET);
+        data.putInt(probe.hash).putLong(expiration != null ? expiration : 0).putLong(version);
+        data.putShort((short) probe.context.length).putShort((short) probe.key.length).putInt(value.length);
+        data.put(probe.context).put(probe.key).put(value);
+        buffer.putInt(offset, USED);
+    }
+
+    /**
+     * Read the record of the slot. Must be called holding the lock.
+     * 
+     * @param slot the slot
+     * @return the record
+     */
+    @Nonnull
+    private StorageRecord toRecord(final int slot) {
+        final int offset = offset(slot);
+        final int skip = (buffer.getShort(offset + CONTEXT_LENGTH_OFFSET) & 0xffff)
+                + (buffer.getShort(offset + KEY_LENGTH_OFFSET) & 0xffff);
+        final byte[] value = new byte[buffer.getInt(offset + VALUE_LENGTH_OFFSET)];
+        final ByteBuffer data = buffer.duplicate();
+        data.position(offset + SLOT_HEADER + skip);
+        data.get(value);
+        final long expiration = buffer.getLong(offset + EXPIRATION_OFFSET);
+        return new MappedRecord(new String(value, StandardCharsets.UTF_8), expiration != 0 ? expiration : null,
+                buffer.getLong(offset + VERSION_OFFSET));
+    }
+
+    /**
+     * Get whether the record of the slot belongs to the context. Must be called holding the lock.
+     * 
+     * @param slot the slot
+     * @param context context in UTF-8
+     * @return whether the record belongs to the context
+     */
+    private boolean isContext(final int slot, @Nonnull final byte[] context) {
+        final int offset = offset(slot);
+        if ((buffer.getShort(offset + CONTEXT_LENGTH_OFFSET) & 0xffff) != context.length) {
+            return false;
+        }
+        for (int i = 0; i < context.length; i++) {
+            if (buffer.get(offset + SLOT_HEADER + i) != context[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get whether the record of the slot has expired. Must be called holding the lock.
+     * 
+     * @param slot the slot
+     * @param now current time
+     * @return whether the record has expired
+     */
+    private boolean isExpired(final int slot, final long now) {
+        final long expiration = buffer.getLong(offset(slot) + EXPIRATION_OFFSET);
+        return expiration != 0 && expiration <= now;
+    }
+
+    /**
+     * Get the expiration of the record of the slot, {@link Long#MAX_VALUE} if it does not expire. Must be called
+     * holding the lock.
+     * 
+     * @param slot the slot
+     * @return expiration of the record
+     */
+    private long expiration(final int slot) {
+        final long expiration = buffer.getLong(offset(slot) + EXPIRATION_OFFSET);
+        return expiration != 0 ? expiration : Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the number of used slots. Must be called holding the lock.
+     * 
+     * @return number of used slots
+     */
+    private int getUsed() {
+        return buffer.getInt(USED_OFFSET);
+    }
+
+    /**
+     * Set the number of used slots. Must be called holding the lock.
+     * 
+     * @param used number of used slots
+     */
+    private void setUsed(final int used) {
+        buffer.putInt(USED_OFFSET, used);
+    }
+
+    /**
+     * Get the position of the slot in the file.
+     * 
+     * @param slot the slot
+     * @return position of the slot
+     */
+    private int offset(final int slot) {
+        return FILE_HEADER + slot * slotSize;
+    }
+
+    /**
+     * Get the first slot of the probe sequence of the hash.
+     * 
+     * @param hash hash of the context and key
+     * @return the first slot
+     */
+    private int home(final int hash) {
+        return (hash & Integer.MAX_VALUE) % slots;
+    }
+
+    /**
+     * Take the lock, and the lock of the file if shared.
+     * 
+     * @param operation lock within the process
+     * @return lock of the file, null if not shared
+     * @throws IOException if locking the file fails
+     */
+    @Nullable
+    private FileLock lock(@Nonnull final Lock operation) throws IOException {
+        operation.lock();
+        if (buffer == null) {
+            operation.unlock();
+            throw new IOException("Storage file " + file + " is closed");
+        }
+        if (!shared) {
+            return null;
+        }
+        // File locks are held by the process, the services of this process take turns on them
+        openFile.operationLock.lock();
+        try {
+            return openFile.channel.lock(OPERATION_LOCK, 8, false);
+        } catch (final IOException | RuntimeException e) {
+            openFile.operationLock.unlock();
+            operation.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Release the lock, and the lock of the file if shared.
+     * 
+     * @param operation lock within the process
+     * @param fileLock lock of the file, if shared
+     * @throws IOException if unlocking the file fails
+     */
+    private void unlock(@Nonnull final Lock operation, @Nullable final FileLock fileLock) throws IOException {
+        try {
+            if (fileLock != null) {
+                try {
+                    fileLock.release();
+                } finally {
+                    openFile.operationLock.unlock();
+                }
+            }
+        } finally {
+            operation.unlock();
+        }
+    }
+
+    /**
+     * Get a prefix for log messages.
+     * 
+     * @return prefix for log messages
+     */
+    @Nonnull
+    private String getLogPrefix() {
+        return "MappedFileStorageService " + getId() + ":";
+    }
+
+    /**
+     * File opened by the services of this process. The channel and the locks on the file are shared by the services,
+     * as closing any channel of the file may release all the locks of the process on it.
+     */
+    private static final class OpenFile {
+
+        /** Absolute path of the file. */
+        @Nonnull
+        private final Path path;
+
+        /** Whether the file is shared by several services. */
+        private final boolean shared;
+
+        /** Channel of the file. */
+        @Nonnull
+        private final FileChannel channel;
+
+        /** Lock held on the file while the services of this process use it. */
+        @Nonnull
+        private final FileLock lifetimeLock;
+
+        /** Lock the services of this process take before the operation lock of the file. */
+        @Nonnull
+        private final Lock operationLock = new ReentrantLock();
+
+        /** Number of services using the file. Guarded by {@link #OPEN_FILES}. */
+        private int references;
+
+        /**
+         * Constructor.
+         * 
+         * @param filePath absolute path of the file
+         * @param sharedFile whether the file is shared by several services
+         * @param fileChannel channel of the file
+         * @param fileLock lock held on the file while the services of this process use it
+         */
+        private OpenFile(@Nonnull final Path filePath, final boolean sharedFile,
+                @Nonnull final FileChannel fileChannel, @Nonnull final FileLock fileLock) {
+            path = filePath;
+            shared = sharedFile;
+            channel = fileChannel;
+            lifetimeLock = fileLock;
+        }
+
+        /**
+         * Open the file for a service, or use the file already opened by another service of this process.
+         * 
+         * @param file path of the file
+         * @param shared whether the file is shared by several services
+         * @return the opened file
+         * @throws ComponentInitializationException if the file is in use or cannot be opened
+         */
+        @Nonnull
+        private static OpenFile open(@Nonnull final Path file, final boolean shared)
+                throws ComponentInitializationException {
+            final Path path = file.toAbsolutePath().normalize();
+            synchronized (OPEN_FILES) {
+                OpenFile openFile = OPEN_FILES.get(path);
+                if (openFile != null) {
+                    if (!shared || !openFile.shared) {
+                        throw new ComponentInitializationException("File " + file + " is in use by another service");
+                    }
+                } else {
+                    FileChannel channel = null;
+                    try {
+                        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                        final FileLock lifetimeLock = channel.tryLock(LIFETIME_LOCK, 8, shared);
+                        if (lifetimeLock == null) {
+                            throw new ComponentInitializationException("File " + file
+                                    + " is in use by another process");
+                        }
+                        openFile = new OpenFile(path, shared, channel, lifetimeLock);
+                    } catch (final IOException | OverlappingFileLockException e) {
+                        close(channel);
+                        throw new ComponentInitializationException("Unable to open file " + file, e);
+                    } catch (final ComponentInitializationException e) {
+                        close(channel);
+                        throw e;
+                    }
+                    OPEN_FILES.put(path, openFile);
+                }
+                openFile.references++;
+                return openFile;
+            }
+        }
+
+        /**
+         * Release the file for a service, closing it once no service of this process uses it.
+         * 
+         * @param log logger of the service
+         */
+        private void release(@Nonnull final Logger log) {
+            synchronized (OPEN_FILES) {
+                if (--references > 0) {
+                    return;
+                }
+                OPEN_FILES.remove(path);
+            }
+            try {
+                lifetimeLock.release();
+                channel.close();
+            } catch (final IOException e) {
+                log.warn("Unable to close file {}", path, e);
+            }
+        }
+
+        /**
+         * Close the channel quietly.
+         * 
+         * @param channel the channel, if opened
+         */
+        private static void close(@Nullable final FileChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /** Context and key of a record in UTF-8. */
+    private final class Slot {
+
+        /** Context in UTF-8. */
+        @Nonnull
+        private final byte[] context;
+
+        /** Key in UTF-8. */
+        @Nonnull
+        private final byte[] key;
+
+        /** Hash of the context and key. */
+        private final int hash;
+
+        /**
+         * Constructor.
+         * 
+         * @param recordContext context of the record
+         * @param recordKey key of the record
+         */
+        private Slot(@Nonnull final String recordContext, @Nonnull final String recordKey) {
+            context = recordContext.getBytes(StandardCharsets.UTF_8);
+            key = recordKey.getBytes(StandardCharsets.UTF_8);
+            // String hash codes are specified, so the hash is the same in every process
+            int h = 31 * recordContext.hashCode() + recordKey.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            hash = h;
+        }
+
+        /**
+         * Get whether the record of the slot has this context and key. Must be called holding the lock.
+         * 
+         * @param slot the slot
+         * @return whether the record of the slot has this context and key
+         */
+        private boolean matches(final int slot) {
+            final int offset = offset(slot);
+            if (!isContext(slot, context) || (buffer.getShort(offset + KEY_LENGTH_OFFSET) & 0xffff) != key.length) {
+                return false;
+            }
+            final int start = offset + SLOT_HEADER + context.length;
+            for (int i = 0; i < key.length; i++) {
+                if (buffer.get(start + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Record read from a slot. */
+    private static final class MappedRecord extends StorageRecord {
+
+        /**
+         * Constructor.
+         * 
+         * @param value value of the record
+         * @param expiration expiration of the record
+         * @param version version of the record
+         */
+        private MappedRecord(@Nonnull final String value, @Nullable final Long expiration, final long version) {
+            super(value, expiration);
+            setVersion(version);
+        }
+    }
+}
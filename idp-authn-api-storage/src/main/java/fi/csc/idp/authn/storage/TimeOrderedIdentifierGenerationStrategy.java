@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.security.SecureRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
+
+/**
+ * Identifier generation strategy producing time ordered identifiers.
+ * <p>
+ * The identifier is the current time in milliseconds as 12 lower case hex digits followed by the given number of
+ * random bytes hex encoded. Identifiers generated later sort after the earlier ones, which keeps inserts to indexed
+ * storage local. The random source is shared by all callers and does not block on entropy.
+ * </p>
+ */
+@ThreadSafe
+public class TimeOrderedIdentifierGenerationStrategy implements IdentifierGenerationStrategy {
+
+    /** Hex digits. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Number of hex digits used for the time prefix. */
+    private static final int TIME_DIGITS = 12;
+
+    /** Random source. */
+    @Nonnull
+    private final SecureRandom random;
+
+    /** Number of random bytes in the identifier. */
+    @Positive
+    private final int randomBytes;
+
+    /** Constructor using 10 random bytes. */
+    public TimeOrderedIdentifierGenerationStrategy() {
+        this(10);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param size number of random bytes in the identifier
+     */
+    public TimeOrderedIdentifierGenerationStrategy(@Positive final int size) {
+        randomBytes = (int) Constraint.isGreaterThan(0, size, "Number of random bytes must be greater than 0");
+        random = new SecureRandom();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String generateIdentifier() {
+        return generateIdentifier(true);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    @NotEmpty
+    public String generateIdentifier(final boolean xmlSafe) {
+        final byte[] bytes = new byte[randomBytes];
+        random.nextBytes(bytes);
+        final char[] id = new char[(xmlSafe ? 1 : 0) + TIME_DIGITS + 2 * randomBytes];
+        int pos = 0;
+        if (xmlSafe) {
+            id[pos++] = '_';
+        }
+        long time = System.currentTimeMillis();
+        for (int i = pos + TIME_DIGITS - 1; i >= pos; i--) {
+            id[i] = HEX[(int) (time & 0xf)];
+            time >>>= 4;
+        }
+        pos += TIME_DIGITS;
+        for (final byte b : bytes) {
+            id[pos++] = HEX[(b >> 4) & 0xf];
+            id[pos++] = HEX[b & 0xf];
+        }
+        return new String(id);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog.Action;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+public class AuthenticationEventAuditLogTest {
+
+    Path file;
+
+    AuthenticationEventAuditLog auditLog;
+
+    AuthenticationEvent event;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        file = Files.createTempDirectory("audit").resolve("audit.log");
+        auditLog = new AuthenticationEventAuditLog();
+        auditLog.setFile(file.toString());
+        event = new AuthenticationEvent("1", "foo", "issuer", 1000L);
+    }
+
+    @Test
+    public void testRecord() throws ComponentInitializationException, IOException {
+        auditLog.initialize();
+        Assert.assertTrue(auditLog.record(Action.CREATED, event, null, null));
+        event.apply();
+        Assert.assertTrue(auditLog.record(Action.REUSED, event, null, null));
+        Assert.assertTrue(auditLog.record(Action.REJECTED, event, "rp", Reason.MAX_AGE));
+        Assert.assertTrue(auditLog.record(AuthenticationEventSummary.of(event), "foo", "rp", Reason.APPLIED_COUNT));
+        auditLog.destroy();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Assert.assertEquals(lines.size(), 4);
+        Assert.assertTrue(lines.get(0).endsWith("|CREATED|1|foo|issuer|1000|0||"));
+        Assert.assertTrue(lines.get(1).endsWith("|REUSED|1|foo|issuer|1000|1||"));
+        Assert.assertTrue(lines.get(2).endsWith("|REJECTED|1|foo|issuer|1000|1|rp|MAX_AGE"));
+        Assert.assertTrue(lines.get(3).endsWith("|REJECTED|1|foo||1000|1|rp|APPLIED_COUNT"));
+        Assert.assertEquals(auditLog.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void testDropWhenFull() throws ComponentInitializationException, IOException {
+        auditLog.setCapacity(2);
+        auditLog.setDrainInterval(60 * 60 * 1000);
+        auditLog.initialize();
+        int queued = 0;
+        for (int i = 0; i < 10; i++) {
+            if (auditLog.record(Action.CREATED, event, null, null)) {
+                queued++;
+            }
+        }
+        Assert.assertEquals(queued + auditLog.getDroppedCount(), 10);
+        auditLog.destroy();
+        Assert.assertEquals(Files.readAllLines(file, StandardCharsets.UTF_8).size(), queued);
+    }
+
+    @Test
+    public void testSharedWriter() throws ComponentInitializationException, IOException {
+        auditLog.initialize();
+        AuthenticationEventAuditLog other = new AuthenticationEventAuditLog();
+        other.setFile(file.toString());
+        other.initialize();
+        Assert.assertTrue(other.record(Action.CREATED, event, null, null));
+        other.destroy();
+        Assert.assertTrue(auditLog.record(Action.REUSED, event, null, null));
+        auditLog.destroy();
+        Assert.assertEquals(Files.readAllLines(file, StandardCharsets.UTF_8).size(), 2);
+    }
+
+    @Test
+    public void testRollOver() throws ComponentInitializationException, IOException {
+        auditLog.setMaxFileSize(1);
+        auditLog.setMaxHistory(1);
+        auditLog.setBatchSize(1);
+        auditLog.setWriteBufferSize(32);
+        auditLog.initialize();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(auditLog.record(Action.CREATED, event, null, null));
+        }
+        auditLog.destroy();
+        Assert.assertFalse(Files.readAllLines(file, StandardCharsets.UTF_8).isEmpty());
+        Assert.assertFalse(Files.readAllLines(file.resolveSibling("audit.log.1"), StandardCharsets.UTF_8).isEmpty());
+        Assert.assertFalse(Files.exists(file.resolveSibling("audit.log.2")));
+    }
+
+    @DataProvider
+    public Object[][] writeBufferSizes() {
+        return new Object[][] { { 16 }, { 64 }, { 100 } };
+    }
+
+    @Test(dataProvider = "writeBufferSizes")
+    public void testRollOverKeepsEntriesWhole(int writeBufferSize) throws ComponentInitializationException,
+            IOException {
+        auditLog.setMaxFileSize(100);
+        auditLog.setMaxHistory(20);
+        auditLog.setWriteBufferSize(writeBufferSize);
+        auditLog.initialize();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(auditLog.record(Action.CREATED, event, null, null));
+        }
+        auditLog.destroy();
+        int entries = 0;
+        for (int i = 0; i <= 20; i++) {
+            Path part = i == 0 ? file : file.resolveSibling("audit.log." + i);
+            if (Files.exists(part)) {
+                for (String line : Files.readAllLines(part, StandardCharsets.UTF_8)) {
+                    Assert.assertTrue(line.matches("[0-9]+\\|CREATED\\|1\\|foo\\|issuer\\|1000\\|0\\|\\|"), line);
+                    entries++;
+                }
+            }
+        }
+        Assert.assertEquals(entries, 10);
+        Assert.assertTrue(Files.exists(file.resolveSibling("audit.log.1")));
+    }
+}
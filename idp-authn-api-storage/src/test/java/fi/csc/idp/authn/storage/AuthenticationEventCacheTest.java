@@ -0,0 +1,632 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class AuthenticationEventCacheTest {
+
+    String username = "foo";
+
+    MemoryStorageService storage;
+
+    AuthenticationEventCache cache;
+
+    @BeforeMethod
+    public void setup() throws ComponentInitializationException {
+        storage = new ClientSideMemoryStorageService();
+        storage.setId("storage");
+        storage.setCleanupInterval(0);
+        storage.initialize();
+        cache = buildCache("salt");
+        cache.initialize();
+    }
+
+    AuthenticationEventCache buildCache(String salt) {
+        AuthenticationEventCache eventCache = new AuthenticationEventCache();
+        eventCache.setId("cache");
+        eventCache.setUserSalt(salt);
+        eventCache.setReferenceStorage(storage);
+        return eventCache;
+    }
+
+    @Test
+    public void testSetAndLocate() {
+        Assert.assertNull(cache.locate(username));
+        AuthenticationEvent event = new AuthenticationEvent("1", username, "issuer", System.currentTimeMillis());
+        Assert.assertTrue(cache.set(username, event));
+        Assert.assertEquals(cache.locate(username).getID(), "1");
+        event.apply();
+        Assert.assertTrue(cache.set(username, event));
+        Assert.assertEquals(cache.locate(username).getAppliedCount(), 1);
+    }
+
+    @Test
+    public void testUsage() throws Exception {
+        String context = AuthenticationEventCache.class.getName();
+        AuthenticationEvent event = new AuthenticationEvent("1", username, "issuer", System.currentTimeMillis());
+        Assert.assertTrue(cache.set(username, event));
+        Assert.assertNotNull(cache.apply(username, event));
+        // the first apply is written with the event
+        String claims = storage.read(context + "_EVENT_CTX", "1").getValue();
+        Assert.assertEquals(AuthenticationEvent.parse(claims).getAppliedCount(), 1);
+        Assert.assertNull(storage.read(context + "_USAGE_CTX", "1"));
+        AuthenticationEvent applied = cache.apply(username, event);
+        // only the usage is written, the claims and the reference are not rewritten
+        Assert.assertEquals(storage.read(context + "_EVENT_CTX", "1").getValue(), claims);
+        Assert.assertEquals(storage.read(context + "_REF_CTX", cache.deriveKey(username)).getValue(), "1");
+        Assert.assertEquals(storage.read(context + "_USAGE_CTX", "1").getValue(), applied.serializeUsage());
+        Assert.assertEquals(cache.locate(username).getAppliedCount(), 2);
+        // superseding event removes the usage too
+        Assert.assertTrue(cache.set(username, new AuthenticationEvent("2", username, "issuer", 0L)));
+        Assert.assertNull(storage.read(context + "_USAGE_CTX", "1"));
+    }
+
+    @Test
+    public void testTimings() {
+        AuthenticationEventTimings timings = new AuthenticationEventTimings();
+        Assert.assertNull(cache.locate(username, timings));
+        Assert.assertTrue(timings.get(AuthenticationEventTimings.Phase.HASHING) >= 0);
+        Assert.assertTrue(timings.get(AuthenticationEventTimings.Phase.REFERENCE_READ) >= 0);
+        Assert.assertEquals(timings.get(AuthenticationEventTimings.Phase.WRITE_BACK), 0);
+        AuthenticationEvent event = new AuthenticationEvent("1", username, "issuer", System.currentTimeMillis());
+        Assert.assertTrue(cache.set(username, event, timings));
+        Assert.assertTrue(timings.get(AuthenticationEventTimings.Phase.WRITE_BACK) > 0);
+        Assert.assertNotNull(cache.apply(username, event, timings));
+        Assert.assertTrue(timings.get(AuthenticationEventTimings.Phase.EVENT_READ) > 0);
+        Assert.assertTrue(timings.get(AuthenticationEventTimings.Phase.PARSE) > 0);
+        Assert.assertTrue(timings.getTotal() >= timings.get(AuthenticationEventTimings.Phase.PARSE));
+        Assert.assertTrue(timings.toString().endsWith("total=" + timings.getTotal() / 1000));
+    }
+
+    @Test
+    public void testRecorder() throws ComponentInitializationException {
+        final List<String> recorded = new ArrayList<>();
+        AuthenticationEventCache recording = buildCache("salt");
+        recording.setRecorder(new AuthenticationEventRecorder() {
+
+            @Override
+            public Recording begin(final Operation operation) {
+                return new Recording() {
+
+                    @Override
+                    public void end(String store, String context, String outcome, int size) {
+                        recorded.add(operation + " " + store + " " + outcome + " " + (size > 0));
+                    }
+                };
+            }
+        });
+        recording.initialize();
+        Assert.assertNull(recording.locate(username));
+        Assert.assertTrue(recording.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        Assert.assertEquals(recording.locate(username).getID(), "1");
+        Assert.assertEquals(recorded, Arrays.asList("LOCATE storage not_found false", "SET storage stored true",
+                "PARSE null found true", "LOCATE storage found true"));
+    }
+
+    @Test
+    public void testLimitAwareExpiration() throws Exception {
+        AuthenticationEventRelyingPartyLimits limits = new AuthenticationEventRelyingPartyLimits();
+        limits.setAuthenticationMaxAge(60000);
+        limits.setLastAppliedMaxAge(10000);
+        AuthenticationEventRelyingPartyLimits rpLimits = new AuthenticationEventRelyingPartyLimits();
+        rpLimits.setRelyingPartyId("rp");
+        rpLimits.setAuthenticationMaxAge(20000);
+        AuthenticationEventCache limited = buildCache("salt");
+        limited.setAuthenticationEventVerifier(
+                new AuthenticationEventVerifier(limits, Collections.singletonList(rpLimits)));
+        limited.initialize();
+        long authTime = System.currentTimeMillis() - 5000;
+        AuthenticationEvent event = new AuthenticationEvent("1", username, "issuer", authTime);
+        Assert.assertTrue(limited.set(username, event));
+        // the relying party without rolling window keeps the event usable the longest
+        String context = AuthenticationEventCache.class.getName();
+        Assert.assertEquals(storage.read(context + "_EVENT_CTX", "1").getExpiration().longValue(), authTime + 20000);
+        Assert.assertEquals(storage.read(context + "_REF_CTX", limited.deriveKey(username)).getExpiration().longValue(),
+                authTime + 20000);
+    }
+
+    @Test
+    public void testStorageMigration() throws ComponentInitializationException {
+        Assert.assertTrue(cache.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        MemoryStorageService newStorage = new ClientSideMemoryStorageService();
+        newStorage.setId("newStorage");
+        newStorage.setCleanupInterval(0);
+        newStorage.initialize();
+        AuthenticationEventCache migrating = new AuthenticationEventCache();
+        migrating.setId("migrating");
+        migrating.setUserSalt("salt");
+        migrating.setReferenceStorage(newStorage);
+        migrating.setPreviousReferenceStorage(storage);
+        migrating.setPreviousEventStorage(storage);
+        migrating.initialize();
+        Assert.assertEquals(migrating.locate(username).getID(), "1");
+        Assert.assertEquals(migrating.getMovedReferenceCount(), 1);
+        Assert.assertEquals(migrating.getMovedEventCount(), 1);
+        // entries have been moved to the new storage
+        Assert.assertNull(cache.locate(username));
+        Assert.assertEquals(migrating.locate(username).getID(), "1");
+        Assert.assertEquals(migrating.getMovedReferenceCount(), 1);
+        Assert.assertNull(migrating.locate("bar"));
+        Assert.assertEquals(migrating.getMissedReferenceCount(), 1);
+        Assert.assertEquals(migrating.getMissedEventCount(), 0);
+    }
+
+    @Test
+    public void testLocalEventsSnapshot() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        MemoryStorageService eventStorage = new MemoryStorageService() {
+
+            @Override
+            public StorageRecord read(String context, String key) throws IOException {
+                reads.incrementAndGet();
+                return super.read(context, key);
+            }
+        };
+        eventStorage.setId("eventStorage");
+        eventStorage.setCleanupInterval(0);
+        eventStorage.initialize();
+        Path snapshot = Files.createTempDirectory("snapshot").resolve("events.snapshot");
+        AuthenticationEventCache local = buildCache("salt");
+        local.setEventStorage(eventStorage);
+        local.setLocalEvents(10);
+        local.setSnapshotFile(snapshot.toString());
+        local.initialize();
+        Assert.assertTrue(local.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        // served from memory
+        reads.set(0);
+        Assert.assertEquals(local.locate(username).getID(), "1");
+        Assert.assertEquals(reads.get(), 0);
+        local.destroy();
+        Assert.assertTrue(Files.exists(snapshot));
+
+        AuthenticationEventCache restarted = buildCache("salt");
+        restarted.setEventStorage(eventStorage);
+        restarted.setLocalEvents(10);
+        restarted.setSnapshotFile(snapshot.toString());
+        restarted.initialize();
+        AuthenticationEvent event = null;
+        for (int i = 0; i < 100; i++) {
+            reads.set(0);
+            event = restarted.locate(username);
+            if (reads.get() == 0) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        // served from the snapshot
+        Assert.assertEquals(reads.get(), 0);
+        Assert.assertEquals(event.getID(), "1");
+        restarted.destroy();
+    }
+
+    @Test
+    public void testLocalEventsLifetime() throws Exception {
+        MemoryStorageService eventStorage = new MemoryStorageService();
+        eventStorage.setId("eventStorage");
+        eventStorage.setCleanupInterval(0);
+        eventStorage.initialize();
+        AuthenticationEventCache local = buildCache("salt");
+        local.setId("lifetime");
+        local.setEventStorage(eventStorage);
+        local.setLocalEvents(10);
+        local.setLocalEventsLifetime(1);
+        local.initialize();
+        Assert.assertTrue(local.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        // removed by another node, not served once the copy is older than the lifetime
+        eventStorage.delete(AuthenticationEventCache.class.getName() + "_EVENT_CTX", "1");
+        Thread.sleep(5);
+        Assert.assertNull(local.locate(username));
+        local.destroy();
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        Path snapshot = Files.createTempDirectory("snapshot").resolve("events.snapshot");
+        Map<String, LocalEventCache.Entry> entries = new LinkedHashMap<>();
+        LocalEventCache events = new LocalEventCache(10, 60000);
+        events.put("1", "event", Long.MAX_VALUE, 0);
+        entries.putAll(events);
+        LocalEventCache.writeSnapshot(snapshot, entries);
+        Assert.assertEquals(LocalEventCache.readSnapshot(snapshot, 0).size(), 1);
+        // id length beyond the end of the file
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), 16);
+        }
+        try {
+            LocalEventCache.readSnapshot(snapshot, 0);
+            Assert.fail("Corrupt snapshot read");
+        } catch (IOException e) {
+            // expected
+        }
+        // entry count beyond the size of the file
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), 4);
+        }
+        try {
+            LocalEventCache.readSnapshot(snapshot, 0);
+            Assert.fail("Corrupt snapshot read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        MemoryStorageService eventStorage = new MemoryStorageService();
+        eventStorage.setId("eventStorage");
+        eventStorage.setCleanupInterval(0);
+        eventStorage.initialize();
+        AuthenticationEventCache async = buildCache("salt");
+        async.setEventStorage(eventStorage);
+        async.setAsyncConcurrency(1);
+        async.initialize();
+        Assert.assertNull(async.locateAsync(username).get());
+        Assert.assertTrue(async.setAsync(username, new AuthenticationEvent("1", username, "issuer", 0L)).get());
+        Assert.assertEquals(async.locateAsync(username).get().getID(), "1");
+        Assert.assertEquals(async.locate(username).getID(), "1");
+        async.destroy();
+    }
+
+    @Test
+    public void testAsyncEventWriteFails() throws Exception {
+        MemoryStorageService eventStorage = new MemoryStorageService() {
+
+            @Override
+            public boolean create(String context, String key, String value, Long expiration) throws IOException {
+                return false;
+            }
+        };
+        eventStorage.setId("eventStorage");
+        eventStorage.setCleanupInterval(0);
+        eventStorage.initialize();
+        AuthenticationEventCache async = buildCache("salt");
+        async.setEventStorage(eventStorage);
+        async.setAsyncConcurrency(1);
+        async.initialize();
+        Assert.assertFalse(async.setAsync(username, new AuthenticationEvent("1", username, "issuer", 0L)).get());
+        Assert.assertNull(async.locate(username));
+        async.destroy();
+    }
+
+    @Test
+    public void testRemoveOrphans() throws Exception {
+        String context = AuthenticationEventCache.class.getName();
+        Assert.assertTrue(cache.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        Assert.assertTrue(cache.set(username, new AuthenticationEvent("2", username, "issuer", 0L)));
+        // superseded event is removed
+        Assert.assertNull(storage.read(context + "_EVENT_CTX", "1"));
+        Assert.assertNotNull(storage.read(context + "_EVENT_CTX", "2"));
+        // reference to a missing event is removed
+        storage.delete(context + "_EVENT_CTX", "2");
+        Assert.assertNull(cache.locate(username));
+        Assert.assertNull(storage.read(context + "_REF_CTX", cache.deriveKey(username)));
+    }
+
+    @Test
+    public void testLocateInFlight() throws Exception {
+        final AtomicBoolean blocking = new AtomicBoolean();
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MemoryStorageService eventStorage = new MemoryStorageService() {
+
+            @Override
+            public StorageRecord read(String context, String key) throws IOException {
+                if (blocking.get() && context.endsWith("_EVENT_CTX")) {
+                    reads.incrementAndGet();
+                    reading.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+                return super.read(context, key);
+            }
+        };
+        eventStorage.setId("eventStorage");
+        eventStorage.setCleanupInterval(0);
+        eventStorage.initialize();
+        final AuthenticationEventCache coalescing = buildCache("salt");
+        coalescing.setEventStorage(eventStorage);
+        coalescing.initialize();
+        Assert.assertTrue(coalescing.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        blocking.set(true);
+        final AtomicReference<AuthenticationEvent> first = new AtomicReference<>();
+        final AtomicReference<AuthenticationEvent> second = new AtomicReference<>();
+        Thread leader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                first.set(coalescing.locate(username));
+            }
+        });
+        Thread follower = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                second.set(coalescing.locate(username));
+            }
+        });
+        leader.start();
+        reading.await();
+        follower.start();
+        // the follower waits for the read of the leader
+        for (int i = 0; i < 500 && follower.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        leader.join();
+        follower.join();
+        Assert.assertEquals(reads.get(), 1);
+        Assert.assertEquals(first.get().getID(), "1");
+        Assert.assertEquals(second.get().getID(), "1");
+        // each caller has an independent copy
+        second.get().apply();
+        Assert.assertEquals(first.get().getAppliedCount(), 0);
+        coalescing.destroy();
+    }
+
+    @Test
+    public void testSummaryCheck() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        MemoryStorageService eventStorage = new MemoryStorageService() {
+
+            @Override
+            public StorageRecord read(String context, String key) throws IOException {
+                if (context.endsWith("_EVENT_CTX")) {
+                    reads.incrementAndGet();
+                }
+                return super.read(context, key);
+            }
+        };
+        eventStorage.setId("eventStorage");
+        eventStorage.setCleanupInterval(0);
+        eventStorage.initialize();
+        AuthenticationEventCache summarizing = buildCache("salt");
+        summarizing.setEventStorage(eventStorage);
+        summarizing.initialize();
+        AuthenticationEvent event = new AuthenticationEvent("_1", username, "issuer", 1000L);
+        event.apply();
+        Assert.assertTrue(summarizing.set(username, event));
+        AuthenticationEventSummary summary = AuthenticationEventSummary.parse(storage
+                .read(AuthenticationEventCache.class.getName() + "_REF_CTX", summarizing.deriveKey(username))
+                .getValue());
+        Assert.assertEquals(summary.getID(), "_1");
+        Assert.assertEquals(summary.getAuthTime(), 1000L);
+        Assert.assertEquals(summary.getAppliedCount(), 1);
+        Assert.assertEquals(summary.getIssuedAt(), event.getIssuedAt());
+        // the event failing the check by its summary is not read
+        Assert.assertNull(summarizing.locate(username, null, Predicates.<AuthenticationEventSummary> alwaysFalse()));
+        Assert.assertEquals(reads.get(), 0);
+        Assert.assertEquals(summarizing.locate(username, null, Predicates.<AuthenticationEventSummary> alwaysTrue())
+                .getID(), "_1");
+        Assert.assertEquals(reads.get(), 1);
+        // references without a summary are read as before
+        Assert.assertNull(AuthenticationEventSummary.parse("_1"));
+        Assert.assertEquals(AuthenticationEventSummary.getEventId("_1"), "_1");
+        Assert.assertEquals(AuthenticationEventSummary.getEventId(summary.toReferenceValue()), "_1");
+        summarizing.destroy();
+    }
+
+    @Test
+    public void testSummaryNotAuthoritative() throws Exception {
+        MemoryStorageService eventStorage = new MemoryStorageService();
+        eventStorage.setId("eventStorage");
+        eventStorage.setCleanupInterval(0);
+        eventStorage.initialize();
+        AuthenticationEventCache summarizing = buildCache("salt");
+        summarizing.setEventStorage(eventStorage);
+        summarizing.initialize();
+        String context = AuthenticationEventCache.class.getName();
+        String key = summarizing.deriveKey(username);
+        Assert.assertTrue(summarizing.set(username, new AuthenticationEvent("_1", username, "issuer", 0L)));
+        String oldReference = storage.read(context + "_REF_CTX", key).getValue();
+        Assert.assertNotNull(summarizing.apply(username, summarizing.locate(username)));
+        Assert.assertNotNull(summarizing.apply(username, summarizing.locate(username)));
+        Assert.assertNotNull(eventStorage.read(context + "_USAGE_CTX", "_1"));
+        // a replayed older reference does not reset the usage kept in the event store
+        Assert.assertTrue(storage.update(context + "_REF_CTX", key, oldReference, null));
+        Assert.assertEquals(summarizing.locate(username).getAppliedCount(), 2);
+        summarizing.destroy();
+    }
+
+    @Test
+    public void testWriteRoundTrips() throws Exception {
+        final CountingMemoryStorageService references = new CountingMemoryStorageService();
+        references.setId("references");
+        references.setCleanupInterval(0);
+        references.initialize();
+        final UpsertMemoryStorageService events = new UpsertMemoryStorageService();
+        events.setId("events");
+        events.setCleanupInterval(0);
+        events.initialize();
+        AuthenticationEventCache counting = buildCache("salt");
+        counting.setReferenceStorage(references);
+        counting.setEventStorage(events);
+        counting.initialize();
+        Assert.assertTrue(counting.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        // the new reference is created without trying an update first, the event is upserted
+        Assert.assertEquals(references.failedWrites.get(), 0);
+        Assert.assertEquals(events.upserts.get(), 1);
+        final AuthenticationEvent located = counting.locate(username);
+        references.reads.set(0);
+        Assert.assertEquals(counting.apply(username, located).getAppliedCount(), 1);
+        // the reference read by the locate is not read again and the existing reference is updated
+        Assert.assertEquals(references.reads.get(), 1);
+        Assert.assertEquals(references.failedWrites.get(), 0);
+        // the first apply is upserted with the event
+        Assert.assertEquals(events.upserts.get(), 2);
+        Assert.assertTrue(counting.set(username, new AuthenticationEvent("2", username, "issuer", 0L)));
+        Assert.assertEquals(references.failedWrites.get(), 0);
+        Assert.assertEquals(events.upserts.get(), 3);
+        Assert.assertEquals(counting.locate(username).getID(), "2");
+        counting.destroy();
+    }
+
+    @Test
+    public void testReuseRoundTrips() throws Exception {
+        final CountingMemoryStorageService counting = new CountingMemoryStorageService();
+        counting.setId("counting");
+        counting.setCleanupInterval(0);
+        counting.initialize();
+        storage = counting;
+        AuthenticationEventCache reusing = buildCache("salt");
+        reusing.initialize();
+        Assert.assertTrue(reusing.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        counting.writes.set(0);
+        Assert.assertNotNull(reusing.apply(username, reusing.locate(username)));
+        // the reference is extended and the event written with its first apply
+        Assert.assertEquals(counting.writes.get(), 2);
+        Assert.assertEquals(counting.failedWrites.get(), 0);
+        counting.writes.set(0);
+        Assert.assertNotNull(reusing.apply(username, reusing.locate(username)));
+        // the reference and the event are extended and the usage record created
+        Assert.assertEquals(counting.writes.get(), 3);
+        Assert.assertEquals(counting.failedWrites.get(), 0);
+        counting.writes.set(0);
+        Assert.assertNotNull(reusing.apply(username, reusing.locate(username)));
+        Assert.assertEquals(counting.writes.get(), 3);
+        Assert.assertEquals(counting.failedWrites.get(), 0);
+        Assert.assertEquals(reusing.locate(username).getAppliedCount(), 3);
+        reusing.destroy();
+    }
+
+    @Test
+    public void testLegacyKey() {
+        Assert.assertEquals(cache.deriveKey(username),
+                org.apache.commons.codec.digest.DigestUtils.sha256Hex(username + "salt"));
+    }
+
+    @Test
+    public void testSaltRotation() throws ComponentInitializationException {
+        Assert.assertTrue(cache.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        AuthenticationEventCache rotated = buildCache("salt2");
+        rotated.setPreviousUserSalts(Arrays.asList("", "salt"));
+        rotated.initialize();
+        Assert.assertEquals(rotated.locate(username).getID(), "1");
+        // reference has been moved under the current key
+        Assert.assertNull(cache.locate(username));
+        AuthenticationEventCache current = buildCache("salt2");
+        current.initialize();
+        Assert.assertEquals(current.locate(username).getID(), "1");
+    }
+
+    @Test
+    public void testKeyStrategyRotation() throws ComponentInitializationException {
+        Assert.assertTrue(cache.set(username, new AuthenticationEvent("1", username, "issuer", 0L)));
+        AuthenticationEventCache rotated = buildCache("salt");
+        HashedUserKeyStrategy strategy = new HashedUserKeyStrategy("secret", "HmacSHA256", "v2:");
+        rotated.setUserKeyStrategy(strategy);
+        rotated.setPreviousUserKeyStrategies(
+                Collections.<Function<String, String>> singletonList(new HashedUserKeyStrategy("salt")));
+        rotated.initialize();
+        Assert.assertTrue(rotated.deriveKey(username).startsWith("v2:"));
+        Assert.assertEquals(rotated.locate(username).getID(), "1");
+        Assert.assertNull(cache.locate(username));
+    }
+
+    /** Client-side memory storage counting reads, writes and failed writes. */
+    static class CountingMemoryStorageService extends ClientSideMemoryStorageService {
+
+        final AtomicInteger reads = new AtomicInteger();
+
+        final AtomicInteger writes = new AtomicInteger();
+
+        final AtomicInteger failedWrites = new AtomicInteger();
+
+        @Override
+        public StorageRecord read(String context, String key) throws IOException {
+            reads.incrementAndGet();
+            return super.read(context, key);
+        }
+
+        @Override
+        public boolean create(String context, String key, String value, Long expiration) throws IOException {
+            return counted(super.create(context, key, value, expiration));
+        }
+
+        @Override
+        public boolean update(String context, String key, String value, Long expiration) throws IOException {
+            return counted(super.update(context, key, value, expiration));
+        }
+
+        @Override
+        public boolean updateExpiration(String context, String key, Long expiration) throws IOException {
+            return counted(super.updateExpiration(context, key, expiration));
+        }
+
+        private boolean counted(boolean written) {
+            writes.incrementAndGet();
+            if (!written) {
+                failedWrites.incrementAndGet();
+            }
+            return written;
+        }
+    }
+
+    /** Memory storage counting upserts. */
+    static class UpsertMemoryStorageService extends MemoryStorageService implements UpsertStorageService {
+
+        final AtomicInteger upserts = new AtomicInteger();
+
+        @Override
+        public boolean upsert(String context, String key, String value, Long expiration) throws IOException {
+            upserts.incrementAndGet();
+            return super.create(context, key, value, expiration) || super.update(context, key, value, expiration);
+        }
+    }
+
+    /** Memory storage claiming to be client-side. */
+    static class ClientSideMemoryStorageService extends MemoryStorageService {
+
+        @Override
+        public boolean isServerSide() {
+            return false;
+        }
+    }
+}
@@ -75,4 +75,22 @@ public class AuthenticationEventTest {
         Assert.assertEquals(event.getAppliedCount(), 2);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testUsage() throws Exception {
+        AuthenticationEvent applied = AuthenticationEvent.parse(event.serialize());
+        applied.apply();
+        event.mergeUsage(applied.serializeUsage());
+        Assert.assertEquals(event.getAppliedCount(), 1);
+        Assert.assertEquals(event.getAppliedTime(), applied.getAppliedTime());
+        // usage of fewer applies is ignored
+        event.apply();
+        event.mergeUsage(applied.serializeUsage());
+        Assert.assertEquals(event.getAppliedCount(), 2);
+    }
+
+    @Test(expectedExceptions = ParseException.class)
+    public void testUsageNotParseable() throws ParseException {
+        event.mergeUsage("1");
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class AuthenticationEventThrottleTest {
+
+    AuthenticationEventThrottle throttle;
+
+    @BeforeMethod
+    public void setup() {
+        throttle = new AuthenticationEventThrottle();
+        throttle.setCapacity(3);
+        throttle.setRefillInterval(1000);
+        throttle.setMaxEntries(64);
+        throttle.setStripes(4);
+    }
+
+    @Test
+    public void testDisabled() throws ComponentInitializationException {
+        throttle = new AuthenticationEventThrottle();
+        throttle.initialize();
+        Assert.assertFalse(throttle.isEnabled());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(throttle.tryAcquire("foo", 0));
+        }
+        Assert.assertEquals(throttle.size(), 0);
+    }
+
+    @Test
+    public void testBurstAndRefill() throws ComponentInitializationException {
+        throttle.initialize();
+        Assert.assertTrue(throttle.tryAcquire("foo", 0));
+        Assert.assertTrue(throttle.tryAcquire("foo", 0));
+        Assert.assertTrue(throttle.tryAcquire("foo", 0));
+        Assert.assertFalse(throttle.tryAcquire("foo", 0));
+        // other keys are not affected
+        Assert.assertTrue(throttle.tryAcquire("bar", 0));
+        // one token regained
+        Assert.assertTrue(throttle.tryAcquire("foo", 1000));
+        Assert.assertFalse(throttle.tryAcquire("foo", 1000));
+        // bucket full again
+        Assert.assertTrue(throttle.tryAcquire("foo", 5000));
+        Assert.assertTrue(throttle.tryAcquire("foo", 5000));
+        Assert.assertTrue(throttle.tryAcquire("foo", 5000));
+        Assert.assertFalse(throttle.tryAcquire("foo", 5000));
+    }
+
+    @Test
+    public void testBoundedAndIdleEviction() throws ComponentInitializationException {
+        throttle.initialize();
+        for (int i = 0; i < 1000; i++) {
+            throttle.tryAcquire("user" + i, 0);
+        }
+        Assert.assertTrue(throttle.size() <= 64);
+        for (int i = 0; i < 1000; i++) {
+            throttle.tryAcquire("other" + i, 10000);
+        }
+        Assert.assertTrue(throttle.size() <= 64);
+    }
+}
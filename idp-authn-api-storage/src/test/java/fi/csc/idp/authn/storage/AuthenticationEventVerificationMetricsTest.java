@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+public class AuthenticationEventVerificationMetricsTest {
+
+    String prefix = AuthenticationEventVerificationMetrics.METRIC_PREFIX;
+
+    MetricRegistry registry;
+
+    AuthenticationEventVerificationMetrics metrics;
+
+    @BeforeMethod
+    public void setup() throws ComponentInitializationException {
+        registry = new MetricRegistry();
+        metrics = new AuthenticationEventVerificationMetrics();
+        metrics.setMaxRelyingParties(1);
+        metrics.setMetricRegistry(registry);
+        metrics.initialize();
+    }
+
+    @Test
+    public void testPassed() {
+        AuthenticationEvent event = new AuthenticationEvent("1", "foo", "issuer", 1000L);
+        event.apply();
+        metrics.recordPassed("rp", event, 61000L);
+        Assert.assertEquals(registry.counter(prefix + ".outcome.passed").getCount(), 1);
+        Assert.assertEquals(registry.counter(prefix + ".rp.rp.passed").getCount(), 1);
+        Assert.assertEquals(registry.histogram(prefix + ".age").getSnapshot().getMax(), 60);
+        Assert.assertEquals(registry.histogram(prefix + ".appliedCount").getSnapshot().getMax(), 1);
+    }
+
+    @Test
+    public void testRejectedCapped() {
+        metrics.recordRejected("rp", Reason.MAX_AGE);
+        metrics.recordRejected("rp2", Reason.MAX_AGE);
+        metrics.recordRejected("rp", Reason.ROLLING_WINDOW);
+        metrics.recordRejected(null, Reason.REVOKED);
+        Assert.assertEquals(registry.counter(prefix + ".outcome.max_age").getCount(), 2);
+        Assert.assertEquals(registry.counter(prefix + ".rp.rp.max_age").getCount(), 1);
+        Assert.assertEquals(registry.counter(prefix + ".rp.rp.rolling_window").getCount(), 1);
+        Assert.assertEquals(registry.counter(prefix + ".rp.other.max_age").getCount(), 1);
+        Assert.assertEquals(registry.counter(prefix + ".rp.unknown.revoked").getCount(), 1);
+        Assert.assertFalse(registry.getCounters().containsKey(prefix + ".rp.rp2.max_age"));
+    }
+
+    @Test
+    public void testSanitizedRelyingParty() {
+        metrics.recordRejected("https://sp.example.org/shibboleth", Reason.MAX_AGE);
+        metrics.recordRejected("https://sp.example.org/shibboleth", Reason.MAX_AGE);
+        Assert.assertEquals(registry.counter(prefix + ".rp.https:__sp_example_org_shibboleth.max_age").getCount(), 2);
+        Assert.assertEquals(registry.getCounters().size(), 2);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+public class AuthenticationEventVerifierTest {
+
+    AuthenticationEventRelyingPartyLimits defaultLimits;
+
+    AuthenticationEventRelyingPartyLimits rpLimits;
+
+    AuthenticationEventVerifier verifier;
+
+    AuthenticationEvent event;
+
+    long now;
+
+    @BeforeMethod
+    public void setup() {
+        defaultLimits = new AuthenticationEventRelyingPartyLimits();
+        defaultLimits.setAuthenticationMaxAge(10000);
+        defaultLimits.setLastAppliedMaxAge(1000);
+        defaultLimits.setAppliedTimesMax(2);
+        rpLimits = new AuthenticationEventRelyingPartyLimits();
+        rpLimits.setRelyingPartyId("rp");
+        verifier = new AuthenticationEventVerifier(defaultLimits, Arrays.asList(rpLimits));
+        now = System.currentTimeMillis();
+        event = new AuthenticationEvent("1", "foo", "bar", now);
+    }
+
+    @Test
+    public void testLimitsResolution() {
+        Assert.assertSame(verifier.getLimits("rp"), rpLimits);
+        Assert.assertSame(verifier.getLimits("other"), defaultLimits);
+        Assert.assertSame(verifier.getLimits(null), defaultLimits);
+    }
+
+    @Test
+    public void testVerify() {
+        Assert.assertNull(verifier.verify(event, defaultLimits, 0, now));
+        Assert.assertEquals(verifier.verify(event, defaultLimits, now + 10000, now), Reason.REVOKED);
+        Assert.assertEquals(verifier.verify(event, defaultLimits, 0, now + 20000), Reason.MAX_AGE);
+        Assert.assertEquals(verifier.verify(event, defaultLimits, 0, now + 2000), Reason.ROLLING_WINDOW);
+        Assert.assertNull(verifier.verify(event, rpLimits, 0, now + 20000));
+        event.apply();
+        event.apply();
+        Assert.assertEquals(verifier.verify(event, defaultLimits, 0, now), Reason.APPLIED_COUNT);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MappedFileStorageServiceTest {
+
+    Path file;
+
+    MappedFileStorageService storage;
+
+    @BeforeMethod
+    public void setup() throws IOException, ComponentInitializationException {
+        file = Files.createTempFile("events", ".dat");
+        Files.delete(file);
+        storage = buildStorage(16);
+    }
+
+    @AfterMethod
+    public void teardown() throws IOException {
+        storage.destroy();
+        Files.deleteIfExists(file);
+    }
+
+    MappedFileStorageService buildStorage(int slots) throws ComponentInitializationException {
+        MappedFileStorageService mapped = new MappedFileStorageService();
+        mapped.setId("mapped");
+        mapped.setFile(file.toString());
+        mapped.setSlots(slots);
+        mapped.setSlotSize(128);
+        mapped.setCleanupInterval(0);
+        mapped.initialize();
+        return mapped;
+    }
+
+    @Test
+    public void testCreateReadUpdateDelete() throws IOException {
+        Assert.assertNull(storage.read("ctx", "key"));
+        Assert.assertTrue(storage.create("ctx", "key", "value", null));
+        Assert.assertFalse(storage.create("ctx", "key", "other", null));
+        StorageRecord record = storage.read("ctx", "key");
+        Assert.assertEquals(record.getValue(), "value");
+        Assert.assertNull(record.getExpiration());
+        Assert.assertEquals(record.getVersion(), 1);
+        Assert.assertNull(storage.read("ctx", "other"));
+        Assert.assertNull(storage.read("other", "key"));
+        Assert.assertTrue(storage.update("ctx", "key", "updated", Long.MAX_VALUE));
+        record = storage.read("ctx", "key");
+        Assert.assertEquals(record.getValue(), "updated");
+        Assert.assertEquals(record.getExpiration(), Long.valueOf(Long.MAX_VALUE));
+        Assert.assertEquals(record.getVersion(), 2);
+        Assert.assertFalse(storage.update("ctx", "other", "value", null));
+        Assert.assertTrue(storage.delete("ctx", "key"));
+        Assert.assertFalse(storage.delete("ctx", "key"));
+        Assert.assertNull(storage.read("ctx", "key"));
+    }
+
+    @Test
+    public void testUpsert() throws IOException {
+        Assert.assertTrue(storage.upsert("ctx", "key", "value", null));
+        Assert.assertEquals(storage.read("ctx", "key").getVersion(), 1);
+        Assert.assertTrue(storage.upsert("ctx", "key", "updated", Long.MAX_VALUE));
+        StorageRecord record = storage.read("ctx", "key");
+        Assert.assertEquals(record.getValue(), "updated");
+        Assert.assertEquals(record.getExpiration(), Long.valueOf(Long.MAX_VALUE));
+        Assert.assertEquals(record.getVersion(), 2);
+        storage.create("ctx", "expired", "value", System.currentTimeMillis() - 1);
+        Assert.assertTrue(storage.upsert("ctx", "expired", "again", null));
+        Assert.assertEquals(storage.read("ctx", "expired").getVersion(), 1);
+    }
+
+    @Test
+    public void testVersions() throws IOException, VersionMismatchException {
+        storage.create("ctx", "key", "value", null);
+        Pair<Long, StorageRecord> unchanged = storage.read("ctx", "key", 1);
+        Assert.assertEquals(unchanged.getFirst(), Long.valueOf(1));
+        Assert.assertNull(unchanged.getSecond());
+        Assert.assertEquals(storage.updateWithVersion(1, "ctx", "key", "updated", null), Long.valueOf(2));
+        Assert.assertEquals(storage.read("ctx", "key", 1).getSecond().getValue(), "updated");
+        try {
+            storage.updateWithVersion(1, "ctx", "key", "stale", null);
+            Assert.fail("Stale version was accepted");
+        } catch (VersionMismatchException e) {
+            // expected
+        }
+        Assert.assertTrue(storage.updateExpiration("ctx", "key", Long.MAX_VALUE));
+        Assert.assertEquals(storage.read("ctx", "key").getVersion(), 2);
+        try {
+            storage.deleteWithVersion(1, "ctx", "key");
+            Assert.fail("Stale version was accepted");
+        } catch (VersionMismatchException e) {
+            // expected
+        }
+        Assert.assertTrue(storage.deleteWithVersion(2, "ctx", "key"));
+        Assert.assertNull(storage.read("ctx", "key", 2).getFirst());
+    }
+
+    @Test
+    public void testExpiration() throws IOException {
+        storage.create("ctx", "expired", "value", System.currentTimeMillis() - 1);
+        storage.create("ctx", "key", "value", null);
+        Assert.assertNull(storage.read("ctx", "expired"));
+        Assert.assertTrue(storage.create("ctx", "expired", "again", null));
+        Assert.assertEquals(storage.read("ctx", "expired").getValue(), "again");
+        storage.updateContextExpiration("ctx", System.currentTimeMillis() - 1);
+        storage.reap("ctx");
+        Assert.assertNull(storage.read("ctx", "key"));
+        Assert.assertTrue(storage.create("ctx", "key", "value", null));
+    }
+
+    @Test
+    public void testDeleteContext() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            storage.create(i % 2 == 0 ? "even" : "odd", Integer.toString(i), "value", null);
+        }
+        storage.deleteContext("even");
+        for (int i = 0; i < 10; i++) {
+            StorageRecord record = storage.read(i % 2 == 0 ? "even" : "odd", Integer.toString(i));
+            Assert.assertEquals(record == null, i % 2 == 0);
+        }
+    }
+
+    @Test
+    public void testReclaim() throws IOException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 64; i++) {
+            Assert.assertTrue(storage.create("ctx", Integer.toString(i), "value", now + 60000 + i));
+        }
+        // the records expiring last survive
+        Assert.assertNotNull(storage.read("ctx", "63"));
+        Assert.assertNull(storage.read("ctx", "0"));
+        int found = 0;
+        for (int i = 0; i < 64; i++) {
+            if (storage.read("ctx", Integer.toString(i)) != null) {
+                found++;
+            }
+        }
+        Assert.assertTrue(found > 0 && found <= 12);
+    }
+
+    @Test
+    public void testTooLarge() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 128; i++) {
+            value.append('x');
+        }
+        try {
+            storage.create("ctx", "key", value.toString(), null);
+            Assert.fail("Too large record was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPersistence() throws IOException, ComponentInitializationException {
+        storage.create("ctx", "key", "value", null);
+        storage.update("ctx", "key", "updated", null);
+        storage.destroy();
+        storage = buildStorage(32);
+        StorageRecord record = storage.read("ctx", "key");
+        Assert.assertEquals(record.getValue(), "updated");
+        Assert.assertEquals(record.getVersion(), 2);
+    }
+
+    @Test
+    public void testRecount() throws IOException, ComponentInitializationException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 12; i++) {
+            Assert.assertTrue(storage.create("ctx", Integer.toString(i), "value", now + 60000 + i));
+        }
+        storage.destroy();
+        // the count of used slots is lost
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 16);
+        }
+        storage = buildStorage(16);
+        Assert.assertEquals(storage.read("ctx", "11").getValue(), "value");
+        for (int i = 12; i < 32; i++) {
+            Assert.assertTrue(storage.create("ctx", Integer.toString(i), "value", now + 60000 + i));
+        }
+        Assert.assertEquals(storage.read("ctx", "31").getValue(), "value");
+    }
+
+    @Test
+    public void testCorrupt() throws IOException, ComponentInitializationException {
+        storage.create("ctx", "key", "value", null);
+        storage.destroy();
+        // the state of every slot is overwritten
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (int slot = 0; slot < 16; slot++) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, 7), 64 + slot * 128);
+            }
+        }
+        storage = buildStorage(16);
+        Assert.assertNull(storage.read("ctx", "key"));
+        Assert.assertTrue(storage.create("ctx", "key", "value", null));
+        Assert.assertEquals(storage.read("ctx", "key").getValue(), "value");
+    }
+
+    @Test
+    public void testShared() throws IOException, ComponentInitializationException {
+        storage.destroy();
+        storage = buildSharedStorage();
+        MappedFileStorageService other = buildSharedStorage();
+        try {
+            Assert.assertTrue(storage.create("ctx", "key", "value", null));
+            Assert.assertEquals(other.read("ctx", "key").getValue(), "value");
+            Assert.assertTrue(other.update("ctx", "key", "updated", null));
+            Assert.assertEquals(storage.read("ctx", "key").getVersion(), 2);
+            Assert.assertTrue(other.delete("ctx", "key"));
+            Assert.assertNull(storage.read("ctx", "key"));
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 32; i++) {
+                MappedFileStorageService writer = i % 2 == 0 ? storage : other;
+                Assert.assertTrue(writer.create("ctx", Integer.toString(i), "value", now + 60000 + i));
+            }
+            Assert.assertEquals(storage.read("ctx", "31").getValue(), "value");
+            Assert.assertEquals(other.read("ctx", "30").getValue(), "value");
+        } finally {
+            other.destroy();
+        }
+        // the file stays open for the remaining service
+        Assert.assertEquals(storage.read("ctx", "31").getValue(), "value");
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testSharedLocked() throws ComponentInitializationException {
+        buildSharedStorage();
+    }
+
+    MappedFileStorageService buildSharedStorage() throws ComponentInitializationException {
+        MappedFileStorageService mapped = new MappedFileStorageService();
+        mapped.setId("mapped");
+        mapped.setFile(file.toString());
+        mapped.setSlots(16);
+        mapped.setSlotSize(128);
+        mapped.setShared(true);
+        mapped.setCleanupInterval(0);
+        mapped.initialize();
+        return mapped;
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testLocked() throws ComponentInitializationException {
+        buildStorage(16);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TimeOrderedIdentifierGenerationStrategyTest {
+
+    TimeOrderedIdentifierGenerationStrategy generator = new TimeOrderedIdentifierGenerationStrategy();
+
+    @Test
+    public void testFormat() {
+        String id = generator.generateIdentifier();
+        Assert.assertTrue(id.matches("_[0-9a-f]{32}"));
+        Assert.assertEquals(Long.parseLong(id.substring(1, 13), 16), System.currentTimeMillis(), 5000);
+        Assert.assertTrue(generator.generateIdentifier(false).matches("[0-9a-f]{32}"));
+    }
+
+    @Test
+    public void testOrderAndUniqueness() throws InterruptedException {
+        Set<String> ids = new HashSet<>();
+        String previous = generator.generateIdentifier();
+        Thread.sleep(2);
+        for (int i = 0; i < 1000; i++) {
+            String id = generator.generateIdentifier();
+            Assert.assertTrue(id.substring(0, 13).compareTo(previous.substring(0, 13)) > 0);
+            Assert.assertTrue(ids.add(id));
+        }
+    }
+}
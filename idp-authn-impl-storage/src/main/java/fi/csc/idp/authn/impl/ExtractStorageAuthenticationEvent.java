@@ -24,9 +24,12 @@
 package fi.csc.idp.authn.impl;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 import net.shibboleth.idp.authn.AbstractExtractionAction;
 import net.shibboleth.idp.authn.AuthnEventIds;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
 import net.shibboleth.idp.session.context.navigate.CanonicalUsernameLookupStrategy;
 
 import org.opensaml.profile.action.ActionSupport;
@@ -35,18 +38,29 @@ import net.shibboleth.utilities.java.support.component.ComponentInitializationEx
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
+import org.opensaml.messaging.context.navigate.ChildContextLookup;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import fi.csc.idp.authn.context.StorageAuthenticationContext;
 import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog;
 import fi.csc.idp.authn.storage.AuthenticationEventCache;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder;
+import fi.csc.idp.authn.storage.AuthenticationEventThrottle;
+import fi.csc.idp.authn.storage.AuthenticationEventVerificationMetrics;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
 
 /**
  * Class locating existing storage authentication event on the basis of user authenticated by prior authentication flow
  * in mfa authentication sequence.
+ * <p>
+ * If a verifier is set, the limits of the relying party are checked against the summary carried by the reference of
+ * the event, and an event failing them is rejected without reading it.
+ * </p>
  */
 @SuppressWarnings({"rawtypes"})
 public class ExtractStorageAuthenticationEvent extends AbstractExtractionAction {
@@ -67,9 +81,38 @@ public class ExtractStorageAuthenticationEvent extends AbstractExtractionAction
     @Nonnull
     private String username;
 
+    /** Throttle for attempts per user. */
+    @Nullable
+    private AuthenticationEventThrottle throttle;
+
+    /** Verifier of the limits checked against the summary of the event, if any. */
+    @Nullable
+    private AuthenticationEventVerifier verifier;
+
+    /** Supplier of the verifier of reloadable limits, overriding the verifier set if any. */
+    @Nullable
+    private Supplier<AuthenticationEventVerifier> verifierSupplier;
+
+    /** Metrics of the verification outcomes. */
+    @Nullable
+    private AuthenticationEventVerificationMetrics verificationMetrics;
+
+    /** Recorder of the verifications of the summary. */
+    @Nullable
+    private AuthenticationEventRecorder recorder;
+
+    /** Audit log of the authentication event lifecycle. */
+    @Nullable
+    private AuthenticationEventAuditLog auditLog;
+
+    /** Relying party context lookup strategy. */
+    @Nonnull
+    private Function<ProfileRequestContext, RelyingPartyContext> relyingPartyContextLookupStrategy;
+
     /** Constructor. */
     ExtractStorageAuthenticationEvent() {
         usernameLookupStrategy = new CanonicalUsernameLookupStrategy();
+        relyingPartyContextLookupStrategy = new ChildContextLookup<>(RelyingPartyContext.class);
     }
 
     /**
@@ -103,6 +146,80 @@ public class ExtractStorageAuthenticationEvent extends AbstractExtractionAction
         authenticationEventCache = Constraint.isNotNull(cache, "authentication event cache cannot be null");
     }
 
+    /**
+     * Set the throttle limiting the attempts per user.
+     * 
+     * @param userThrottle throttle limiting the attempts per user
+     */
+    public void setThrottle(@Nullable final AuthenticationEventThrottle userThrottle) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        throttle = userThrottle;
+    }
+
+    /**
+     * Set the verifier of the limits checked against the summary of the event before reading the event.
+     * 
+     * @param summaryVerifier verifier of the limits checked against the summary of the event
+     */
+    public void setVerifier(@Nullable final AuthenticationEventVerifier summaryVerifier) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        verifier = summaryVerifier;
+    }
+
+    /**
+     * Set the supplier of the verifier of reloadable limits checked against the summary of the event, overriding the
+     * verifier set.
+     * 
+     * @param supplier supplier of the verifier of reloadable limits
+     */
+    public void setVerifierSupplier(@Nullable final Supplier<AuthenticationEventVerifier> supplier) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        verifierSupplier = supplier;
+    }
+
+    /**
+     * Set the metrics of the verification outcomes.
+     * 
+     * @param metrics metrics of the verification outcomes
+     */
+    public void setVerificationMetrics(@Nullable final AuthenticationEventVerificationMetrics metrics) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        verificationMetrics = metrics;
+    }
+
+    /**
+     * Set the recorder of the verifications of the summary.
+     * 
+     * @param verificationRecorder recorder of the verifications of the summary
+     */
+    public void setRecorder(@Nullable final AuthenticationEventRecorder verificationRecorder) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        recorder = verificationRecorder;
+    }
+
+    /**
+     * Set the audit log of the authentication event lifecycle.
+     * 
+     * @param eventAuditLog audit log of the authentication event lifecycle
+     */
+    public void setAuditLog(@Nullable final AuthenticationEventAuditLog eventAuditLog) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        auditLog = eventAuditLog;
+    }
+
+    /**
+     * Set the relying party context lookup strategy.
+     * 
+     * @param strategy lookup strategy
+     */
+    public void setRelyingPartyContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext, RelyingPartyContext> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        relyingPartyContextLookupStrategy =
+                Constraint.isNotNull(strategy, "RelyingPartyContext lookup strategy cannot be null");
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
@@ -121,6 +238,11 @@ public class ExtractStorageAuthenticationEvent extends AbstractExtractionAction
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
             return false;
         }
+        if (ThrottleCheck.isThrottled(throttle, authenticationEventCache, username)) {
+            log.debug("{} Too many attempts for user {}, throttled.", getLogPrefix(), username);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return false;
+        }
         return true;
     }
 
@@ -129,11 +251,19 @@ public class ExtractStorageAuthenticationEvent extends AbstractExtractionAction
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
-        AuthenticationEvent event = authenticationEventCache.locate(username);
-        StorageAuthenticationContext storageAuthenticationContext =
+        final StorageAuthenticationContext storageAuthenticationContext =
                 authenticationContext.getSubcontext(StorageAuthenticationContext.class, true);
         storageAuthenticationContext.setUsername(username);
+        final SummaryCheck summaryCheck = buildSummaryCheck(profileRequestContext, storageAuthenticationContext);
+        final AuthenticationEvent event = authenticationEventCache.locate(username,
+                storageAuthenticationContext.getTimings(), summaryCheck);
         storageAuthenticationContext.setAuthenticationEvent(event);
+        if (event == null && summaryCheck != null && summaryCheck.getReason() != null) {
+            RejectionReporting.reportSummaryRejection(log, getLogPrefix(), summaryCheck, username, recorder,
+                    verificationMetrics, auditLog);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
+            return;
+        }
         if (event != null) {
             log.debug("{} Authentication event located {} for user {}, setting it to storage authentication context",
                     getLogPrefix(), event.serialize(), username);
@@ -144,4 +274,28 @@ public class ExtractStorageAuthenticationEvent extends AbstractExtractionAction
         return;
     }
 
+    /**
+     * Build the check of the summary of the event, if a verifier is set.
+     * 
+     * @param profileRequestContext profile request context
+     * @param storageAuthenticationContext storage authentication context
+     * @return check of the summary of the event, null if not checked
+     */
+    @Nullable
+    private SummaryCheck buildSummaryCheck(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final StorageAuthenticationContext storageAuthenticationContext) {
+        final AuthenticationEventVerifier currentVerifier =
+                verifierSupplier != null ? verifierSupplier.get() : verifier;
+        if (currentVerifier == null) {
+            return null;
+        }
+        final RelyingPartyContext relyingPartyCtx = relyingPartyContextLookupStrategy.apply(profileRequestContext);
+        if (relyingPartyCtx == null) {
+            return null;
+        }
+        return new SummaryCheck(currentVerifier, currentVerifier.getLimits(relyingPartyCtx.getRelyingPartyId()),
+                relyingPartyCtx.getRelyingPartyId(), storageAuthenticationContext.getAuthenticationEventNotBefore(),
+                System.currentTimeMillis());
+    }
+
 }
@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.authn.AuthnEventIds;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.idp.profile.IdPEventIds;
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
+import net.shibboleth.idp.session.context.navigate.CanonicalUsernameLookupStrategy;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.opensaml.messaging.context.navigate.ChildContextLookup;
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+import fi.csc.idp.authn.context.StorageAuthenticationContext;
+import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog;
+import fi.csc.idp.authn.storage.AuthenticationEventCache;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder;
+import fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits;
+import fi.csc.idp.authn.storage.AuthenticationEventThrottle;
+import fi.csc.idp.authn.storage.AuthenticationEventVerificationMetrics;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+
+/**
+ * Action performing the storage authentication in one pass. The action locates the authentication event of the user,
+ * verifies it against the relying party limits and builds the authentication result. It is equivalent to running
+ * {@link ExtractStorageAuthenticationEvent}, {@link VerifyStorageAuthenticationEvent} and
+ * {@link ValidateStorageAuthentication} in sequence and signals the same events, but looks up the storage
+ * authentication context and reads the clock only once.
+ */
+@SuppressWarnings("rawtypes")
+public class LocateAndValidateStorageAuthentication extends ValidateStorageAuthentication {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(LocateAndValidateStorageAuthentication.class);
+
+    /** Authentication event cache instance to use. */
+    @NonnullAfterInit
+    private AuthenticationEventCache authenticationEventCache;
+
+    /** Lookup strategy for username to search authentication event for. */
+    @Nonnull
+    private Function<ProfileRequestContext, String> usernameLookupStrategy;
+
+    /** Throttle for attempts per user. */
+    @Nullable
+    private AuthenticationEventThrottle throttle;
+
+    /** Audit log of the authentication event lifecycle. */
+    @Nullable
+    private AuthenticationEventAuditLog auditLog;
+
+    /** Recorder of the verifications. */
+    @Nullable
+    private AuthenticationEventRecorder recorder;
+
+    /** Relying party context lookup strategy. */
+    @Nonnull
+    private Function<ProfileRequestContext, RelyingPartyContext> relyingPartyContextLookupStrategy;
+
+    /** default rp limits. */
+    @NonnullAfterInit
+    private AuthenticationEventRelyingPartyLimits defaultRPLimits;
+
+    /** rp limits. */
+    @Nullable
+    private List<AuthenticationEventRelyingPartyLimits> rpLimits;
+
+    /** Metrics of the verification outcomes. */
+    @Nullable
+    private AuthenticationEventVerificationMetrics verificationMetrics;
+
+    /** Verifier built from the limits. */
+    @Nullable
+    private AuthenticationEventVerifier verifier;
+
+    /** Supplier of the verifier of reloadable limits, overriding the limits set if any. */
+    @Nullable
+    private Supplier<AuthenticationEventVerifier> verifierSupplier;
+
+    /** Constructor. */
+    public LocateAndValidateStorageAuthentication() {
+        usernameLookupStrategy = new CanonicalUsernameLookupStrategy();
+        relyingPartyContextLookupStrategy = new ChildContextLookup<>(RelyingPartyContext.class);
+    }
+
+    /**
+     * Set the lookup strategy to use for the username to search authentication event for.
+     * 
+     * @param strategy lookup strategy
+     */
+    public void setUsernameLookupStrategy(@Nonnull final Function<ProfileRequestContext, String> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        usernameLookupStrategy = Constraint.isNotNull(strategy, "Username lookup strategy cannot be null");
+    }
+
+    /**
+     * Set the authentication event cache instance to use.
+     * 
+     * @param cache The authentication event cache to set.
+     */
+    public void setAuthenticationEventCache(@Nonnull final AuthenticationEventCache cache) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        authenticationEventCache = Constraint.isNotNull(cache, "authentication event cache cannot be null");
+    }
+
+    /**
+     * Set the throttle limiting the attempts per user.
+     * 
+     * @param userThrottle throttle limiting the attempts per user
+     */
+    public void setThrottle(@Nullable final AuthenticationEventThrottle userThrottle) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        throttle = userThrottle;
+    }
+
+    /**
+     * Set the audit log of the authentication event lifecycle.
+     * 
+     * @param eventAuditLog audit log of the authentication event lifecycle
+     */
+    public void setAuditLog(@Nullable final AuthenticationEventAuditLog eventAuditLog) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        auditLog = eventAuditLog;
+    }
+
+    /**
+     * Set the recorder of the verifications.
+     * 
+     * @param verificationRecorder recorder of the verifications
+     */
+    public void setRecorder(@Nullable final AuthenticationEventRecorder verificationRecorder) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        recorder = verificationRecorder;
+    }
+
+    /**
+     * Set the relying party context lookup strategy.
+     * 
+     * @param strategy lookup strategy
+     */
+    public void setRelyingPartyContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext, RelyingPartyContext> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        relyingPartyContextLookupStrategy =
+                Constraint.isNotNull(strategy, "RelyingPartyContext lookup strategy cannot be null");
+    }
+
+    /**
+     * Set default limits for validation authentication event.
+     * 
+     * @param defaultLimits default limits for validation authentication event
+     */
+    public void setDefaultLimits(@Nonnull AuthenticationEventRelyingPartyLimits defaultLimits) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        defaultRPLimits = Constraint.isNotNull(defaultLimits, "Default limits cannot be null");
+    }
+
+    /**
+     * Set rp limits for validation authentication event.
+     * 
+     * @param limits rp limits for validation authentication event
+     */
+    public void setRelyingPartyLimits(@Nonnull List<AuthenticationEventRelyingPartyLimits> limits) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        rpLimits = Constraint.isNotNull(limits, "RP limits cannot be null");
+    }
+
+    /**
+     * Set the metrics of the verification outcomes.
+     * 
+     * @param metrics metrics of the verification outcomes
+     */
+    public void setVerificationMetrics(@Nullable final AuthenticationEventVerificationMetrics metrics) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        verificationMetrics = metrics;
+    }
+
+    /**
+     * Set the supplier of the verifier of reloadable limits, overriding the limits set.
+     * 
+     * @param supplier supplier of the verifier of reloadable limits
+     */
+    public void setVerifierSupplier(@Nullable final Supplier<AuthenticationEventVerifier> supplier) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        verifierSupplier = supplier;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        Constraint.isNotNull(authenticationEventCache, "authentication event cache cannot be null");
+        if (verifierSupplier == null) {
+            Constraint.isNotNull(defaultRPLimits, "default limits cannot be null");
+            verifier = new AuthenticationEventVerifier(defaultRPLimits, rpLimits);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext) {
+
+        final long now = System.currentTimeMillis();
+        final String username = usernameLookupStrategy.apply(profileRequestContext);
+        if (username == null) {
+            log.warn("{} username is not available, nothing to do.", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        if (ThrottleCheck.isThrottled(throttle, authenticationEventCache, username)) {
+            log.debug("{} Too many attempts for user {}, throttled.", getLogPrefix(), username);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        final RelyingPartyContext relyingPartyCtx = relyingPartyContextLookupStrategy.apply(profileRequestContext);
+        if (relyingPartyCtx == null) {
+            log.error("{} No relying party context", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, IdPEventIds.INVALID_RELYING_PARTY_CTX);
+            return;
+        }
+        final StorageAuthenticationContext storageAuthenticationCtx =
+                authenticationContext.getSubcontext(StorageAuthenticationContext.class, true);
+        storageAuthenticationCtx.setUsername(username);
+        final AuthenticationEventVerifier currentVerifier =
+                verifierSupplier != null ? verifierSupplier.get() : verifier;
+        // The limits are checked against the summary carried by the reference before reading the event
+        final SummaryCheck summaryCheck =
+                new SummaryCheck(currentVerifier, currentVerifier.getLimits(relyingPartyCtx.getRelyingPartyId()),
+                        relyingPartyCtx.getRelyingPartyId(), storageAuthenticationCtx.getAuthenticationEventNotBefore(),
+                        now);
+        final AuthenticationEvent event = authenticationEventCache.locate(username,
+                storageAuthenticationCtx.getTimings(), summaryCheck);
+        storageAuthenticationCtx.setAuthenticationEvent(event);
+        if (event == null && summaryCheck.getReason() != null) {
+            RejectionReporting.reportSummaryRejection(log, getLogPrefix(), summaryCheck, username, recorder,
+                    verificationMetrics, auditLog);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
+            return;
+        }
+        if (event == null) {
+            log.debug("{} no user credentials, authentication event not available", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        if (RejectionReporting.verify(log, getLogPrefix(), currentVerifier, event,
+                relyingPartyCtx.getRelyingPartyId(), storageAuthenticationCtx.getAuthenticationEventNotBefore(), now,
+                storageAuthenticationCtx.getTimings(), recorder, verificationMetrics, auditLog) != null) {
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
+            return;
+        }
+
+        validate(profileRequestContext, authenticationContext, storageAuthenticationCtx);
+    }
+
+}
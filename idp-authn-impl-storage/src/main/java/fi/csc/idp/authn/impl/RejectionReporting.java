@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog.Action;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder.Operation;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder.Recording;
+import fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits;
+import fi.csc.idp.authn.storage.AuthenticationEventSummary;
+import fi.csc.idp.authn.storage.AuthenticationEventTimings;
+import fi.csc.idp.authn.storage.AuthenticationEventTimings.Phase;
+import fi.csc.idp.authn.storage.AuthenticationEventVerificationMetrics;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+/**
+ * Verification of the authentication events and reporting of the events rejected by the limits, shared by the actions
+ * verifying the event and the actions checking the summary carried by its reference, so that a rejection is logged,
+ * recorded, counted and audited the same way whichever of them rejects it.
+ */
+final class RejectionReporting {
+
+    /** Constructor. */
+    private RejectionReporting() {
+
+    }
+
+    /**
+     * Verify the authentication event against the limits of the relying party and report the outcome. The time spent
+     * is added to the timings, the outcome is recorded and counted, and a rejection is logged and audited.
+     * 
+     * @param log logger of the action
+     * @param logPrefix log prefix of the action
+     * @param verifier verifier of the limits
+     * @param event the event to verify
+     * @param relyingPartyId id of the relying party
+     * @param notBefore not before time of the events of the user
+     * @param now current time in ms since the epoch
+     * @param timings accumulator of the phase timings of the request
+     * @param recorder recorder of the verifications, if any
+     * @param metrics metrics of the verification outcomes, if any
+     * @param auditLog audit log of the authentication event lifecycle, if any
+     * @return reason for rejecting the event, null if it passes
+     */
+    @Nullable
+    static Reason verify(@Nonnull final Logger log, @Nonnull final String logPrefix,
+            @Nonnull final AuthenticationEventVerifier verifier, @Nonnull final AuthenticationEvent event,
+            @Nonnull final String relyingPartyId, final long notBefore, final long now,
+            @Nonnull final AuthenticationEventTimings timings, @Nullable final AuthenticationEventRecorder recorder,
+            @Nullable final AuthenticationEventVerificationMetrics metrics,
+            @Nullable final AuthenticationEventAuditLog auditLog) {
+        final long start = System.nanoTime();
+        final Recording recording = recorder != null ? recorder.begin(Operation.VERIFY) : null;
+        final AuthenticationEventRelyingPartyLimits limits = verifier.getLimits(relyingPartyId);
+        final Reason reason = verifier.verify(event, limits, notBefore, now);
+        timings.addSince(Phase.VERIFICATION, start);
+        if (recording != null) {
+            recording.end(null, relyingPartyId, reason != null ? reason.name() : "PASSED", 0);
+        }
+        if (metrics != null) {
+            if (reason != null) {
+                metrics.recordRejected(relyingPartyId, reason);
+            } else {
+                metrics.recordPassed(relyingPartyId, event, now);
+            }
+        }
+        if (reason != null) {
+            logRejection(log, logPrefix, reason, AuthenticationEventSummary.of(event), limits, notBefore);
+            if (auditLog != null) {
+                auditLog.record(Action.REJECTED, event, relyingPartyId, reason);
+            }
+        }
+        return reason;
+    }
+
+    /**
+     * Log the reason for rejecting the authentication event.
+     * 
+     * @param log logger of the action
+     * @param logPrefix log prefix of the action
+     * @param reason reason for rejecting the event
+     * @param summary summary of the rejected event
+     * @param limits limits the event was verified against
+     * @param notBefore not before time the event was verified against
+     */
+    static void logRejection(@Nonnull final Logger log, @Nonnull final String logPrefix, @Nonnull final Reason reason,
+            @Nonnull final AuthenticationEventSummary summary,
+            @Nonnull final AuthenticationEventRelyingPartyLimits limits, final long notBefore) {
+        switch (reason) {
+            case REVOKED:
+                log.debug("{} Authentication event iat {} is not passing for not before {}", logPrefix,
+                        summary.getIssuedAt(), notBefore);
+                break;
+            case MAX_AGE:
+                log.debug("{} Authentication event authentication time {} is not passing for max age {}ms",
+                        logPrefix, summary.getAuthTime(), limits.getAuthenticationMaxAge());
+                break;
+            case ROLLING_WINDOW:
+                log.debug("{} Authentication event last applied time {} is not passing for max age {}ms", logPrefix,
+                        summary.getAppliedTime(), limits.getLastAppliedMaxAge());
+                break;
+            case APPLIED_COUNT:
+                log.debug("{} Authentication event applied count {} is not passing for max value {}", logPrefix,
+                        summary.getAppliedCount(), limits.getAppliedTimesMax());
+                break;
+            default:
+                log.debug("{} Authentication event is not passing for {}", logPrefix, reason);
+        }
+    }
+
+    /**
+     * Report the rejection of the authentication event by the summary carried by its reference, the event not read.
+     * 
+     * @param log logger of the action
+     * @param logPrefix log prefix of the action
+     * @param check the failed check of the summary
+     * @param subject subject of the event
+     * @param recorder recorder of the verifications, if any
+     * @param metrics metrics of the verification outcomes, if any
+     * @param auditLog audit log of the authentication event lifecycle, if any
+     */
+    static void reportSummaryRejection(@Nonnull final Logger log, @Nonnull final String logPrefix,
+            @Nonnull final SummaryCheck check, @Nonnull final String subject,
+            @Nullable final AuthenticationEventRecorder recorder,
+            @Nullable final AuthenticationEventVerificationMetrics metrics,
+            @Nullable final AuthenticationEventAuditLog auditLog) {
+        final Reason reason = check.getReason();
+        log.debug("{} Authentication event {} is not passing limits by its summary", logPrefix,
+                check.getSummary().getID());
+        logRejection(log, logPrefix, reason, check.getSummary(), check.getLimits(), check.getNotBefore());
+        if (recorder != null) {
+            final Recording recording = recorder.begin(Operation.VERIFY);
+            if (recording != null) {
+                recording.end(null, check.getRelyingPartyId(), reason.name(), 0);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordRejected(check.getRelyingPartyId(), reason);
+        }
+        if (auditLog != null) {
+            auditLog.record(check.getSummary(), subject, check.getRelyingPartyId(), reason);
+        }
+    }
+
+}
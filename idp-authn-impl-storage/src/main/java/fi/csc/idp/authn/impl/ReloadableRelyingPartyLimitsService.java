@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import net.shibboleth.utilities.java.support.service.AbstractReloadableService;
+import net.shibboleth.utilities.java.support.service.ServiceException;
+import net.shibboleth.utilities.java.support.service.ServiceableComponent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.io.Resource;
+
+import com.google.common.base.Supplier;
+
+import fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+
+/**
+ * Service reloading the default and relying party specific limits from a Spring configuration file when the file
+ * changes. The limits are compiled into an immutable {@link AuthenticationEventVerifier} published through a volatile
+ * reference, so the verifications take no lock and see either the previous or the new limits. If a reload fails the
+ * previous limits remain in use.
+ * <p>
+ * The file is loaded in a context of its own, child of the context defining the service, with the same property
+ * placeholders and conversions available. Only the beans of the limits are instantiated from the file.
+ * </p>
+ */
+public class ReloadableRelyingPartyLimitsService extends AbstractReloadableService<AuthenticationEventVerifier>
+        implements Supplier<AuthenticationEventVerifier>, ApplicationContextAware {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(ReloadableRelyingPartyLimitsService.class);
+
+    /** Configuration file defining the limits. */
+    @NonnullAfterInit
+    private Resource resource;
+
+    /** Name of the bean of the default limits. Default value: AuthenticationEventLimits */
+    @Nonnull
+    @NotEmpty
+    private String defaultLimitsBeanName;
+
+    /** Name of the bean of the list of relying party specific limits. Default value: RelyingPartyLimits */
+    @Nonnull
+    @NotEmpty
+    private String relyingPartyLimitsBeanName;
+
+    /** Context defining the service, parent of the contexts the file is loaded in. */
+    @Nullable
+    private ApplicationContext parentContext;
+
+    /** Verifier of the limits last loaded. */
+    @Nullable
+    private volatile AuthenticationEventVerifier verifier;
+
+    /** Modification time of the file last loaded. */
+    private long lastModified;
+
+    /** Constructor. */
+    public ReloadableRelyingPartyLimitsService() {
+        defaultLimitsBeanName = "AuthenticationEventLimits";
+        relyingPartyLimitsBeanName = "RelyingPartyLimits";
+    }
+
+    /**
+     * Set the configuration file defining the limits.
+     * 
+     * @param configResource configuration file defining the limits
+     */
+    public void setResource(@Nonnull final Resource configResource) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        resource = Constraint.isNotNull(configResource, "Resource cannot be null");
+    }
+
+    /**
+     * Set the name of the bean of the default limits.
+     * 
+     * @param name name of the bean of the default limits
+     */
+    public void setDefaultLimitsBeanName(@Nonnull @NotEmpty final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        defaultLimitsBeanName = Constraint.isNotNull(StringSupport.trimOrNull(name),
+                "Default limits bean name cannot be null or empty");
+    }
+
+    /**
+     * Set the name of the bean of the list of relying party specific limits.
+     * 
+     * @param name name of the bean of the list of relying party specific limits
+     */
+    public void setRelyingPartyLimitsBeanName(@Nonnull @NotEmpty final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        relyingPartyLimitsBeanName = Constraint.isNotNull(StringSupport.trimOrNull(name),
+                "Relying party limits bean name cannot be null or empty");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setApplicationContext(final ApplicationContext applicationContext) throws BeansException {
+        parentContext = applicationContext;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        if (resource == null) {
+            throw new ComponentInitializationException("Resource cannot be null");
+        }
+        super.doInitialize();
+        if (verifier == null) {
+            throw new ComponentInitializationException("Limits could not be loaded from " + resource);
+        }
+    }
+
+    /**
+     * Get the verifier of the limits last loaded. Takes no lock.
+     * 
+     * @return verifier of the limits last loaded
+     */
+    @Override
+    @Nonnull
+    public AuthenticationEventVerifier get() {
+        return verifier;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public ServiceableComponent<AuthenticationEventVerifier> getServiceableComponent() {
+        final AuthenticationEventVerifier current = verifier;
+        // The verifier is immutable, there is nothing to pin
+        return new ServiceableComponent<AuthenticationEventVerifier>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public AuthenticationEventVerifier getComponent() {
+                return current;
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void pinComponent() {
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void unpinComponent() {
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void unloadComponent() {
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean shouldReload() {
+        try {
+            return resource.lastModified() != lastModified;
+        } catch (final IOException e) {
+            log.warn("{} Unable to read modification time of {}", getLogPrefix(), resource, e);
+            return false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doReload() {
+        super.doReload();
+        final long modified;
+        final GenericApplicationContext context = new GenericApplicationContext();
+        try {
+            modified = resource.lastModified();
+            if (parentContext != null) {
+                context.setParent(parentContext);
+                if (parentContext instanceof ConfigurableApplicationContext) {
+                    context.getBeanFactory().setConversionService(
+                            ((ConfigurableApplicationContext) parentContext).getBeanFactory().getConversionService());
+                }
+            }
+            final PropertySourcesPlaceholderConfigurer placeholders = new PropertySourcesPlaceholderConfigurer();
+            placeholders.setPlaceholderPrefix("%{");
+            placeholders.setPlaceholderSuffix("}");
+            placeholders.setEnvironment(context.getEnvironment());
+            context.addBeanFactoryPostProcessor(placeholders);
+            new XmlBeanDefinitionReader(context).loadBeanDefinitions(resource);
+            // Only the limits are instantiated, other beans of the file belong to the flow
+            for (final String name : context.getBeanDefinitionNames()) {
+                context.getBeanDefinition(name).setLazyInit(true);
+            }
+            context.refresh();
+            final AuthenticationEventRelyingPartyLimits defaultLimits =
+                    context.getBean(defaultLimitsBeanName, AuthenticationEventRelyingPartyLimits.class);
+            @SuppressWarnings("unchecked")
+            final List<AuthenticationEventRelyingPartyLimits> rpLimits =
+                    context.containsBean(relyingPartyLimitsBeanName)
+                            ? context.getBean(relyingPartyLimitsBeanName, List.class) : null;
+            verifier = new AuthenticationEventVerifier(defaultLimits, rpLimits);
+            lastModified = modified;
+            log.info("{} Loaded limits for {} relying parties from {}", getLogPrefix(),
+                    rpLimits != null ? rpLimits.size() : 0, resource);
+        } catch (final IOException | BeansException e) {
+            throw new ServiceException("Unable to load limits from " + resource, e);
+        } finally {
+            context.close();
+        }
+    }
+}
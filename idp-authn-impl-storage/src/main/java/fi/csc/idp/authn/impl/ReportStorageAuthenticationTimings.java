@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.authn.AbstractAuthenticationAction;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import fi.csc.idp.authn.context.StorageAuthenticationContext;
+import fi.csc.idp.authn.storage.AuthenticationEventTimings;
+import fi.csc.idp.authn.storage.AuthenticationEventTimings.Phase;
+
+/**
+ * Action reporting the time spent in the phases of storage authentication within the request. If the total reaches
+ * the threshold, a single line is logged at warn level with the timings also put to the logging MDC as microseconds
+ * under keys prefixed with {@link #MDC_PREFIX}. The keys are removed once the line is logged, as the threads serving
+ * requests are pooled. The action never signals an event and is meant to be evaluated when the flow ends.
+ */
+@SuppressWarnings("rawtypes")
+public class ReportStorageAuthenticationTimings extends AbstractAuthenticationAction {
+
+    /** Prefix of the MDC keys of the timings. */
+    @Nonnull
+    public static final String MDC_PREFIX = "idp.storageauthn.";
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(ReportStorageAuthenticationTimings.class);
+
+    /** Total time in ms at which the timings are logged. */
+    @Duration
+    @NonNegative
+    private long threshold = 1000;
+
+    /**
+     * Set total time in ms at which the timings are logged. 0 logs the timings of every request.
+     * 
+     * @param slowThreshold total time in ms at which the timings are logged
+     */
+    @Duration
+    public void setThreshold(@NonNegative @Duration final long slowThreshold) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        threshold = Constraint.isGreaterThanOrEqual(0, slowThreshold, "Threshold must be non-negative");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext) {
+
+        final StorageAuthenticationContext storageAuthenticationCtx =
+                authenticationContext.getSubcontext(StorageAuthenticationContext.class, false);
+        if (storageAuthenticationCtx == null) {
+            return;
+        }
+        final AuthenticationEventTimings timings = storageAuthenticationCtx.getTimings();
+        final long total = timings.getTotal();
+        if (total < threshold * 1000000) {
+            return;
+        }
+        for (final Phase phase : Phase.values()) {
+            MDC.put(MDC_PREFIX + phase.getKey(), Long.toString(timings.get(phase) / 1000));
+        }
+        MDC.put(MDC_PREFIX + "total", Long.toString(total / 1000));
+        try {
+            log.warn("{} Slow storage authentication for user {}, timings in us: {}", getLogPrefix(),
+                    storageAuthenticationCtx.getUsername(), timings);
+        } finally {
+            for (final Phase phase : Phase.values()) {
+                MDC.remove(MDC_PREFIX + phase.getKey());
+            }
+            MDC.remove(MDC_PREFIX + "total");
+        }
+    }
+
+}
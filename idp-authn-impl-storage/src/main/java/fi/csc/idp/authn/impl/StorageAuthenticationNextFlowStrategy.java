@@ -0,0 +1,290 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AttributeResolver;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.idp.session.context.navigate.CanonicalUsernameLookupStrategy;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import net.shibboleth.utilities.java.support.service.ReloadableService;
+
+import org.opensaml.messaging.context.navigate.ChildContextLookup;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import fi.csc.idp.authn.context.StorageAuthenticationContext;
+
+/**
+ * Next flow strategy for the MFA flow selecting the storage flow after setting the not before time of the
+ * authentication events of the user. The time is resolved from an attribute of the user, a string of ms since the
+ * epoch, and optionally cached per user for a while. A value that is not a number rejects all events of the user.
+ * Replaces the scripted revocation lookup of the example MFA configuration.
+ * <p>
+ * By default the attribute is resolved on every login. If a cache lifetime is set, a revocation takes effect once the
+ * cached time of the user expires.
+ * </p>
+ */
+@SuppressWarnings("rawtypes")
+@ThreadSafeAfterInit
+public class StorageAuthenticationNextFlowStrategy extends AbstractInitializableComponent
+        implements Function<ProfileRequestContext, String> {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(StorageAuthenticationNextFlowStrategy.class);
+
+    /** Flow selected. Default value: authn/storage */
+    @Nonnull
+    @NotEmpty
+    private String nextFlow;
+
+    /** Id of the attribute holding the not before time. Default value: revok */
+    @Nonnull
+    @NotEmpty
+    private String attributeId;
+
+    /** Attribute resolver service. */
+    @NonnullAfterInit
+    private ReloadableService<AttributeResolver> attributeResolver;
+
+    /** Lookup strategy for the username. */
+    @Nonnull
+    private Function<ProfileRequestContext, String> usernameLookupStrategy;
+
+    /** Authentication context lookup strategy. */
+    @Nonnull
+    private Function<ProfileRequestContext, AuthenticationContext> authenticationContextLookupStrategy;
+
+    /** Time in ms the not before time of a user is cached. 0 disables caching. Default value: 0 */
+    @NonNegative
+    @Duration
+    private long cacheLifetime;
+
+    /** Maximum number of users whose not before time is cached. Default value: 10000 */
+    @Positive
+    private int maxEntries;
+
+    /** Not before times by user, if cached. */
+    @Nullable
+    private Cache<String, Long> notBefores;
+
+    /** Constructor. */
+    public StorageAuthenticationNextFlowStrategy() {
+        nextFlow = "authn/storage";
+        attributeId = "revok";
+        usernameLookupStrategy = new CanonicalUsernameLookupStrategy();
+        authenticationContextLookupStrategy = new ChildContextLookup<>(AuthenticationContext.class);
+        cacheLifetime = 0;
+        maxEntries = 10000;
+    }
+
+    /**
+     * Set the flow selected.
+     * 
+     * @param flow flow selected
+     */
+    public void setNextFlow(@Nonnull @NotEmpty final String flow) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        nextFlow = Constraint.isNotNull(StringSupport.trimOrNull(flow), "Next flow cannot be null or empty");
+    }
+
+    /**
+     * Set the id of the attribute holding the not before time.
+     * 
+     * @param id id of the attribute holding the not before time
+     */
+    public void setAttributeId(@Nonnull @NotEmpty final String id) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        attributeId = Constraint.isNotNull(StringSupport.trimOrNull(id), "Attribute id cannot be null or empty");
+    }
+
+    /**
+     * Set the attribute resolver service.
+     * 
+     * @param resolver attribute resolver service
+     */
+    public void setAttributeResolver(@Nonnull final ReloadableService<AttributeResolver> resolver) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        attributeResolver = Constraint.isNotNull(resolver, "Attribute resolver cannot be null");
+    }
+
+    /**
+     * Set the lookup strategy for the username.
+     * 
+     * @param strategy lookup strategy
+     */
+    public void setUsernameLookupStrategy(@Nonnull final Function<ProfileRequestContext, String> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        usernameLookupStrategy = Constraint.isNotNull(strategy, "Username lookup strategy cannot be null");
+    }
+
+    /**
+     * Set the authentication context lookup strategy.
+     * 
+     * @param strategy lookup strategy
+     */
+    public void setAuthenticationContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext, AuthenticationContext> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        authenticationContextLookupStrategy =
+                Constraint.isNotNull(strategy, "AuthenticationContext lookup strategy cannot be null");
+    }
+
+    /**
+     * Set the time in ms the not before time of a user is cached. 0 disables caching.
+     * 
+     * @param lifetime time in ms the not before time of a user is cached
+     */
+    @Duration
+    public void setCacheLifetime(@NonNegative @Duration final long lifetime) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        cacheLifetime = Constraint.isGreaterThanOrEqual(0, lifetime, "Cache lifetime must not be negative");
+    }
+
+    /**
+     * Set the maximum number of users whose not before time is cached.
+     * 
+     * @param max maximum number of users whose not before time is cached
+     */
+    public void setMaxEntries(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxEntries = (int) Constraint.isGreaterThan(0, max, "Max entries must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (attributeResolver == null) {
+            throw new ComponentInitializationException("Attribute resolver cannot be null");
+        }
+        if (cacheLifetime > 0) {
+            notBefores = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                    .expireAfterWrite(cacheLifetime, TimeUnit.MILLISECONDS).build();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public String apply(@Nullable final ProfileRequestContext input) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final AuthenticationContext authenticationContext =
+                input != null ? authenticationContextLookupStrategy.apply(input) : null;
+        if (authenticationContext == null) {
+            log.warn("No authentication context, not before time not set");
+            return nextFlow;
+        }
+        final String username = usernameLookupStrategy.apply(input);
+        if (username == null) {
+            log.warn("No username, not before time not set");
+            return nextFlow;
+        }
+        Long notBefore = notBefores != null ? notBefores.getIfPresent(username) : null;
+        if (notBefore == null) {
+            notBefore = resolveNotBefore(input, username);
+            if (notBefores != null) {
+                notBefores.put(username, notBefore);
+            }
+        }
+        if (notBefore != 0) {
+            log.debug("Authentication events of user {} issued before {} are not accepted", username, notBefore);
+            authenticationContext.getSubcontext(StorageAuthenticationContext.class, true)
+                    .setAuthenticationEventNotBefore(notBefore);
+        }
+        return nextFlow;
+    }
+
+    /**
+     * Resolve the not before time of the user.
+     * 
+     * @param profileRequestContext profile request context
+     * @param username the user
+     * @return not before time in ms since the epoch, 0 if none, {@link Long#MAX_VALUE} if not a number
+     */
+    private long resolveNotBefore(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final String username) {
+        final String value = resolveValue(profileRequestContext, username);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            log.warn("Attribute {} of user {} is not a time, rejecting all events: {}", attributeId, username, value);
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Resolve the value of the attribute holding the not before time of the user.
+     * 
+     * @param profileRequestContext profile request context
+     * @param username the user
+     * @return first value of the attribute, null if none
+     */
+    @Nullable
+    String resolveValue(@Nonnull final ProfileRequestContext profileRequestContext, @Nonnull final String username) {
+        final AttributeResolutionContext resolutionContext =
+                profileRequestContext.getSubcontext(AttributeResolutionContext.class, true);
+        try {
+            resolutionContext.setPrincipal(username);
+            resolutionContext.setRequestedIdPAttributeNames(Collections.singletonList(attributeId));
+            resolutionContext.resolveAttributes(attributeResolver);
+            final IdPAttribute attribute = resolutionContext.getResolvedIdPAttributes().get(attributeId);
+            final List<IdPAttributeValue<?>> values = attribute != null ? attribute.getValues() : null;
+            if (values == null || values.isEmpty() || values.get(0).getValue() == null) {
+                return null;
+            }
+            return values.get(0).getValue().toString();
+        } finally {
+            profileRequestContext.removeSubcontext(resolutionContext);
+        }
+    }
+}
@@ -23,6 +23,8 @@
 
 package fi.csc.idp.authn.impl;
 
+import java.util.concurrent.ExecutionException;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import net.shibboleth.idp.authn.AbstractAuthenticationAction;
@@ -35,6 +37,7 @@ import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterI
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.logic.FunctionSupport;
 import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
 import net.shibboleth.utilities.java.support.security.SecureRandomIdentifierGenerationStrategy;
 import org.opensaml.profile.action.EventIds;
@@ -42,15 +45,24 @@ import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.google.common.base.Function;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import fi.csc.idp.authn.context.StorageAuthenticationContext;
 import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog.Action;
 import fi.csc.idp.authn.storage.AuthenticationEventCache;
+import fi.csc.idp.authn.storage.AuthenticationEventTimings.Phase;
 
 /** Action storing authentication event for user. */
 @SuppressWarnings({"rawtypes"})
 public class StoreAuthenticationEvent extends AbstractAuthenticationAction {
 
+    /** Identifier generator shared by all instances by default. */
+    @Nonnull
+    private static final IdentifierGenerationStrategy DEFAULT_ID_GENERATOR =
+            new SecureRandomIdentifierGenerationStrategy();
+
     /** Class logger. */
     @Nonnull
     private final Logger log = LoggerFactory.getLogger(StoreAuthenticationEvent.class);
@@ -63,6 +75,10 @@ public class StoreAuthenticationEvent extends AbstractAuthenticationAction {
     @NonnullAfterInit
     private AuthenticationEventCache authenticationEventCache;
 
+    /** Audit log of the authentication event lifecycle. */
+    @Nullable
+    private AuthenticationEventAuditLog auditLog;
+
     /** Username to store the authentication event for. */
     private String username;
 
@@ -86,11 +102,21 @@ public class StoreAuthenticationEvent extends AbstractAuthenticationAction {
     StoreAuthenticationEvent() {
         usernameLookupStrategy = new CanonicalUsernameLookupStrategy();
         issuerLookupStrategy = new ResponderIdLookupFunction();
-        idGeneratorLookupStrategy = new Function<ProfileRequestContext, IdentifierGenerationStrategy>() {
-            public IdentifierGenerationStrategy apply(ProfileRequestContext input) {
-                return new SecureRandomIdentifierGenerationStrategy();
-            }
-        };
+        idGeneratorLookupStrategy =
+                FunctionSupport.<ProfileRequestContext, IdentifierGenerationStrategy> constant(DEFAULT_ID_GENERATOR);
+    }
+
+    /**
+     * Set the {@link IdentifierGenerationStrategy} to use. The generator is shared by all requests and must be
+     * thread-safe.
+     * 
+     * @param generator identifier generator
+     */
+    public void setIdentifierGenerator(@Nonnull final IdentifierGenerationStrategy generator) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        idGeneratorLookupStrategy = FunctionSupport.<ProfileRequestContext, IdentifierGenerationStrategy> constant(
+                Constraint.isNotNull(generator, "IdentifierGenerationStrategy cannot be null"));
     }
 
     /**
@@ -117,6 +143,17 @@ public class StoreAuthenticationEvent extends AbstractAuthenticationAction {
         issuerLookupStrategy = strategy;
     }
 
+    /**
+     * Set the strategy used to look up the username when it is not available in {@link StorageAuthenticationContext}.
+     * 
+     * @param strategy lookup strategy
+     */
+    public void setUsernameLookupStrategy(@Nonnull final Function<ProfileRequestContext, String> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        usernameLookupStrategy = Constraint.isNotNull(strategy, "Username lookup strategy cannot be null");
+    }
+
     /**
      * Get the authentication event cache instance to use.
      * 
@@ -137,6 +174,16 @@ public class StoreAuthenticationEvent extends AbstractAuthenticationAction {
         authenticationEventCache = Constraint.isNotNull(cache, "authentication event cache cannot be null");
     }
 
+    /**
+     * Set the audit log of the authentication event lifecycle.
+     * 
+     * @param eventAuditLog audit log of the authentication event lifecycle
+     */
+    public void setAuditLog(@Nullable final AuthenticationEventAuditLog eventAuditLog) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        auditLog = eventAuditLog;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
@@ -149,15 +196,13 @@ public class StoreAuthenticationEvent extends AbstractAuthenticationAction {
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
-        storageAuthenticationCtx = authenticationContext.getSubcontext(StorageAuthenticationContext.class, false);
-        if (storageAuthenticationCtx == null) {
-            log.warn(
-                    "{} No StorageAuthenticationContext available within authentication context. Implies mfa configuration is bad.",
-                    getLogPrefix());
-            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_AUTHN_CTX);
-            return false;
-        }
+        storageAuthenticationCtx = authenticationContext.getSubcontext(StorageAuthenticationContext.class, true);
+        // The context of the storage flow is removed when it ends, fall back to the canonical username.
         username = storageAuthenticationCtx.getUsername();
+        if (username == null) {
+            username = usernameLookupStrategy.apply(profileRequestContext);
+            storageAuthenticationCtx.setUsername(username);
+        }
         if (username == null) {
             log.warn("{} username is not available, nothing to do. Implies mfa configuration is bad.", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
@@ -177,9 +222,26 @@ public class StoreAuthenticationEvent extends AbstractAuthenticationAction {
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
         log.debug("{} Storing authentication event for user {}", getLogPrefix(), username);
-        AuthenticationEvent event = new AuthenticationEvent(idGenerator.generateIdentifier(), username,
+        final AuthenticationEvent event = new AuthenticationEvent(idGenerator.generateIdentifier(), username,
                 issuerLookupStrategy.apply(profileRequestContext), System.currentTimeMillis());
-        authenticationEventCache.set(username, event);
+        // The event is written to server-side storage in parallel with the reference.
+        final long start = System.nanoTime();
+        boolean stored = false;
+        try {
+            stored = Uninterruptibles.getUninterruptibly(authenticationEventCache.setAsync(username, event));
+        } catch (final ExecutionException e) {
+            log.error("{} Storing authentication event {} failed", getLogPrefix(), event.getID(), e);
+        } finally {
+            storageAuthenticationCtx.getTimings().addSince(Phase.WRITE_BACK, start);
+        }
+        if (!stored) {
+            log.error("{} Storing authentication event failed.", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.ACCOUNT_ERROR);
+            return;
+        }
+        if (auditLog != null) {
+            auditLog.record(Action.CREATED, event, null, null);
+        }
         return;
     }
 
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.Predicate;
+
+import fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits;
+import fi.csc.idp.authn.storage.AuthenticationEventSummary;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+/**
+ * Check of the summary carried by the reference of the authentication event, verifying it against the limits of the
+ * relying party before the event is read. Created per request, remembers the reason the summary failed for.
+ */
+@NotThreadSafe
+class SummaryCheck implements Predicate<AuthenticationEventSummary> {
+
+    /** Verifier of the limits. */
+    @Nonnull
+    private final AuthenticationEventVerifier verifier;
+
+    /** Limits of the relying party. */
+    @Nonnull
+    private final AuthenticationEventRelyingPartyLimits limits;
+
+    /** Id of the relying party. */
+    @Nonnull
+    private final String relyingPartyId;
+
+    /** Time in ms since the epoch for events issued before not be accepted, 0 for none. */
+    private final long notBefore;
+
+    /** Current time in ms since the epoch. */
+    private final long now;
+
+    /** Summary checked. */
+    @Nullable
+    private AuthenticationEventSummary summary;
+
+    /** Reason the summary failed for. */
+    @Nullable
+    private Reason reason;
+
+    /**
+     * Constructor.
+     * 
+     * @param eventVerifier verifier of the limits
+     * @param rpLimits limits of the relying party
+     * @param rpId id of the relying party
+     * @param tsNotBefore time in ms since the epoch for events issued before not be accepted, 0 for none
+     * @param tsNow current time in ms since the epoch
+     */
+    SummaryCheck(@Nonnull final AuthenticationEventVerifier eventVerifier,
+            @Nonnull final AuthenticationEventRelyingPartyLimits rpLimits, @Nonnull final String rpId,
+            final long tsNotBefore, final long tsNow) {
+        verifier = eventVerifier;
+        limits = rpLimits;
+        relyingPartyId = rpId;
+        notBefore = tsNotBefore;
+        now = tsNow;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean apply(@Nullable final AuthenticationEventSummary input) {
+        summary = input;
+        reason = input != null ? verifier.verify(input, limits, notBefore, now) : null;
+        return reason == null;
+    }
+
+    /**
+     * Get the limits of the relying party.
+     * 
+     * @return limits of the relying party
+     */
+    @Nonnull
+    AuthenticationEventRelyingPartyLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Get the id of the relying party.
+     * 
+     * @return id of the relying party
+     */
+    @Nonnull
+    String getRelyingPartyId() {
+        return relyingPartyId;
+    }
+
+    /**
+     * Get the time in ms since the epoch for events issued before not be accepted.
+     * 
+     * @return time in ms since the epoch for events issued before not be accepted, 0 for none
+     */
+    long getNotBefore() {
+        return notBefore;
+    }
+
+    /**
+     * Get the summary checked.
+     * 
+     * @return summary checked, null if none
+     */
+    @Nullable
+    AuthenticationEventSummary getSummary() {
+        return summary;
+    }
+
+    /**
+     * Get the reason the summary failed for.
+     * 
+     * @return reason the summary failed for, null if it passed or was not checked
+     */
+    @Nullable
+    Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+import org.opensaml.core.metrics.MetricsSupport;
+
+import com.codahale.metrics.MetricRegistry;
+
+import fi.csc.idp.authn.storage.AuthenticationEventCache;
+import fi.csc.idp.authn.storage.AuthenticationEventThrottle;
+
+/**
+ * Check of the attempts of the user against the throttle, shared by the actions locating the authentication event.
+ * Throttled attempts are counted in a metric.
+ */
+final class ThrottleCheck {
+
+    /** Name of the metric counting throttled attempts. */
+    @Nonnull
+    @NotEmpty
+    static final String THROTTLED_METRIC_NAME = MetricRegistry.name("fi.csc.idp.authn.impl.storage", "throttled");
+
+    /** Constructor. */
+    private ThrottleCheck() {
+
+    }
+
+    /**
+     * Check whether the attempt of the user is throttled, counting the throttled attempt.
+     * 
+     * @param throttle throttle for attempts per user, if any
+     * @param cache authentication event cache deriving the key the user is throttled by
+     * @param username the user
+     * @return true if the attempt is throttled
+     */
+    static boolean isThrottled(@Nullable final AuthenticationEventThrottle throttle,
+            @Nonnull final AuthenticationEventCache cache, @Nonnull final String username) {
+        if (throttle == null || !throttle.isEnabled() || throttle.tryAcquire(cache.deriveKey(username))) {
+            return false;
+        }
+        final MetricRegistry registry = MetricsSupport.getMetricRegistry();
+        if (registry != null) {
+            registry.counter(THROTTLED_METRIC_NAME).inc();
+        }
+        return true;
+    }
+
+}
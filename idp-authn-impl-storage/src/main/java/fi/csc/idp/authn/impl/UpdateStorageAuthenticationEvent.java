@@ -39,6 +39,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fi.csc.idp.authn.context.StorageAuthenticationContext;
+import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog.Action;
 import fi.csc.idp.authn.storage.AuthenticationEventCache;
 
 /** Action updating the authentication event. Each time event is applied the applied time and count are updated. */
@@ -57,6 +60,10 @@ public class UpdateStorageAuthenticationEvent extends AbstractAuthenticationActi
     @NonnullAfterInit
     private AuthenticationEventCache authenticationEventCache;
 
+    /** Audit log of the authentication event lifecycle. */
+    @Nullable
+    private AuthenticationEventAuditLog auditLog;
+
     /**
      * Set the authentication event cache instance to use.
      * 
@@ -67,6 +74,16 @@ public class UpdateStorageAuthenticationEvent extends AbstractAuthenticationActi
         authenticationEventCache = Constraint.isNotNull(cache, "authentication event cache cannot be null");
     }
 
+    /**
+     * Set the audit log of the authentication event lifecycle.
+     * 
+     * @param eventAuditLog audit log of the authentication event lifecycle
+     */
+    public void setAuditLog(@Nullable final AuthenticationEventAuditLog eventAuditLog) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        auditLog = eventAuditLog;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
@@ -96,12 +113,19 @@ public class UpdateStorageAuthenticationEvent extends AbstractAuthenticationActi
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
-        storageAuthenticationCtx.getAuthenticationEvent().apply();
-        if (!authenticationEventCache.set(storageAuthenticationCtx.getUsername(),
-                storageAuthenticationCtx.getAuthenticationEvent())) {
+        final AuthenticationEvent event = storageAuthenticationCtx.getAuthenticationEvent();
+        event.apply();
+        if (!authenticationEventCache.set(storageAuthenticationCtx.getUsername(), event,
+                storageAuthenticationCtx.getTimings())) {
             log.error("{} Updating authentication event failed.", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.ACCOUNT_ERROR);
+            return;
+        }
+        if (auditLog != null) {
+            auditLog.record(Action.REUSED, event, null, null);
         }
+        // Nothing needs the event itself any more
+        storageAuthenticationCtx.releaseAuthenticationEvent();
     }
 
-}
\ No newline at end of file
+}
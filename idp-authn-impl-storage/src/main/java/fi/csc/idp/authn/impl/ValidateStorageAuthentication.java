@@ -39,6 +39,9 @@ import org.slf4j.LoggerFactory;
 
 import fi.csc.idp.authn.context.StorageAuthenticationContext;
 
+/**
+ * Action building the authentication result for the user of the located authentication event.
+ */
 @SuppressWarnings("rawtypes")
 public class ValidateStorageAuthentication extends AbstractValidationAction {
 
@@ -51,10 +54,6 @@ public class ValidateStorageAuthentication extends AbstractValidationAction {
     @Nonnull
     private final Logger log = LoggerFactory.getLogger(ValidateStorageAuthentication.class);
 
-    /** Storage Authentication Event to evaluate. */
-    @Nullable
-    private StorageAuthenticationContext storageAuthenticationCtx;
-
     /** The principal name established by the action, if any. */
     @Nullable
     private String principalName;
@@ -79,14 +78,6 @@ public class ValidateStorageAuthentication extends AbstractValidationAction {
             recordFailure();
             return false;
         }
-        storageAuthenticationCtx = authenticationContext.getSubcontext(StorageAuthenticationContext.class, false);
-        if (storageAuthenticationCtx == null) {
-            log.warn("{} No StorageAuthenticationContext available within authentication context", getLogPrefix());
-            handleError(profileRequestContext, authenticationContext, "InvalidAuthenticationContext",
-                    AuthnEventIds.INVALID_AUTHN_CTX);
-            recordFailure();
-            return false;
-        }
         return true;
     }
 
@@ -96,6 +87,29 @@ public class ValidateStorageAuthentication extends AbstractValidationAction {
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
+        final StorageAuthenticationContext storageAuthenticationCtx =
+                authenticationContext.getSubcontext(StorageAuthenticationContext.class, false);
+        if (storageAuthenticationCtx == null) {
+            log.warn("{} No StorageAuthenticationContext available within authentication context", getLogPrefix());
+            handleError(profileRequestContext, authenticationContext, "InvalidAuthenticationContext",
+                    AuthnEventIds.INVALID_AUTHN_CTX);
+            recordFailure();
+            return;
+        }
+        validate(profileRequestContext, authenticationContext, storageAuthenticationCtx);
+    }
+
+    /**
+     * Build the authentication result for the subject of the authentication event in the storage authentication
+     * context.
+     * 
+     * @param profileRequestContext the current profile request context
+     * @param authenticationContext the current authentication context
+     * @param storageAuthenticationCtx the storage authentication context
+     */
+    protected void validate(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext,
+            @Nonnull final StorageAuthenticationContext storageAuthenticationCtx) {
         if (storageAuthenticationCtx.getAuthenticationEvent() == null
                 || storageAuthenticationCtx.getAuthenticationEvent().getSubject() == null) {
             // Should not ever come here if flow works correctly
@@ -42,8 +42,15 @@ import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import fi.csc.idp.authn.context.StorageAuthenticationContext;
+import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventAuditLog;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder;
 import fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits;
+import fi.csc.idp.authn.storage.AuthenticationEventVerificationMetrics;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
 
 /** Action verifying the authentication event passes the requirements. */
 @SuppressWarnings("rawtypes")
@@ -72,6 +79,26 @@ public class VerifyStorageAuthenticationEvent extends AbstractAuthenticationActi
     @Nullable
     private List<AuthenticationEventRelyingPartyLimits> rpLimits;
 
+    /** Audit log of the authentication event lifecycle. */
+    @Nullable
+    private AuthenticationEventAuditLog auditLog;
+
+    /** Recorder of the verifications. */
+    @Nullable
+    private AuthenticationEventRecorder recorder;
+
+    /** Metrics of the verification outcomes. */
+    @Nullable
+    private AuthenticationEventVerificationMetrics verificationMetrics;
+
+    /** Verifier built from the limits. */
+    @Nullable
+    private AuthenticationEventVerifier verifier;
+
+    /** Supplier of the verifier of reloadable limits, overriding the limits set if any. */
+    @Nullable
+    private Supplier<AuthenticationEventVerifier> verifierSupplier;
+
     VerifyStorageAuthenticationEvent() {
         relyingPartyContextLookupStrategy = new ChildContextLookup<>(RelyingPartyContext.class);
     }
@@ -109,11 +136,54 @@ public class VerifyStorageAuthenticationEvent extends AbstractAuthenticationActi
         rpLimits = limits;
     }
 
+    /**
+     * Set the audit log of the authentication event lifecycle.
+     * 
+     * @param eventAuditLog audit log of the authentication event lifecycle
+     */
+    public void setAuditLog(@Nullable final AuthenticationEventAuditLog eventAuditLog) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        auditLog = eventAuditLog;
+    }
+
+    /**
+     * Set the recorder of the verifications.
+     * 
+     * @param verificationRecorder recorder of the verifications
+     */
+    public void setRecorder(@Nullable final AuthenticationEventRecorder verificationRecorder) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        recorder = verificationRecorder;
+    }
+
+    /**
+     * Set the metrics of the verification outcomes.
+     * 
+     * @param metrics metrics of the verification outcomes
+     */
+    public void setVerificationMetrics(@Nullable final AuthenticationEventVerificationMetrics metrics) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        verificationMetrics = metrics;
+    }
+
+    /**
+     * Set the supplier of the verifier of reloadable limits, overriding the limits set.
+     * 
+     * @param supplier supplier of the verifier of reloadable limits
+     */
+    public void setVerifierSupplier(@Nullable final Supplier<AuthenticationEventVerifier> supplier) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        verifierSupplier = supplier;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
-        Constraint.isNotNull(defaultRPLimits, "default limits cannot be null");
+        if (verifierSupplier == null) {
+            Constraint.isNotNull(defaultRPLimits, "default limits cannot be null");
+            verifier = new AuthenticationEventVerifier(defaultRPLimits, rpLimits);
+        }
     }
 
     /** {@inheritDoc} */
@@ -144,64 +214,18 @@ public class VerifyStorageAuthenticationEvent extends AbstractAuthenticationActi
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
-        // See if the event is revoked
-        if (storageAuthenticationCtx.getAuthenticationEventNotBefore() > storageAuthenticationCtx
-                .getAuthenticationEvent().getIssuedAt()) {
-            log.debug("{} Authentication event iat {} is not passing for not before {}", getLogPrefix(),
-                    storageAuthenticationCtx.getAuthenticationEvent().getIssuedAt(),
-                    storageAuthenticationCtx.getAuthenticationEventNotBefore());
-            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
-            return;
-        }
+        final AuthenticationEvent event = storageAuthenticationCtx.getAuthenticationEvent();
 
         // Use either global or rp specific limits
-        AuthenticationEventRelyingPartyLimits aeLimits = defaultRPLimits;
-        String rpId = relyingPartyCtx.getRelyingPartyId();
-        if (rpId != null && rpLimits != null) {
-            for (AuthenticationEventRelyingPartyLimits limits : rpLimits) {
-                if (rpId.equals(limits.getRelyingPartyId())) {
-                    aeLimits = limits;
-                    break;
-                }
-            }
-        }
-
-        // Check authentication max age
-        if (aeLimits.getAuthenticationMaxAge() != 0) {
-            long dueTime = storageAuthenticationCtx.getAuthenticationEvent().getAuthTime()
-                    + (aeLimits.getAuthenticationMaxAge());
-            if (dueTime < System.currentTimeMillis()) {
-                log.debug("{} Authentication event authentication time {} is not passing for max age {}ms",
-                        getLogPrefix(), storageAuthenticationCtx.getAuthenticationEvent().getAuthTime(),
-                        aeLimits.getAuthenticationMaxAge());
-                ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
-                return;
-            }
-        }
-
-        // Check rolling window
-        if (aeLimits.getLastAppliedMaxAge() != 0) {
-            long dueTime = storageAuthenticationCtx.getAuthenticationEvent().getAppliedTime()
-                    + (aeLimits.getLastAppliedMaxAge());
-            if (dueTime < System.currentTimeMillis()) {
-                log.debug("{} Authentication event last applied time {} is not passing for max age {}ms",
-                        getLogPrefix(), storageAuthenticationCtx.getAuthenticationEvent().getAppliedTime(),
-                        aeLimits.getLastAppliedMaxAge());
-                ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
-                return;
-            }
-        }
-
-        // Check for max times used
-        if (aeLimits.getAppliedTimesMax() != 0) {
-            if (aeLimits.getAppliedTimesMax() <= storageAuthenticationCtx.getAuthenticationEvent().getAppliedCount()) {
-                log.debug("{} Authentication event applied count {} is not passing for max value {}", getLogPrefix(),
-                        storageAuthenticationCtx.getAuthenticationEvent().getAppliedCount(),
-                        aeLimits.getAppliedTimesMax());
-                ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
-                return;
-            }
+        final AuthenticationEventVerifier currentVerifier =
+                verifierSupplier != null ? verifierSupplier.get() : verifier;
+        final Reason reason = RejectionReporting.verify(log, getLogPrefix(), currentVerifier, event,
+                relyingPartyCtx.getRelyingPartyId(), storageAuthenticationCtx.getAuthenticationEventNotBefore(),
+                System.currentTimeMillis(), storageAuthenticationCtx.getTimings(), recorder, verificationMetrics,
+                auditLog);
+        if (reason != null) {
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_CREDENTIALS);
         }
     }
 
-}
\ No newline at end of file
+}
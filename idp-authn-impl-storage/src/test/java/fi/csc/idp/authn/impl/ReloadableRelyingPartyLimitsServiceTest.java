@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.service.ServiceException;
+
+import org.springframework.core.io.FileSystemResource;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+
+public class ReloadableRelyingPartyLimitsServiceTest {
+
+    Path file;
+
+    ReloadableRelyingPartyLimitsService service;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        file = Files.createTempFile("storage-authn-config", ".xml");
+        service = new ReloadableRelyingPartyLimitsService();
+        service.setId("limits");
+        service.setResource(new FileSystemResource(file.toFile()));
+        service.setReloadCheckDelay(0);
+    }
+
+    @AfterMethod
+    public void teardown() throws IOException {
+        service.destroy();
+        Files.deleteIfExists(file);
+    }
+
+    void writeLimits(int defaultMax, int rpMax) throws IOException {
+        String config = "<beans xmlns=\"http://www.springframework.org/schema/beans\""
+                + " xmlns:p=\"http://www.springframework.org/schema/p\""
+                + " xmlns:util=\"http://www.springframework.org/schema/util\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xsi:schemaLocation=\"http://www.springframework.org/schema/beans"
+                + " http://www.springframework.org/schema/beans/spring-beans.xsd"
+                + " http://www.springframework.org/schema/util"
+                + " http://www.springframework.org/schema/util/spring-util.xsd\">"
+                + "<bean id=\"RPLimits\" class=\"fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits\" />"
+                + "<bean id=\"AuthenticationEventLimits\" parent=\"RPLimits\" p:appliedTimesMax=\"" + defaultMax
+                + "\" />"
+                + "<util:list id=\"RelyingPartyLimits\"><bean parent=\"RPLimits\" p:relyingPartyId=\"rp\""
+                + " p:appliedTimesMax=\"" + rpMax + "\" /></util:list>"
+                // beans of the flow are not instantiated
+                + "<bean id=\"Other\" class=\"fi.csc.idp.authn.NoSuchClass\" />"
+                + "</beans>";
+        Files.write(file, config.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLoad() throws ComponentInitializationException, IOException {
+        writeLimits(10, 1);
+        service.initialize();
+        Assert.assertEquals(service.get().getLimits("rp").getAppliedTimesMax(), 1);
+        Assert.assertEquals(service.get().getLimits("other").getAppliedTimesMax(), 10);
+        Assert.assertSame(service.getServiceableComponent().getComponent(), service.get());
+    }
+
+    @Test
+    public void testReload() throws ComponentInitializationException, IOException {
+        writeLimits(10, 1);
+        service.initialize();
+        AuthenticationEventVerifier loaded = service.get();
+        writeLimits(10, 3);
+        service.reload();
+        Assert.assertNotSame(service.get(), loaded);
+        Assert.assertEquals(service.get().getLimits("rp").getAppliedTimesMax(), 3);
+        // the verifier given out before is not changed
+        Assert.assertEquals(loaded.getLimits("rp").getAppliedTimesMax(), 1);
+    }
+
+    @Test
+    public void testBrokenReload() throws ComponentInitializationException, IOException {
+        writeLimits(10, 1);
+        service.initialize();
+        AuthenticationEventVerifier loaded = service.get();
+        Files.write(file, "broken".getBytes(StandardCharsets.UTF_8));
+        try {
+            service.reload();
+            Assert.fail("Reloading a broken file must fail");
+        } catch (ServiceException e) {
+            // expected
+        }
+        Assert.assertSame(service.get(), loaded);
+        Assert.assertEquals(service.get().getLimits("rp").getAppliedTimesMax(), 1);
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testBrokenInitialLoad() throws ComponentInitializationException, IOException {
+        Files.write(file, "broken".getBytes(StandardCharsets.UTF_8));
+        service.setFailFast(true);
+        service.initialize();
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.shibboleth.idp.attribute.resolver.AttributeResolver;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.FunctionSupport;
+import net.shibboleth.utilities.java.support.service.AbstractReloadableService;
+import net.shibboleth.utilities.java.support.service.ServiceableComponent;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.authn.context.StorageAuthenticationContext;
+
+public class StorageAuthenticationNextFlowStrategyTest {
+
+    String username = "foo";
+
+    Map<String, String> values;
+
+    AtomicInteger resolutions;
+
+    StorageAuthenticationNextFlowStrategy strategy;
+
+    @SuppressWarnings("rawtypes")
+    ProfileRequestContext prc;
+
+    @BeforeMethod
+    public void setup() {
+        values = new HashMap<>();
+        resolutions = new AtomicInteger();
+        strategy = new StorageAuthenticationNextFlowStrategy() {
+
+            @Override
+            String resolveValue(ProfileRequestContext profileRequestContext, String user) {
+                resolutions.incrementAndGet();
+                return values.get(user);
+            }
+        };
+        strategy.setAttributeResolver(new AbstractReloadableService<AttributeResolver>() {
+
+            @Override
+            public ServiceableComponent<AttributeResolver> getServiceableComponent() {
+                return null;
+            }
+
+            @Override
+            protected boolean shouldReload() {
+                return false;
+            }
+        });
+        strategy.setUsernameLookupStrategy(new CurrentUsername());
+        prc = buildContext();
+    }
+
+    @SuppressWarnings("rawtypes")
+    ProfileRequestContext buildContext() {
+        ProfileRequestContext context = new ProfileRequestContext();
+        context.getSubcontext(AuthenticationContext.class, true);
+        return context;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    StorageAuthenticationContext getStorageContext(ProfileRequestContext context) {
+        return ((AuthenticationContext) context.getSubcontext(AuthenticationContext.class))
+                .getSubcontext(StorageAuthenticationContext.class);
+    }
+
+    @Test
+    public void testParse() throws ComponentInitializationException {
+        strategy.initialize();
+        values.put(username, " 1000 ");
+        Assert.assertEquals(strategy.apply(prc), "authn/storage");
+        Assert.assertEquals(getStorageContext(prc).getAuthenticationEventNotBefore(), 1000);
+    }
+
+    @Test
+    public void testNoValue() throws ComponentInitializationException {
+        strategy.initialize();
+        Assert.assertEquals(strategy.apply(prc), "authn/storage");
+        Assert.assertNull(getStorageContext(prc));
+    }
+
+    @Test
+    public void testNotANumber() throws ComponentInitializationException {
+        strategy.initialize();
+        values.put(username, "revoked");
+        strategy.apply(prc);
+        // all events of the user are rejected
+        Assert.assertEquals(getStorageContext(prc).getAuthenticationEventNotBefore(), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testNotCachedByDefault() throws ComponentInitializationException {
+        strategy.initialize();
+        values.put(username, "1000");
+        strategy.apply(prc);
+        values.put(username, "2000");
+        prc = buildContext();
+        strategy.apply(prc);
+        Assert.assertEquals(resolutions.get(), 2);
+        Assert.assertEquals(getStorageContext(prc).getAuthenticationEventNotBefore(), 2000);
+    }
+
+    @Test
+    public void testCached() throws ComponentInitializationException {
+        strategy.setCacheLifetime(60000);
+        strategy.initialize();
+        values.put(username, "1000");
+        strategy.apply(prc);
+        values.put(username, "2000");
+        prc = buildContext();
+        strategy.apply(prc);
+        // the cached time is used until it expires
+        Assert.assertEquals(resolutions.get(), 1);
+        Assert.assertEquals(getStorageContext(prc).getAuthenticationEventNotBefore(), 1000);
+        // other users are resolved
+        username = "bar";
+        values.put(username, "3000");
+        prc = buildContext();
+        strategy.apply(prc);
+        Assert.assertEquals(resolutions.get(), 2);
+        Assert.assertEquals(getStorageContext(prc).getAuthenticationEventNotBefore(), 3000);
+    }
+
+    @Test
+    public void testNoAuthenticationContext() throws ComponentInitializationException {
+        strategy.initialize();
+        values.put(username, "1000");
+        Assert.assertEquals(strategy.apply(new ProfileRequestContext()), "authn/storage");
+        Assert.assertEquals(resolutions.get(), 0);
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testNoResolver() throws ComponentInitializationException {
+        StorageAuthenticationNextFlowStrategy unresolved = new StorageAuthenticationNextFlowStrategy();
+        unresolved.setUsernameLookupStrategy(FunctionSupport.<ProfileRequestContext, String> constant(username));
+        unresolved.initialize();
+    }
+
+    /** Lookup of the username of the test. */
+    @SuppressWarnings("rawtypes")
+    class CurrentUsername implements com.google.common.base.Function<ProfileRequestContext, String> {
+
+        @Override
+        public String apply(ProfileRequestContext input) {
+            return username;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage.jfr;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorder of storage authentication operations as Java Flight Recorder events. The events are enabled and given
+ * thresholds through the JFR settings like any other event, e.g. {@code fi.csc.idp.authn.storage.Locate#enabled=true}
+ * and {@code fi.csc.idp.authn.storage.Locate#threshold=10 ms}. An operation of a disabled event costs the creation of
+ * an event object the JIT usually removes.
+ */
+public class JfrAuthenticationEventRecorder implements AuthenticationEventRecorder {
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public Recording begin(@Nonnull final Operation operation) {
+        final OperationEvent event;
+        switch (operation) {
+            case LOCATE:
+                event = new LocateEvent();
+                break;
+            case SET:
+                event = new SetEvent();
+                break;
+            case PARSE:
+                event = new ParseEvent();
+                break;
+            case LOCK_WAIT:
+                event = new LockWaitEvent();
+                break;
+            case VERIFY:
+                event = new VerifyEvent();
+                break;
+            default:
+                return null;
+        }
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /** Base of the storage authentication events. */
+    @Category({"Shibboleth", "Storage Authentication"})
+    @StackTrace(false)
+    abstract static class OperationEvent extends Event implements Recording {
+
+        /** Id of the storage service accessed. */
+        @Label("Store")
+        String store;
+
+        /** Storage context accessed or relying party verified for. */
+        @Label("Context")
+        String context;
+
+        /** Outcome of the operation. */
+        @Label("Outcome")
+        String outcome;
+
+        /** Size of the event in characters. */
+        @Label("Size")
+        int size;
+
+        /** {@inheritDoc} */
+        @Override
+        public void end(@Nullable final String eventStore, @Nullable final String eventContext,
+                @Nonnull final String eventOutcome, final int eventSize) {
+            end();
+            if (shouldCommit()) {
+                store = eventStore;
+                context = eventContext;
+                outcome = eventOutcome;
+                size = eventSize;
+                commit();
+            }
+        }
+    }
+
+    /** Locating the event of the user. */
+    @Name("fi.csc.idp.authn.storage.Locate")
+    @Label("Authentication Event Locate")
+    @Description("Locating the authentication event of the user")
+    static class LocateEvent extends OperationEvent {
+    }
+
+    /** Setting the event of the user. */
+    @Name("fi.csc.idp.authn.storage.Set")
+    @Label("Authentication Event Set")
+    @Description("Setting the authentication event of the user")
+    static class SetEvent extends OperationEvent {
+    }
+
+    /** Parsing the event. */
+    @Name("fi.csc.idp.authn.storage.Parse")
+    @Label("Authentication Event Parse")
+    @Description("Parsing the authentication event")
+    static class ParseEvent extends OperationEvent {
+    }
+
+    /** Waiting for the storage lock. */
+    @Name("fi.csc.idp.authn.storage.LockWait")
+    @Label("Authentication Event Lock Wait")
+    @Description("Waiting for the lock guarding the authentication event storage")
+    static class LockWaitEvent extends OperationEvent {
+    }
+
+    /** Verifying the event against the relying party limits. */
+    @Name("fi.csc.idp.authn.storage.Verify")
+    @Label("Authentication Event Verify")
+    @Description("Verifying the authentication event against the relying party limits, outcome is the failed limit")
+    static class VerifyEvent extends OperationEvent {
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage.jfr;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder.Operation;
+import fi.csc.idp.authn.storage.AuthenticationEventRecorder.Recording;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class JfrAuthenticationEventRecorderTest {
+
+    JfrAuthenticationEventRecorder recorder;
+
+    @BeforeMethod
+    public void setup() {
+        recorder = new JfrAuthenticationEventRecorder();
+    }
+
+    @Test
+    public void testDisabled() {
+        for (Operation operation : Operation.values()) {
+            Assert.assertNull(recorder.begin(operation));
+        }
+    }
+
+    @Test
+    public void testRecorded() throws IOException {
+        List<RecordedEvent> events;
+        try (jdk.jfr.Recording jfr = new jdk.jfr.Recording()) {
+            jfr.enable("fi.csc.idp.authn.storage.Locate").withoutThreshold();
+            jfr.enable("fi.csc.idp.authn.storage.Verify").withoutThreshold();
+            jfr.disable("fi.csc.idp.authn.storage.Set");
+            jfr.start();
+            Recording recording = recorder.begin(Operation.LOCATE);
+            Assert.assertNotNull(recording);
+            recording.end("store", "context", "found", 100);
+            recording = recorder.begin(Operation.VERIFY);
+            Assert.assertNotNull(recording);
+            recording.end(null, "rp", "max_age", 0);
+            Assert.assertNull(recorder.begin(Operation.SET));
+            jfr.stop();
+            final Path file = Files.createTempFile("authn-storage", ".jfr");
+            try {
+                jfr.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            } finally {
+                Files.delete(file);
+            }
+        }
+        Assert.assertEquals(events.size(), 2);
+        RecordedEvent locate = events.get(0);
+        RecordedEvent verify = events.get(1);
+        if (!"fi.csc.idp.authn.storage.Locate".equals(locate.getEventType().getName())) {
+            locate = events.get(1);
+            verify = events.get(0);
+        }
+        Assert.assertEquals(locate.getEventType().getName(), "fi.csc.idp.authn.storage.Locate");
+        Assert.assertEquals(locate.getString("store"), "store");
+        Assert.assertEquals(locate.getString("context"), "context");
+        Assert.assertEquals(locate.getString("outcome"), "found");
+        Assert.assertEquals(locate.getInt("size"), 100);
+        Assert.assertEquals(verify.getEventType().getName(), "fi.csc.idp.authn.storage.Verify");
+        Assert.assertNull(verify.getString("store"));
+        Assert.assertEquals(verify.getString("context"), "rp");
+        Assert.assertEquals(verify.getString("outcome"), "max_age");
+    }
+
+}
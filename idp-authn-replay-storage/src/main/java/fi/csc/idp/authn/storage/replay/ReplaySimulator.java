@@ -0,0 +1,570 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage.replay;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.xml.DOMTypeSupport;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import fi.csc.idp.authn.storage.AuthenticationEvent;
+import fi.csc.idp.authn.storage.AuthenticationEventCache;
+import fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+/**
+ * Offline replay of a login trace against the authentication event limits and the expiration of the cache entries,
+ * for predicting the effect of changing them before doing so.
+ * <p>
+ * The trace is read in a single streaming pass, one login per line as user, relying party and time in ms since the
+ * epoch separated by comma or tab. Lines starting with # are skipped, a trace file ending with .gz is decompressed.
+ * The time of the trace drives a simulated clock. On each login the event of the user is verified by
+ * {@link AuthenticationEventVerifier#verify(AuthenticationEventRelyingPartyLimits, long, long, long, long, long, int)}
+ * as {@code VerifyStorageAuthenticationEvent} does. An event passing is applied, otherwise the login falls back to
+ * password and a new event is stored. Entries expire as set by {@link AuthenticationEventCache}, at the earlier of the
+ * entry expiration and the time after which no relying party accepts the event.
+ * </p>
+ * <p>
+ * Reported are the storage authentication hit rate, the fallback to password rate by reason, the number of live
+ * events, the bytes in the reference and event stores and the bytes the user has in the client-side storage cookie.
+ * The peaks of the live events and the storage bytes are sampled at the progress reports, not tracked per login.
+ * Record sizes assume the default user key and event identifier strategies. Cookie sizes are of the storage JSON
+ * before compression and encryption, and include only the entries of the cache. The memory used is proportional to the
+ * number of live events, some 50 bytes each, not to the length of the trace.
+ * </p>
+ */
+public final class ReplaySimulator {
+
+    /** Storage context of the references, as in {@link AuthenticationEventCache}. */
+    private static final String REF_CTX = AuthenticationEventCache.class.getName() + "_REF_CTX";
+
+    /** Storage context of the events, as in {@link AuthenticationEventCache}. */
+    private static final String EVENT_CTX = AuthenticationEventCache.class.getName() + "_EVENT_CTX";
+
+    /** Storage context of the usage of the events, as in {@link AuthenticationEventCache}. */
+    private static final String USAGE_CTX = AuthenticationEventCache.class.getName() + "_USAGE_CTX";
+
+    /** Length of the reference key, hex encoded SHA-256 of the default user key strategy. */
+    private static final int KEY_LENGTH = 64;
+
+    /** Event id of the length generated by the default identifier generation strategy. */
+    private static final String EVENT_ID = "_00000000000000000000000000000000";
+
+    /** Characters of a storage record in JSON besides its key, value and expiration: "k":{"v":"v","x":0}, */
+    private static final int RECORD_OVERHEAD = 17;
+
+    /** Characters of a storage context in JSON besides its name and records: "c":{}, */
+    private static final int CONTEXT_OVERHEAD = 6;
+
+    /** Lines read between checks of the report interval. */
+    private static final int REPORT_CHECK_LINES = 1024;
+
+    /** Verifier of the limits. */
+    @Nonnull
+    private final AuthenticationEventVerifier verifier;
+
+    /** Expiration of the cache entries in ms. */
+    private final long entryExpiration;
+
+    /** Whether events are on separate server-side storage, the references then carrying a summary. */
+    private final boolean separateEventStorage;
+
+    /** Issuer of the events. */
+    @Nonnull
+    private final String issuer;
+
+    /** Simulated time between progress reports in ms, 0 for none. */
+    private final long reportInterval;
+
+    /** Output of the reports. */
+    @Nonnull
+    private final PrintStream out;
+
+    /** The simulated events. */
+    @Nonnull
+    private final UserEventTable events;
+
+    /** Hash of the users. */
+    @Nonnull
+    private final HashFunction hashFunction;
+
+    /** Simulated time in ms. */
+    private long clock;
+
+    /** Simulated time of the next progress report. */
+    private long nextReport;
+
+    /** Number of logins. */
+    private long logins;
+
+    /** Number of logins by a stored event. */
+    private long hits;
+
+    /** Number of logins without a live event. */
+    private long misses;
+
+    /** Number of logins with an event rejected, by reason. */
+    private final long[] rejections;
+
+    /** Number of lines with time before the simulated time. */
+    private long outOfOrder;
+
+    /** Number of lines skipped as not parseable. */
+    private long malformed;
+
+    /** Highest number of live events sampled at the reports. */
+    private long peakEvents;
+
+    /** Highest number of bytes in storage sampled at the reports. */
+    private long peakBytes;
+
+    /**
+     * Constructor.
+     * 
+     * @param limitsVerifier verifier of the limits
+     * @param expiration expiration of the cache entries in ms
+     * @param separateEvents whether events are on separate server-side storage
+     * @param eventIssuer issuer of the events
+     * @param interval simulated time between progress reports in ms, 0 for none
+     * @param output output of the reports
+     */
+    public ReplaySimulator(@Nonnull final AuthenticationEventVerifier limitsVerifier, final long expiration,
+            final boolean separateEvents, @Nonnull final String eventIssuer, final long interval,
+            @Nonnull final PrintStream output) {
+        verifier = limitsVerifier;
+        entryExpiration = expiration;
+        separateEventStorage = separateEvents;
+        issuer = eventIssuer;
+        reportInterval = interval;
+        out = output;
+        events = new UserEventTable();
+        hashFunction = Hashing.murmur3_128();
+        rejections = new long[Reason.values().length];
+    }
+
+    /**
+     * Replay the trace.
+     * 
+     * @param reader reader of the trace
+     * @throws IOException if reading the trace fails
+     */
+    public void replay(@Nonnull final BufferedReader reader) throws IOException {
+        String line;
+        long lines = 0;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            final int first = separator(line, 0);
+            final int second = first < 0 ? -1 : separator(line, first + 1);
+            final long time;
+            try {
+                time = second < 0 ? -1 : Long.parseLong(line.substring(second + 1).trim());
+            } catch (final NumberFormatException e) {
+                malformed++;
+                continue;
+            }
+            if (time < 0 || first == 0) {
+                malformed++;
+                continue;
+            }
+            login(line.substring(0, first), line.substring(first + 1, second), time);
+            if (reportInterval > 0 && ++lines % REPORT_CHECK_LINES == 0 && clock >= nextReport) {
+                report(false);
+                nextReport = clock - clock % reportInterval + reportInterval;
+            }
+        }
+        report(true);
+    }
+
+    /**
+     * Find the next field separator.
+     * 
+     * @param line line of the trace
+     * @param from index to search from
+     * @return index of the separator, -1 if none
+     */
+    private static int separator(@Nonnull final String line, final int from) {
+        for (int i = from; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == ',' || c == '\t') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Simulate a login.
+     * 
+     * @param user the user
+     * @param relyingPartyId the relying party
+     * @param time time of the login in ms since the epoch
+     */
+    void login(@Nonnull final String user, @Nullable final String relyingPartyId, final long time) {
+        if (time < clock) {
+            outOfOrder++;
+        } else {
+            clock = time;
+        }
+        if (nextReport == 0 && reportInterval > 0) {
+            nextReport = clock - clock % reportInterval + reportInterval;
+        }
+        logins++;
+        final long hash = hashFunction.hashString(user, StandardCharsets.UTF_8).asLong();
+        final int index = events.find(hash, clock);
+        if (index >= 0) {
+            final Reason reason = AuthenticationEventVerifier.verify(verifier.getLimits(relyingPartyId), 0, clock,
+                    events.getAuthTime(index), events.getAuthTime(index), events.getAppliedTime(index),
+                    events.getAppliedCount(index));
+            if (reason == null) {
+                hits++;
+                // The event is rewritten on the first apply only, with the applied time of that apply. The applied
+                // count goes from 0 to 1, of the same length.
+                final int eventLength = events.getAppliedCount(index) == 0
+                        ? events.getEventLength(index) - digits(events.getAppliedTime(index)) + digits(clock)
+                        : events.getEventLength(index);
+                events.apply(index, clock, getExpiration(events.getAuthTime(index), clock), eventLength);
+                return;
+            }
+            rejections[reason.ordinal()]++;
+        } else {
+            misses++;
+        }
+        // Password login, the store flow sets a new event
+        final String serialized = new AuthenticationEvent(EVENT_ID, user, issuer, clock).serialize();
+        events.put(hash, clock, getExpiration(clock, clock), serialized.length(), escapes(serialized), clock);
+    }
+
+    /**
+     * Get the expiration of the entries of the event set at the simulated time, as set by
+     * {@link AuthenticationEventCache}.
+     * 
+     * @param authTime authentication time of the event
+     * @param appliedTime time the event was last applied
+     * @return expiration in ms since the epoch
+     */
+    private long getExpiration(final long authTime, final long appliedTime) {
+        return Math.min(clock + entryExpiration, verifier.getExpiration(authTime, appliedTime));
+    }
+
+    /**
+     * Get the number of characters escaped when the value is embedded in JSON.
+     * 
+     * @param value the value
+     * @return number of characters escaped
+     */
+    private static int escapes(@Nonnull final String value) {
+        int count = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of decimal digits of the value.
+     * 
+     * @param value non-negative value
+     * @return number of decimal digits
+     */
+    private static int digits(final long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Report the counts and the storage footprint at the simulated time.
+     * 
+     * @param last whether the trace has ended
+     */
+    private void report(final boolean last) {
+        long live = 0;
+        long usageRecords = 0;
+        long referenceBytes = 0;
+        long eventBytes = 0;
+        long cookieBytes = 0;
+        long cookieMax = 0;
+        for (int i = 0; i < events.capacity(); i++) {
+            if (!events.isLive(i, clock)) {
+                continue;
+            }
+            live++;
+            final long authTime = events.getAuthTime(i);
+            final long appliedTime = events.getAppliedTime(i);
+            final int appliedCount = events.getAppliedCount(i);
+            final int expirationDigits = digits(events.getExpiration(i));
+            final int usageLength = digits(appliedTime) + 1 + digits(appliedCount);
+            final int referenceLength = separateEventStorage
+                    ? EVENT_ID.length() + 1 + digits(authTime) + 1 + digits(authTime) + 1 + usageLength
+                    : EVENT_ID.length();
+            referenceBytes += KEY_LENGTH + referenceLength;
+            eventBytes += EVENT_ID.length() + events.getEventLength(i);
+            long cookie = 2 + REF_CTX.length() + CONTEXT_OVERHEAD + KEY_LENGTH + referenceLength + RECORD_OVERHEAD
+                    + expirationDigits;
+            if (!separateEventStorage) {
+                cookie += EVENT_CTX.length() + CONTEXT_OVERHEAD + EVENT_ID.length() + events.getEventLength(i)
+                        + events.getEventEscapes(i) + RECORD_OVERHEAD + expirationDigits;
+                // The usage record is created on the second apply, the first one is written with the event
+                if (appliedCount > 1) {
+                    usageRecords++;
+                    eventBytes += EVENT_ID.length() + usageLength;
+                    cookie += USAGE_CTX.length() + CONTEXT_OVERHEAD + EVENT_ID.length() + usageLength
+                            + RECORD_OVERHEAD + expirationDigits;
+                }
+            }
+            cookieBytes += cookie;
+            cookieMax = Math.max(cookieMax, cookie);
+        }
+        peakEvents = Math.max(peakEvents, live);
+        peakBytes = Math.max(peakBytes, referenceBytes + eventBytes);
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final long fallbacks = logins - hits;
+        if (!last) {
+            out.printf(Locale.ROOT, "%s logins=%d hitRate=%.2f%% fallbackRate=%.2f%% liveEvents=%d storageBytes=%d%n",
+                    format.format(new Date(clock)), logins, percent(hits), percent(fallbacks), live,
+                    referenceBytes + eventBytes);
+            return;
+        }
+        out.printf(Locale.ROOT, "Replayed %d logins until %s%n", logins, format.format(new Date(clock)));
+        out.printf(Locale.ROOT, "  storage authentication hit rate   %.2f%% (%d)%n", percent(hits), hits);
+        out.printf(Locale.ROOT, "  fallback to password rate         %.2f%% (%d)%n", percent(fallbacks), fallbacks);
+        out.printf(Locale.ROOT, "    no live event                   %.2f%% (%d)%n", percent(misses), misses);
+        for (final Reason reason : Reason.values()) {
+            out.printf(Locale.ROOT, "    rejected %-22s %.2f%% (%d)%n", reason.name().toLowerCase(Locale.ROOT),
+                    percent(rejections[reason.ordinal()]), rejections[reason.ordinal()]);
+        }
+        out.printf(Locale.ROOT, "  live events                       %d (sampled peak %d)%n", live, peakEvents);
+        out.printf(Locale.ROOT, "  usage records                     %d%n", usageRecords);
+        out.printf(Locale.ROOT, "  reference store bytes             %d%n", referenceBytes);
+        out.printf(Locale.ROOT, "  event store bytes                 %d%n", eventBytes);
+        out.printf(Locale.ROOT, "  storage bytes                     %d (sampled peak %d)%n",
+                referenceBytes + eventBytes, peakBytes);
+        out.printf(Locale.ROOT, "  cookie bytes per user             mean %d, max %d%n",
+                live > 0 ? cookieBytes / live : 0, cookieMax);
+        if (outOfOrder > 0 || malformed > 0) {
+            out.printf(Locale.ROOT, "  out of order lines %d, malformed lines %d%n", outOfOrder, malformed);
+        }
+    }
+
+    /**
+     * Get the number of logins.
+     * 
+     * @return number of logins
+     */
+    long getLogins() {
+        return logins;
+    }
+
+    /**
+     * Get the number of logins by a stored event.
+     * 
+     * @return number of logins by a stored event
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of logins without a live event.
+     * 
+     * @return number of logins without a live event
+     */
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of logins with an event rejected for the reason.
+     * 
+     * @param reason the reason
+     * @return number of logins with an event rejected for the reason
+     */
+    long getRejections(@Nonnull final Reason reason) {
+        return rejections[reason.ordinal()];
+    }
+
+    /**
+     * Get the highest number of live events sampled at the reports.
+     * 
+     * @return highest number of live events sampled
+     */
+    long getPeakEvents() {
+        return peakEvents;
+    }
+
+    /**
+     * Get the share of the logins as percent.
+     * 
+     * @param count number of logins
+     * @return share of all the logins as percent
+     */
+    private double percent(final long count) {
+        return logins > 0 ? 100.0 * count / logins : 0;
+    }
+
+    /**
+     * Parse a duration, ISO 8601 or ms.
+     * 
+     * @param value duration
+     * @return duration in ms
+     */
+    private static long parseDuration(@Nonnull final String value) {
+        final String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return 0;
+        }
+        return trimmed.charAt(0) == 'P' || trimmed.charAt(0) == '-' ? DOMTypeSupport.durationToLong(trimmed)
+                : Long.parseLong(trimmed);
+    }
+
+    /**
+     * Parse limits from comma separated authentication max age, last applied max age and applied times max.
+     * 
+     * @param relyingPartyId relying party the limits are for, null for default limits
+     * @param value comma separated limits, empty fields for no limit
+     * @return the limits
+     */
+    @Nonnull
+    private static AuthenticationEventRelyingPartyLimits parseLimits(@Nullable final String relyingPartyId,
+            @Nonnull final String value) {
+        final String[] fields = value.split(",", -1);
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Limits must be maxAge,lastAppliedMaxAge,appliedTimesMax: " + value);
+        }
+        final AuthenticationEventRelyingPartyLimits limits = new AuthenticationEventRelyingPartyLimits();
+        if (relyingPartyId != null) {
+            limits.setRelyingPartyId(relyingPartyId);
+        }
+        limits.setAuthenticationMaxAge(parseDuration(fields[0]));
+        limits.setLastAppliedMaxAge(parseDuration(fields[1]));
+        limits.setAppliedTimesMax(fields[2].trim().isEmpty() ? 0 : Integer.parseInt(fields[2].trim()));
+        return limits;
+    }
+
+    /** Print the usage. */
+    private static void usage() {
+        System.err.println("Usage: java -jar replay.jar [options] <trace file, .gz or - for stdin>");
+        System.err.println("  trace lines: user,relyingParty,timeInMs");
+        System.err.println("  --limits=maxAge,lastAppliedMaxAge,appliedTimesMax    default limits, empty for none");
+        System.err.println("  --rp=relyingPartyId=maxAge,lastAppliedMaxAge,appliedTimesMax  repeatable");
+        System.err.println("  --entryExpiration=PT168H                             cache entry expiration");
+        System.err.println("  --separateEventStorage                               events on server-side storage");
+        System.err.println("  --issuer=https://idp.example.org/idp/shibboleth     issuer of the events");
+        System.err.println("  --reportInterval=P1D                                 simulated time between reports");
+        System.err.println("Durations are ISO 8601 or ms.");
+    }
+
+    /**
+     * Run the replay.
+     * 
+     * @param args command line arguments
+     * @throws IOException if reading the trace fails
+     */
+    public static void main(final String[] args) throws IOException {
+        AuthenticationEventRelyingPartyLimits limits = new AuthenticationEventRelyingPartyLimits();
+        final List<AuthenticationEventRelyingPartyLimits> rpLimits = new ArrayList<>();
+        long expiration = 7 * 24 * 60 * 60 * 1000L;
+        boolean separate = false;
+        String issuer = "https://idp.example.org/idp/shibboleth";
+        long interval = 24 * 60 * 60 * 1000L;
+        String trace = null;
+        try {
+            for (final String arg : args) {
+                final int eq = arg.indexOf('=');
+                final String name = eq < 0 ? arg : arg.substring(0, eq);
+                final String value = eq < 0 ? "" : arg.substring(eq + 1);
+                if ("--limits".equals(name)) {
+                    limits = parseLimits(null, value);
+                } else if ("--rp".equals(name)) {
+                    final int rpEq = value.indexOf('=');
+                    if (rpEq <= 0) {
+                        throw new IllegalArgumentException("Relying party limits must be id=limits: " + value);
+                    }
+                    rpLimits.add(parseLimits(value.substring(0, rpEq), value.substring(rpEq + 1)));
+                } else if ("--entryExpiration".equals(name)) {
+                    expiration = parseDuration(value);
+                } else if ("--separateEventStorage".equals(name)) {
+                    separate = true;
+                } else if ("--issuer".equals(name)) {
+                    issuer = value;
+                } else if ("--reportInterval".equals(name)) {
+                    interval = parseDuration(value);
+                } else if (!arg.startsWith("--") && trace == null) {
+                    trace = arg;
+                } else {
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            }
+            if (trace == null) {
+                throw new IllegalArgumentException("Trace file is missing");
+            }
+            if (expiration <= 0) {
+                throw new IllegalArgumentException("Entry expiration must be greater than 0");
+            }
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+        final ReplaySimulator simulator = new ReplaySimulator(new AuthenticationEventVerifier(limits, rpLimits),
+                expiration, separate, issuer, interval, System.out);
+        InputStream in = "-".equals(trace) ? System.in : new FileInputStream(trace);
+        if (trace.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        try (final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            simulator.replay(reader);
+        }
+    }
+
+}
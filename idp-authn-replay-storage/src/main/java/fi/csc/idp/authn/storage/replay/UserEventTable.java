@@ -0,0 +1,290 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage.replay;
+
+/**
+ * Open addressing table of the simulated authentication events by the 64-bit hash of the user. The state of an event
+ * is kept in parallel primitive arrays, so that the memory used is proportional to the number of live events and
+ * independent of the length of the trace. Expired events are dropped whenever the table is rebuilt.
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+final class UserEventTable {
+
+    /** Key marking a free slot. */
+    private static final long FREE = 0;
+
+    /** Initial capacity of the table. */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /** Keys of the slots. */
+    private long[] keys;
+
+    /** Authentication times of the events, also their issue times. */
+    private long[] authTimes;
+
+    /** Times the events were last applied. */
+    private long[] appliedTimes;
+
+    /** Expiration times of the events. */
+    private long[] expirations;
+
+    /** Number of times the events have been applied. */
+    private int[] appliedCounts;
+
+    /** Lengths of the serialized events. */
+    private int[] eventLengths;
+
+    /** Number of characters escaped when the serialized events are embedded in JSON. */
+    private int[] eventEscapes;
+
+    /** Number of occupied slots. */
+    private int size;
+
+    /** Constructor. */
+    UserEventTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Allocate empty arrays.
+     * 
+     * @param capacity number of slots, power of two
+     */
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        authTimes = new long[capacity];
+        appliedTimes = new long[capacity];
+        expirations = new long[capacity];
+        appliedCounts = new int[capacity];
+        eventLengths = new int[capacity];
+        eventEscapes = new int[capacity];
+        size = 0;
+    }
+
+    /**
+     * Get the key of the slots for the hash of the user.
+     * 
+     * @param hash 64-bit hash of the user
+     * @return key of the slots, never {@link #FREE}
+     */
+    private static long toKey(final long hash) {
+        return hash == FREE ? 1 : hash;
+    }
+
+    /**
+     * Get the slot of the key or the free slot it would be put to.
+     * 
+     * @param key key of the slots
+     * @return index of the slot
+     */
+    private int slot(final long key) {
+        final int mask = keys.length - 1;
+        int index = (int) (key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+        while (keys[index] != FREE && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Find the live event of the user.
+     * 
+     * @param hash 64-bit hash of the user
+     * @param now current time in ms
+     * @return index of the event, -1 if there is no event or it has expired
+     */
+    int find(final long hash, final long now) {
+        final int index = slot(toKey(hash));
+        return keys[index] != FREE && expirations[index] > now ? index : -1;
+    }
+
+    /**
+     * Put an event for the user, replacing the previous event if any.
+     * 
+     * @param hash 64-bit hash of the user
+     * @param authTime authentication time of the event
+     * @param expiration expiration time of the event
+     * @param eventLength length of the serialized event
+     * @param eventEscape number of characters escaped when the serialized event is embedded in JSON
+     * @param now current time in ms, events expired by it are dropped if the table is rebuilt
+     * @return index of the event
+     */
+    int put(final long hash, final long authTime, final long expiration, final int eventLength,
+            final int eventEscape, final long now) {
+        final long key = toKey(hash);
+        int index = slot(key);
+        if (keys[index] == FREE) {
+            if ((size + 1) * 4L > keys.length * 3L) {
+                rebuild(now);
+                index = slot(key);
+            }
+            keys[index] = key;
+            size++;
+        }
+        authTimes[index] = authTime;
+        appliedTimes[index] = authTime;
+        expirations[index] = expiration;
+        appliedCounts[index] = 0;
+        eventLengths[index] = eventLength;
+        eventEscapes[index] = eventEscape;
+        return index;
+    }
+
+    /**
+     * Apply the event.
+     * 
+     * @param index index of the event
+     * @param now time of the apply
+     * @param expiration expiration time of the event after the apply
+     * @param eventLength length of the serialized event after the apply
+     */
+    void apply(final int index, final long now, final long expiration, final int eventLength) {
+        appliedTimes[index] = now;
+        appliedCounts[index]++;
+        expirations[index] = expiration;
+        eventLengths[index] = eventLength;
+    }
+
+    /**
+     * Rebuild the table without the expired events, doubling the capacity if still over half full.
+     * 
+     * @param now current time in ms
+     */
+    void rebuild(final long now) {
+        final long[] oldKeys = keys;
+        final long[] oldAuthTimes = authTimes;
+        final long[] oldAppliedTimes = appliedTimes;
+        final long[] oldExpirations = expirations;
+        final int[] oldAppliedCounts = appliedCounts;
+        final int[] oldEventLengths = eventLengths;
+        final int[] oldEventEscapes = eventEscapes;
+        int live = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE && oldExpirations[i] > now) {
+                live++;
+            }
+        }
+        int capacity = INITIAL_CAPACITY;
+        while (live * 2L > capacity) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE && oldExpirations[i] > now) {
+                final int index = slot(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                authTimes[index] = oldAuthTimes[i];
+                appliedTimes[index] = oldAppliedTimes[i];
+                expirations[index] = oldExpirations[i];
+                appliedCounts[index] = oldAppliedCounts[i];
+                eventLengths[index] = oldEventLengths[i];
+                eventEscapes[index] = oldEventEscapes[i];
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of slots, indexes run from 0 to capacity - 1.
+     * 
+     * @return number of slots
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Whether the slot holds a live event.
+     * 
+     * @param index index of the slot
+     * @param now current time in ms
+     * @return true if the slot holds an event that has not expired
+     */
+    boolean isLive(final int index, final long now) {
+        return keys[index] != FREE && expirations[index] > now;
+    }
+
+    /**
+     * Get the authentication time of the event.
+     * 
+     * @param index index of the event
+     * @return authentication time of the event
+     */
+    long getAuthTime(final int index) {
+        return authTimes[index];
+    }
+
+    /**
+     * Get the expiration time of the event.
+     * 
+     * @param index index of the event
+     * @return expiration time of the event
+     */
+    long getExpiration(final int index) {
+        return expirations[index];
+    }
+
+    /**
+     * Get the time the event was last applied.
+     * 
+     * @param index index of the event
+     * @return time the event was last applied
+     */
+    long getAppliedTime(final int index) {
+        return appliedTimes[index];
+    }
+
+    /**
+     * Get the number of times the event has been applied.
+     * 
+     * @param index index of the event
+     * @return number of times the event has been applied
+     */
+    int getAppliedCount(final int index) {
+        return appliedCounts[index];
+    }
+
+    /**
+     * Get the length of the serialized event.
+     * 
+     * @param index index of the event
+     * @return length of the serialized event
+     */
+    int getEventLength(final int index) {
+        return eventLengths[index];
+    }
+
+    /**
+     * Get the number of characters escaped when the serialized event is embedded in JSON.
+     * 
+     * @param index index of the event
+     * @return number of characters escaped
+     */
+    int getEventEscapes(final int index) {
+        return eventEscapes[index];
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage.replay;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.authn.storage.AuthenticationEventRelyingPartyLimits;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier;
+import fi.csc.idp.authn.storage.AuthenticationEventVerifier.Reason;
+
+public class ReplaySimulatorTest {
+
+    long hour = 60 * 60 * 1000L;
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    ReplaySimulator buildSimulator(long maxAge, long lastAppliedMaxAge, int appliedTimesMax, long expiration) {
+        AuthenticationEventRelyingPartyLimits limits = new AuthenticationEventRelyingPartyLimits();
+        limits.setAuthenticationMaxAge(10 * hour);
+        limits.setLastAppliedMaxAge(10 * hour);
+        AuthenticationEventRelyingPartyLimits strict = new AuthenticationEventRelyingPartyLimits();
+        strict.setRelyingPartyId("strict");
+        strict.setAuthenticationMaxAge(maxAge);
+        strict.setLastAppliedMaxAge(lastAppliedMaxAge);
+        strict.setAppliedTimesMax(appliedTimesMax);
+        return new ReplaySimulator(new AuthenticationEventVerifier(limits, Arrays.asList(strict)), expiration, false,
+                "issuer", 0, new PrintStream(output, true));
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        ReplaySimulator simulator = buildSimulator(0, 0, 0, 24 * hour);
+        simulator.login("foo", "rp", hour);
+        Assert.assertEquals(simulator.getMisses(), 1);
+        simulator.login("foo", "rp", 2 * hour);
+        simulator.login("foo", "strict", 3 * hour);
+        Assert.assertEquals(simulator.getHits(), 2);
+        simulator.login("bar", "rp", 3 * hour);
+        Assert.assertEquals(simulator.getMisses(), 2);
+        Assert.assertEquals(simulator.getLogins(), 4);
+    }
+
+    @Test
+    public void testExpiry() {
+        ReplaySimulator simulator = buildSimulator(0, 0, 0, hour);
+        simulator.login("foo", "rp", hour);
+        // the entry expiration is shorter than the limits
+        simulator.login("foo", "rp", 3 * hour);
+        Assert.assertEquals(simulator.getMisses(), 2);
+        Assert.assertEquals(simulator.getHits(), 0);
+        // the limits of no relying party accept the event
+        simulator = buildSimulator(5 * hour, 5 * hour, 0, 100 * hour);
+        simulator.login("foo", "rp", hour);
+        simulator.login("foo", "rp", 12 * hour);
+        Assert.assertEquals(simulator.getMisses(), 2);
+    }
+
+    @Test
+    public void testMaxAge() {
+        ReplaySimulator simulator = buildSimulator(hour, 0, 0, 24 * hour);
+        simulator.login("foo", "rp", hour);
+        simulator.login("foo", "strict", 3 * hour);
+        Assert.assertEquals(simulator.getRejections(Reason.MAX_AGE), 1);
+        // the password login stored a new event
+        simulator.login("foo", "strict", 3 * hour + 1);
+        Assert.assertEquals(simulator.getHits(), 1);
+    }
+
+    @Test
+    public void testRollingWindow() {
+        ReplaySimulator simulator = buildSimulator(0, hour, 0, 24 * hour);
+        simulator.login("foo", "rp", hour);
+        simulator.login("foo", "strict", 3 * hour);
+        Assert.assertEquals(simulator.getRejections(Reason.ROLLING_WINDOW), 1);
+    }
+
+    @Test
+    public void testAppliedCount() {
+        ReplaySimulator simulator = buildSimulator(0, 0, 1, 24 * hour);
+        simulator.login("foo", "rp", hour);
+        simulator.login("foo", "strict", 2 * hour);
+        simulator.login("foo", "strict", 3 * hour);
+        Assert.assertEquals(simulator.getHits(), 1);
+        Assert.assertEquals(simulator.getRejections(Reason.APPLIED_COUNT), 1);
+        // events are not revoked in the replay
+        Assert.assertEquals(simulator.getRejections(Reason.REVOKED), 0);
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        ReplaySimulator simulator = buildSimulator(0, 0, 0, 24 * hour);
+        String trace = "# user,rp,time\nfoo,rp," + hour + "\nfoo\trp\t" + 2 * hour + "\nbroken\nbar,rp,x\n";
+        simulator.replay(new BufferedReader(new StringReader(trace)));
+        Assert.assertEquals(simulator.getLogins(), 2);
+        Assert.assertEquals(simulator.getHits(), 1);
+        Assert.assertEquals(simulator.getPeakEvents(), 1);
+        String report = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(report.contains("live events                       1 (sampled peak 1)"));
+        Assert.assertTrue(report.contains("malformed lines 2"));
+    }
+
+    @Test
+    public void testUsageRecords() throws IOException {
+        ReplaySimulator simulator = buildSimulator(0, 0, 0, 24 * hour);
+        // foo is applied once, written with the event, bar twice, with a usage record
+        String trace = "foo,rp," + hour + "\nbar,rp," + hour + "\nfoo,rp," + 2 * hour + "\nbar,rp," + 2 * hour
+                + "\nbar,rp," + 3 * hour + "\n";
+        simulator.replay(new BufferedReader(new StringReader(trace)));
+        Assert.assertEquals(simulator.getHits(), 3);
+        String report = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(report.contains("usage records                     1\n"), report);
+    }
+
+}
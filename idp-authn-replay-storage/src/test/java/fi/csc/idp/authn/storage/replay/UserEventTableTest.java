@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage.replay;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class UserEventTableTest {
+
+    UserEventTable table;
+
+    @BeforeMethod
+    public void setup() {
+        table = new UserEventTable();
+    }
+
+    @Test
+    public void testPutAndFind() {
+        Assert.assertEquals(table.find(1, 0), -1);
+        int index = table.put(1, 100, 1000, 200, 20, 100);
+        Assert.assertEquals(table.find(1, 100), index);
+        Assert.assertEquals(table.getAuthTime(index), 100);
+        Assert.assertEquals(table.getAppliedTime(index), 100);
+        Assert.assertEquals(table.getAppliedCount(index), 0);
+        Assert.assertEquals(table.getExpiration(index), 1000);
+        Assert.assertEquals(table.getEventLength(index), 200);
+        Assert.assertEquals(table.getEventEscapes(index), 20);
+        // other users miss
+        Assert.assertEquals(table.find(2, 100), -1);
+    }
+
+    @Test
+    public void testZeroHash() {
+        int index = table.put(0, 100, 1000, 200, 20, 100);
+        Assert.assertEquals(table.find(0, 100), index);
+        Assert.assertTrue(table.isLive(index, 100));
+    }
+
+    @Test
+    public void testApplyAndReplace() {
+        int index = table.put(1, 100, 1000, 200, 20, 100);
+        table.apply(index, 200, 2000, 201);
+        Assert.assertEquals(table.getAppliedTime(index), 200);
+        Assert.assertEquals(table.getAppliedCount(index), 1);
+        Assert.assertEquals(table.getExpiration(index), 2000);
+        Assert.assertEquals(table.getEventLength(index), 201);
+        // a new event replaces the previous one in its slot
+        Assert.assertEquals(table.put(1, 300, 3000, 210, 21, 300), index);
+        Assert.assertEquals(table.getAuthTime(index), 300);
+        Assert.assertEquals(table.getAppliedCount(index), 0);
+        Assert.assertEquals(table.getEventLength(index), 210);
+    }
+
+    @Test
+    public void testExpiry() {
+        int index = table.put(1, 100, 1000, 200, 20, 100);
+        Assert.assertEquals(table.find(1, 999), index);
+        Assert.assertEquals(table.find(1, 1000), -1);
+        Assert.assertFalse(table.isLive(index, 1000));
+    }
+
+    @Test
+    public void testRebuild() {
+        table.put(1, 100, 1000, 200, 20, 100);
+        table.put(2, 100, 5000, 200, 20, 100);
+        table.rebuild(2000);
+        Assert.assertEquals(table.find(1, 0), -1);
+        int index = table.find(2, 2000);
+        Assert.assertTrue(index >= 0);
+        Assert.assertEquals(table.getExpiration(index), 5000);
+        int live = 0;
+        for (int i = 0; i < table.capacity(); i++) {
+            if (table.isLive(i, 0)) {
+                live++;
+            }
+        }
+        Assert.assertEquals(live, 1);
+    }
+
+    @Test
+    public void testGrow() {
+        int capacity = table.capacity();
+        for (long hash = 1; hash <= capacity; hash++) {
+            table.put(hash, 100, 1000, 200, 20, 100);
+        }
+        Assert.assertTrue(table.capacity() > capacity);
+        for (long hash = 1; hash <= capacity; hash++) {
+            Assert.assertTrue(table.find(hash, 100) >= 0);
+        }
+    }
+
+    @Test
+    public void testExpiredDroppedOnGrow() {
+        int capacity = table.capacity();
+        for (long hash = 1; hash <= capacity; hash++) {
+            table.put(hash, 100, 1000, 200, 20, 100);
+        }
+        int grown = table.capacity();
+        for (long hash = capacity + 1; hash <= 2L * capacity; hash++) {
+            table.put(hash, 2000, 3000, 200, 20, 2000);
+        }
+        // the events expired by the time of the rebuild are dropped instead of growing further
+        Assert.assertEquals(table.capacity(), grown);
+        Assert.assertEquals(table.find(1, 0), -1);
+        Assert.assertTrue(table.find(2L * capacity, 2000) >= 0);
+    }
+
+}
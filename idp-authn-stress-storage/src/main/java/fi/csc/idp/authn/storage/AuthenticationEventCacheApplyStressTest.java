@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+/** Concurrent logins of the same user reusing the same event through the cache. */
+@JCStressTest
+@Description("Concurrent locate() and apply() of the same user through the cache.")
+@Outcome(id = "2", expect = Expect.ACCEPTABLE, desc = "Both applies stored.")
+@Outcome(id = "1", expect = Expect.FORBIDDEN, desc = "Lost applied_count increment.")
+@State
+public class AuthenticationEventCacheApplyStressTest {
+
+    /** The user. */
+    private static final String USER = "foo";
+
+    /** The cache. */
+    private final AuthenticationEventCache cache;
+
+    /** Constructor. */
+    public AuthenticationEventCacheApplyStressTest() {
+        cache = ClientSideMemoryStorageService.buildCache();
+        cache.set(USER, new AuthenticationEvent("1", USER, "issuer", 0L));
+    }
+
+    /** First login. */
+    @Actor
+    public void actor1() {
+        cache.apply(USER, cache.locate(USER));
+    }
+
+    /** Second login. */
+    @Actor
+    public void actor2() {
+        cache.apply(USER, cache.locate(USER));
+    }
+
+    /**
+     * Read the stored applied count.
+     * 
+     * @param r result
+     */
+    @Arbiter
+    public void arbiter(final I_Result r) {
+        r.r1 = cache.locate(USER).getAppliedCount();
+    }
+}
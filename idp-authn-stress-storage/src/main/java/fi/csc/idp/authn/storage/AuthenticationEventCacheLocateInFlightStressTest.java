@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/** Concurrent locates of the same event on separate server-side storage, sharing the read in flight. */
+@JCStressTest
+@Description("Concurrent locate() of the same user without holding the lock, each applying the event located.")
+@Outcome(id = "1, 1", expect = Expect.ACCEPTABLE, desc = "Both located an event of their own.")
+@Outcome(id = {"0, 0", "0, 1", "1, 0"}, expect = Expect.FORBIDDEN, desc = "Event not located.")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Event instance shared, apply seen by the other caller.")
+@State
+public class AuthenticationEventCacheLocateInFlightStressTest {
+
+    /** The user. */
+    private static final String USER = "foo";
+
+    /** The cache. */
+    private final AuthenticationEventCache cache;
+
+    /** Constructor. */
+    public AuthenticationEventCacheLocateInFlightStressTest() {
+        cache = ClientSideMemoryStorageService.buildCache(true);
+        cache.set(USER, new AuthenticationEvent("1", USER, "issuer", 0L));
+    }
+
+    /**
+     * First login.
+     * 
+     * @param r result, applied count of the event located
+     */
+    @Actor
+    public void actor1(final II_Result r) {
+        r.r1 = applyLocated();
+    }
+
+    /**
+     * Second login.
+     * 
+     * @param r result, applied count of the event located
+     */
+    @Actor
+    public void actor2(final II_Result r) {
+        r.r2 = applyLocated();
+    }
+
+    /**
+     * Locate the event and apply it without storing it.
+     * 
+     * @return applied count of the event located, 0 if not located
+     */
+    private int applyLocated() {
+        final AuthenticationEvent located = cache.locate(USER);
+        if (located == null) {
+            return 0;
+        }
+        located.apply();
+        return located.getAppliedCount();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/** Locating an event of the user while it is applied through the cache. */
+@JCStressTest
+@Description("locate() racing with apply() of the same user through the cache.")
+@Outcome(id = "0, 0", expect = Expect.ACCEPTABLE, desc = "Located before apply.")
+@Outcome(id = "1, 1", expect = Expect.ACCEPTABLE, desc = "Located after apply.")
+@Outcome(id = "1, 0", expect = Expect.FORBIDDEN, desc = "Torn read, count applied but time not.")
+@Outcome(id = "0, 1", expect = Expect.FORBIDDEN, desc = "Torn read, time applied but count not.")
+@State
+public class AuthenticationEventCacheLocateStressTest {
+
+    /** The user. */
+    private static final String USER = "foo";
+
+    /** The cache. */
+    private final AuthenticationEventCache cache;
+
+    /** The stored event. */
+    private final AuthenticationEvent event;
+
+    /** Constructor. */
+    public AuthenticationEventCacheLocateStressTest() {
+        cache = ClientSideMemoryStorageService.buildCache();
+        event = new AuthenticationEvent("1", USER, "issuer", 0L);
+        cache.set(USER, event);
+    }
+
+    /** Login reusing the event. */
+    @Actor
+    public void actor1() {
+        cache.apply(USER, event);
+    }
+
+    /**
+     * Locate the event.
+     * 
+     * @param r result, applied count and whether the applied time has moved
+     */
+    @Actor
+    public void actor2(final II_Result r) {
+        final AuthenticationEvent located = cache.locate(USER);
+        r.r1 = located.getAppliedCount();
+        r.r2 = located.getAppliedTime() != 0 ? 1 : 0;
+    }
+}
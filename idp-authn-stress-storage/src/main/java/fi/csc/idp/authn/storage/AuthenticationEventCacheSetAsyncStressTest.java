@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+import com.google.common.util.concurrent.Futures;
+
+/** Locating the event of the user while a new event is set asynchronously to separate server-side storage. */
+@JCStressTest
+@Description("locate() racing with setAsync() of the same user, the event written without holding the lock.")
+@Outcome(id = "1, 2", expect = Expect.ACCEPTABLE, desc = "Located the previous event before set.")
+@Outcome(id = "2, 2", expect = Expect.ACCEPTABLE, desc = "Located the new event after set.")
+@Outcome(id = "0, 2", expect = Expect.ACCEPTABLE_INTERESTING,
+        desc = "Reference read before its event was written or after the previous event was removed.")
+@Outcome(id = {"0, 0", "1, 0", "2, 0"}, expect = Expect.FORBIDDEN, desc = "Reference of the new event removed.")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Previous event located after set.")
+@State
+public class AuthenticationEventCacheSetAsyncStressTest {
+
+    /** The user. */
+    private static final String USER = "foo";
+
+    /** The cache. */
+    private final AuthenticationEventCache cache;
+
+    /** Constructor. */
+    public AuthenticationEventCacheSetAsyncStressTest() {
+        cache = ClientSideMemoryStorageService.buildCache(true);
+        cache.set(USER, new AuthenticationEvent("1", USER, "issuer", 0L));
+    }
+
+    /** Login setting a new event, waiting for the event to be written. */
+    @Actor
+    public void actor1() {
+        Futures.getUnchecked(cache.setAsync(USER, new AuthenticationEvent("2", USER, "issuer", 0L)));
+    }
+
+    /**
+     * Locate the event.
+     * 
+     * @param r result, id of the event located, 0 if not located
+     */
+    @Actor
+    public void actor2(final II_Result r) {
+        r.r1 = locatedId();
+    }
+
+    /**
+     * Locate the event after set and release the executor of the cache.
+     * 
+     * @param r result, id of the event located, 0 if not located
+     */
+    @Arbiter
+    public void arbiter(final II_Result r) {
+        r.r2 = locatedId();
+        cache.destroy();
+    }
+
+    /**
+     * Locate the event of the user.
+     * 
+     * @return id of the event located, 0 if not located
+     */
+    private int locatedId() {
+        final AuthenticationEvent located = cache.locate(USER);
+        return located != null ? Integer.parseInt(located.getID()) : 0;
+    }
+}
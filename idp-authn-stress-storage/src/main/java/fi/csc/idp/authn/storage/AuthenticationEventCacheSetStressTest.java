@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.ZZ_Result;
+
+/** Concurrent logins of different users storing new events through the cache. */
+@JCStressTest
+@Description("Concurrent set() of different users through the cache.")
+@Outcome(id = "true, true", expect = Expect.ACCEPTABLE, desc = "Both events stored.")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Lost event.")
+@State
+public class AuthenticationEventCacheSetStressTest {
+
+    /** The cache. */
+    private final AuthenticationEventCache cache = ClientSideMemoryStorageService.buildCache();
+
+    /** First user. */
+    @Actor
+    public void actor1() {
+        cache.set("foo", new AuthenticationEvent("1", "foo", "issuer", 0L));
+    }
+
+    /** Second user. */
+    @Actor
+    public void actor2() {
+        cache.set("bar", new AuthenticationEvent("2", "bar", "issuer", 0L));
+    }
+
+    /**
+     * Locate the events of both users.
+     * 
+     * @param r result
+     */
+    @Arbiter
+    public void arbiter(final ZZ_Result r) {
+        final AuthenticationEvent foo = cache.locate("foo");
+        final AuthenticationEvent bar = cache.locate("bar");
+        r.r1 = foo != null && "1".equals(foo.getID());
+        r.r2 = bar != null && "2".equals(bar.getID());
+    }
+}
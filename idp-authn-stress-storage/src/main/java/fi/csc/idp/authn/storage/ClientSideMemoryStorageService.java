@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ * Copyright (c) 2018 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.authn.storage;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/** Memory storage claiming to be client-side, backing the caches of the stress tests. */
+public class ClientSideMemoryStorageService extends MemoryStorageService {
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isServerSide() {
+        return false;
+    }
+
+    /**
+     * Build an initialized cache over a new memory storage.
+     * 
+     * @return initialized cache
+     */
+    public static AuthenticationEventCache buildCache() {
+        return buildCache(false);
+    }
+
+    /**
+     * Build an initialized cache over a new memory storage, keeping the events on separate server-side memory storage
+     * if asked. Events on separate server-side storage are read and written without holding the lock of the cache.
+     * 
+     * @param serverSideEvents whether the events are kept on separate server-side storage
+     * @return initialized cache
+     */
+    public static AuthenticationEventCache buildCache(final boolean serverSideEvents) {
+        try {
+            final ClientSideMemoryStorageService storage = new ClientSideMemoryStorageService();
+            storage.setId("storage");
+            storage.setCleanupInterval(0);
+            storage.initialize();
+            final AuthenticationEventCache cache = new AuthenticationEventCache();
+            cache.setId("cache");
+            cache.setUserSalt("salt");
+            cache.setReferenceStorage(storage);
+            if (serverSideEvents) {
+                final MemoryStorageService eventStorage = new MemoryStorageService();
+                eventStorage.setId("eventStorage");
+                eventStorage.setCleanupInterval(0);
+                eventStorage.initialize();
+                cache.setEventStorage(eventStorage);
+            }
+            cache.initialize();
+            return cache;
+        } catch (final ComponentInitializationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}